@@ -1,16 +1,29 @@
 package com.lancast.lancast;
 
+import com.lancast.lancast.core.AdmissionController;
+import com.lancast.lancast.core.FileTransfer;
 import com.lancast.lancast.core.LanCast;
+import com.lancast.lancast.core.SettingsManager;
+import com.lancast.lancast.core.ZipStreamManager;
+import com.lancast.lancast.core.engine.ServerEngine;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
+import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
 import javafx.scene.control.ProgressBar;
+import javafx.scene.control.Spinner;
+import javafx.scene.control.SpinnerValueFactory;
 import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableRow;
 import javafx.scene.control.TableView;
+import javafx.scene.control.TextField;
 import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.scene.input.TransferMode;
 import javafx.scene.layout.BorderPane;
@@ -22,10 +35,18 @@ import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Circle;
 import javafx.util.Callback;
+import javafx.util.Duration;
 
 import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import com.lancast.lancast.database.HistoryFilter;
 import com.lancast.lancast.database.HistoryManager;
 import com.lancast.lancast.database.TransferLog;
 
@@ -76,6 +97,18 @@ public class LanCastController {
     @FXML
     private TableView<TransferLog> historyTable;
     @FXML
+    private TextField historySearchField;
+    @FXML
+    private ComboBox<String> historyPeriodBox;
+    @FXML
+    private ComboBox<String> historyDeviceBox;
+    @FXML
+    private TextField historyIpField;
+    @FXML
+    private Label historyExportLabel;
+    @FXML
+    private Button historyExportBtn;
+    @FXML
     private TableColumn<TransferLog, String> timeCol;
     @FXML
     private TableColumn<TransferLog, String> deviceCol;
@@ -97,6 +130,36 @@ public class LanCastController {
     private Label versionLabel;
     @FXML
     private Label settingsPinLabel;
+    @FXML
+    private Label activeTransfersLabel;
+    @FXML
+    private Label transferQueueLabel;
+    @FXML
+    private Label transferPathLabel;
+    @FXML
+    private Spinner<Integer> maxTransfersSpinner;
+    @FXML
+    private Spinner<Integer> transferQueueSpinner;
+    @FXML
+    private Spinner<Integer> clientRateSpinner;
+    @FXML
+    private Spinner<Integer> globalRateSpinner;
+    @FXML
+    private Spinner<Integer> zipThreadsSpinner;
+    @FXML
+    private Button serverEngineBtn;
+    @FXML
+    private Spinner<Integer> socketBufferSpinner;
+    @FXML
+    private Button tcpNoDelayBtn;
+    @FXML
+    private Spinner<Integer> idleTimeoutSpinner;
+    @FXML
+    private Spinner<Integer> maxRequestsSpinner;
+    @FXML
+    private Button archiveModeBtn;
+    @FXML
+    private Button historyOverflowBtn;
 
     // Theme controls
     @FXML
@@ -118,6 +181,27 @@ public class LanCastController {
     private boolean isDarkMode = true;
     private String currentAccent = "purple";
 
+    // History pages, loaded as the table is scrolled
+    private static final int HISTORY_PAGE_SIZE = 200;
+    private static final int HISTORY_PREFETCH = 50;
+    private static final int HISTORY_SEARCH_LIMIT = 500;
+    private static final String PERIOD_ALL = "All time";
+    private static final String PERIOD_DAY = "Last 24 hours";
+    private static final String PERIOD_WEEK = "Last 7 days";
+    private static final String PERIOD_MONTH = "Last 30 days";
+    private static final String ALL_DEVICES = "All devices";
+    private final ObservableList<TransferLog> historyItems = FXCollections.observableArrayList();
+    private final ExecutorService historyLoader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "lancast-history-view");
+        t.setDaemon(true);
+        return t;
+    });
+    private HistoryFilter historyFilter = HistoryFilter.all();
+    private TransferLog historyLast;
+    private boolean historyLoading;
+    private boolean historyExhausted;
+    private volatile int historyGeneration;
+
     @FXML
     public void initialize() {
         selectedFiles = FXCollections.observableArrayList();
@@ -139,6 +223,8 @@ public class LanCastController {
 
         loadSavedTheme();
         updateDashboardStats();
+        setupTransferLimits();
+        startTransferStatsTimer();
     }
 
     private void setupFileListCellFactory() {
@@ -157,14 +243,15 @@ public class LanCastController {
                             hbox.setSpacing(8);
                             hbox.setAlignment(javafx.geometry.Pos.CENTER_LEFT);
 
-                            Label iconLabel = new Label("📄");
+                            Label iconLabel = new Label(item.isDirectory() ? "📁" : "📄");
                             iconLabel.setStyle("-fx-font-size: 14px;");
 
                             Label nameLabel = new Label(item.getName());
                             nameLabel.setStyle(
                                     "-fx-font-weight: 600; -fx-text-fill: -text-primary; -fx-font-size: 11px;");
 
-                            Label sizeLabel = new Label("(" + formatFileSize(item.length()) + ")");
+                            Label sizeLabel = new Label(
+                                    item.isDirectory() ? "(folder)" : "(" + formatFileSize(item.length()) + ")");
                             sizeLabel.setStyle("-fx-font-size: 10px; -fx-text-fill: -text-muted;");
 
                             Region spacer = new Region();
@@ -308,6 +395,150 @@ public class LanCastController {
         applyTheme();
     }
 
+    // ============================================
+    // TRANSFER LIMITS
+    // ============================================
+
+    private void setupTransferLimits() {
+        if (maxTransfersSpinner == null)
+            return;
+
+        maxTransfersSpinner.setValueFactory(
+                new SpinnerValueFactory.IntegerSpinnerValueFactory(1, 256, settingsManager.getMaxTransfers()));
+        transferQueueSpinner.setValueFactory(
+                new SpinnerValueFactory.IntegerSpinnerValueFactory(0, 4096, settingsManager.getTransferQueue()));
+
+        // Applied immediately; the server does not need a restart
+        maxTransfersSpinner.valueProperty().addListener((obs, oldVal, newVal) -> {
+            settingsManager.setMaxTransfers(newVal);
+            applyTransferLimits();
+        });
+        transferQueueSpinner.valueProperty().addListener((obs, oldVal, newVal) -> {
+            settingsManager.setTransferQueue(newVal);
+            applyTransferLimits();
+        });
+
+        clientRateSpinner.setValueFactory(
+                new SpinnerValueFactory.IntegerSpinnerValueFactory(0, 10000, settingsManager.getClientRateLimit(), 5));
+        globalRateSpinner.setValueFactory(
+                new SpinnerValueFactory.IntegerSpinnerValueFactory(0, 10000, settingsManager.getGlobalRateLimit(), 10));
+        clientRateSpinner.valueProperty().addListener((obs, oldVal, newVal) -> {
+            settingsManager.setClientRateLimit(newVal);
+            applyBandwidthLimits();
+        });
+        globalRateSpinner.valueProperty().addListener((obs, oldVal, newVal) -> {
+            settingsManager.setGlobalRateLimit(newVal);
+            applyBandwidthLimits();
+        });
+
+        zipThreadsSpinner.setValueFactory(
+                new SpinnerValueFactory.IntegerSpinnerValueFactory(0, 256, settingsManager.getZipThreads()));
+        zipThreadsSpinner.valueProperty().addListener((obs, oldVal, newVal) -> {
+            settingsManager.setZipThreads(newVal);
+            ZipStreamManager.setParallelism(newVal);
+        });
+
+        // The NIO engine reads these when the server starts
+        socketBufferSpinner.setValueFactory(
+                new SpinnerValueFactory.IntegerSpinnerValueFactory(16, 16384, settingsManager.getSocketBufferKb(), 64));
+        socketBufferSpinner.valueProperty().addListener((obs, oldVal, newVal) -> settingsManager.setSocketBufferKb(newVal));
+        idleTimeoutSpinner.setValueFactory(
+                new SpinnerValueFactory.IntegerSpinnerValueFactory(1, 3600, settingsManager.getIdleTimeoutSeconds(), 5));
+        idleTimeoutSpinner.valueProperty().addListener((obs, oldVal, newVal) -> settingsManager.setIdleTimeoutSeconds(newVal));
+        maxRequestsSpinner.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(1, 100_000,
+                settingsManager.getMaxRequestsPerConnection(), 100));
+        maxRequestsSpinner.valueProperty().addListener(
+                (obs, oldVal, newVal) -> settingsManager.setMaxRequestsPerConnection(newVal));
+
+        updateServerEngineButton();
+        updateTcpNoDelayButton();
+        updateArchiveModeButton();
+        updateHistoryOverflowButton();
+    }
+
+    @FXML
+    private void handleTcpNoDelayToggle() {
+        settingsManager.setTcpNoDelay(!settingsManager.isTcpNoDelay());
+        updateTcpNoDelayButton();
+    }
+
+    private void updateTcpNoDelayButton() {
+        if (tcpNoDelayBtn != null) {
+            tcpNoDelayBtn.setText(settingsManager.isTcpNoDelay() ? "On" : "Off");
+        }
+    }
+
+    @FXML
+    private void handleServerEngineToggle() {
+        boolean nio = ServerEngine.NIO.equals(settingsManager.getServerEngine());
+        settingsManager.setServerEngine(nio ? ServerEngine.JDK : ServerEngine.NIO);
+        updateServerEngineButton();
+    }
+
+    @FXML
+    private void handleArchiveModeToggle() {
+        boolean exact = SettingsManager.ARCHIVE_EXACT.equals(settingsManager.getArchiveMode());
+        settingsManager.setArchiveMode(exact ? SettingsManager.ARCHIVE_COMPRESSED : SettingsManager.ARCHIVE_EXACT);
+        updateArchiveModeButton();
+    }
+
+    @FXML
+    private void handleHistoryOverflowToggle() {
+        boolean block = SettingsManager.HISTORY_OVERFLOW_BLOCK.equals(settingsManager.getHistoryOverflow());
+        String policy = block ? SettingsManager.HISTORY_OVERFLOW_DROP : SettingsManager.HISTORY_OVERFLOW_BLOCK;
+        settingsManager.setHistoryOverflow(policy);
+        LanCast.applyHistoryOverflow(policy);
+        updateHistoryOverflowButton();
+    }
+
+    private void updateHistoryOverflowButton() {
+        if (historyOverflowBtn != null) {
+            historyOverflowBtn.setText(SettingsManager.HISTORY_OVERFLOW_BLOCK.equals(settingsManager.getHistoryOverflow())
+                    ? "Keep All" : "Skip");
+        }
+    }
+
+    private void updateArchiveModeButton() {
+        if (archiveModeBtn != null) {
+            archiveModeBtn.setText(SettingsManager.ARCHIVE_EXACT.equals(settingsManager.getArchiveMode())
+                    ? "Exact" : "Compressed");
+        }
+    }
+
+    private void updateServerEngineButton() {
+        if (serverEngineBtn != null) {
+            serverEngineBtn.setText(ServerEngine.NIO.equals(settingsManager.getServerEngine()) ? "NIO" : "Standard");
+        }
+    }
+
+    private void applyBandwidthLimits() {
+        LanCast.applyBandwidthLimits(settingsManager.getClientRateLimit(), settingsManager.getGlobalRateLimit());
+    }
+
+    private void applyTransferLimits() {
+        LanCast.getAdmissionController().setLimits(settingsManager.getMaxTransfers(),
+                settingsManager.getTransferQueue());
+    }
+
+    private void startTransferStatsTimer() {
+        Timeline timeline = new Timeline(new KeyFrame(Duration.seconds(1), e -> updateTransferStats()));
+        timeline.setCycleCount(Timeline.INDEFINITE);
+        timeline.play();
+    }
+
+    private void updateTransferStats() {
+        AdmissionController admission = LanCast.getAdmissionController();
+        if (activeTransfersLabel != null)
+            activeTransfersLabel.setText(admission.getActive() + "/" + admission.getMaxConcurrent());
+        if (transferQueueLabel != null)
+            transferQueueLabel.setText(String.format("%d queued • avg wait %.0f ms • %d rejected",
+                    admission.getQueued(), admission.getAverageWaitMillis(), admission.getRejected()));
+        if (transferPathLabel != null)
+            transferPathLabel.setText(String.format("%d zero-copy (%s) • %d streamed (%s)",
+                    FileTransfer.getZeroCopyTransfers(), formatFileSize(FileTransfer.getZeroCopyBytes()),
+                    FileTransfer.getStreamTransfers(), formatFileSize(FileTransfer.getStreamBytes())));
+    }
+
     // ============================================
     // HISTORY & CONNECTION
     // ============================================
@@ -317,12 +548,186 @@ public class LanCastController {
         deviceCol.setCellValueFactory(new PropertyValueFactory<>("deviceType"));
         fileCol.setCellValueFactory(new PropertyValueFactory<>("fileName"));
         ipCol.setCellValueFactory(new PropertyValueFactory<>("clientIp"));
+        historyTable.setItems(historyItems);
+
+        // Rows are only laid out near the viewport, so one nearing the end means the user
+        // has scrolled that far
+        historyTable.setRowFactory(table -> new TableRow<>() {
+            @Override
+            protected void updateItem(TransferLog item, boolean empty) {
+                super.updateItem(item, empty);
+                if (!empty && getIndex() >= historyItems.size() - HISTORY_PREFETCH) {
+                    loadHistoryPage();
+                }
+            }
+        });
+
+        historyPeriodBox.getItems().setAll(PERIOD_ALL, PERIOD_DAY, PERIOD_WEEK, PERIOD_MONTH);
+        historyPeriodBox.setValue(PERIOD_ALL);
+        historyDeviceBox.getItems().setAll(ALL_DEVICES);
+        historyDeviceBox.setValue(ALL_DEVICES);
+        historySearchField.textProperty().addListener((obs, old, text) -> loadHistoryData());
+    }
+
+    @FXML
+    private void handleHistoryFilter() {
+        loadHistoryData();
     }
 
+    /**
+     * Starts the history over from the newest transfer with the current filter. Pages are
+     * read on a background thread and added as the table is scrolled.
+     */
     private void loadHistoryData() {
-        HistoryManager hm = new HistoryManager();
-        List<TransferLog> logs = hm.getAllLogs();
-        historyTable.setItems(FXCollections.observableArrayList(logs));
+        historyGeneration++;
+        historyItems.clear();
+        historyLast = null;
+        historyLoading = false;
+        historyExhausted = false;
+        historyFilter = currentHistoryFilter();
+        String query = historySearchField.getText() == null ? "" : historySearchField.getText().trim();
+        if (query.isEmpty()) {
+            loadHistoryPage();
+        } else {
+            searchHistory(query);
+        }
+
+        int generation = historyGeneration;
+        historyLoader.execute(() -> {
+            List<String> types = HistoryManager.getInstance().getDeviceTypes();
+            Platform.runLater(() -> {
+                if (generation != historyGeneration) {
+                    return;
+                }
+                String selected = historyDeviceBox.getValue();
+                List<String> choices = new ArrayList<>();
+                choices.add(ALL_DEVICES);
+                choices.addAll(types);
+                if (!choices.equals(historyDeviceBox.getItems())) {
+                    historyDeviceBox.getItems().setAll(choices);
+                    historyDeviceBox.setValue(choices.contains(selected) ? selected : ALL_DEVICES);
+                }
+            });
+        });
+    }
+
+    private void loadHistoryPage() {
+        if (historyLoading || historyExhausted) {
+            return;
+        }
+        historyLoading = true;
+        int generation = historyGeneration;
+        HistoryFilter filter = historyFilter;
+        TransferLog after = historyLast;
+        historyLoader.execute(() -> {
+            List<TransferLog> page = HistoryManager.getInstance().getLogs(filter, after, HISTORY_PAGE_SIZE);
+            Platform.runLater(() -> {
+                if (generation != historyGeneration) {
+                    return; // Filter changed or the view was reopened meanwhile
+                }
+                historyLoading = false;
+                historyExhausted = page.size() < HISTORY_PAGE_SIZE;
+                if (!page.isEmpty()) {
+                    historyLast = page.get(page.size() - 1);
+                    historyItems.addAll(page);
+                }
+            });
+        });
+    }
+
+    /**
+     * Shows the best matches for the query instead of pages; searches typed over by the
+     * time they come up are skipped.
+     */
+    private void searchHistory(String query) {
+        historyLoading = true;
+        int generation = historyGeneration;
+        HistoryFilter filter = historyFilter;
+        historyLoader.execute(() -> {
+            if (generation != historyGeneration) {
+                return;
+            }
+            List<TransferLog> results = HistoryManager.getInstance().search(query, filter, HISTORY_SEARCH_LIMIT);
+            Platform.runLater(() -> {
+                if (generation != historyGeneration) {
+                    return;
+                }
+                historyLoading = false;
+                historyExhausted = true;
+                historyItems.setAll(results);
+            });
+        });
+    }
+
+    /**
+     * Exports the transfers the period, device and address filters select to a file, on a
+     * background thread; the file type chosen decides the format.
+     */
+    @FXML
+    private void handleHistoryExport() {
+        javafx.stage.FileChooser fileChooser = new javafx.stage.FileChooser();
+        fileChooser.setTitle("Export History");
+        fileChooser.getExtensionFilters().addAll(
+                new javafx.stage.FileChooser.ExtensionFilter("CSV (*.csv)", "*.csv"),
+                new javafx.stage.FileChooser.ExtensionFilter("JSON (*.json)", "*.json"),
+                new javafx.stage.FileChooser.ExtensionFilter("JSON Lines (*.ndjson)", "*.ndjson"),
+                new javafx.stage.FileChooser.ExtensionFilter("Gzipped CSV (*.csv.gz)", "*.csv.gz"),
+                new javafx.stage.FileChooser.ExtensionFilter("Gzipped JSON (*.json.gz)", "*.json.gz"),
+                new javafx.stage.FileChooser.ExtensionFilter("Gzipped JSON Lines (*.ndjson.gz)", "*.ndjson.gz"));
+        fileChooser.setInitialFileName("lancast-history");
+        File chosen = fileChooser.showSaveDialog(historyTable.getScene().getWindow());
+        if (chosen == null) {
+            return;
+        }
+
+        // Some platforms leave adding the extension to the application
+        String extension = fileChooser.getSelectedExtensionFilter().getExtensions().get(0).substring(1);
+        File file = chosen.getName().endsWith(extension) ? chosen : new File(chosen.getPath() + extension);
+        boolean gzip = extension.endsWith(".gz");
+        HistoryManager.ExportFormat format = extension.startsWith(".csv") ? HistoryManager.ExportFormat.CSV
+                : extension.startsWith(".ndjson") ? HistoryManager.ExportFormat.NDJSON
+                : HistoryManager.ExportFormat.JSON;
+        HistoryFilter filter = currentHistoryFilter();
+
+        historyExportBtn.setDisable(true);
+        historyExportLabel.setText("Exporting...");
+        Thread exporter = new Thread(() -> {
+            String result;
+            try {
+                long rows = HistoryManager.getInstance().export(file, format, gzip, filter,
+                        (done, total) -> Platform.runLater(() -> historyExportLabel
+                                .setText(String.format("Exporting... %d%%", total == 0 ? 100 : done * 100 / total))));
+                result = "Exported " + rows + " transfers";
+            } catch (IOException e) {
+                System.err.println("Export failed: " + e.getMessage());
+                result = "Export failed";
+            }
+            String message = result;
+            Platform.runLater(() -> {
+                historyExportLabel.setText(message);
+                historyExportBtn.setDisable(false);
+            });
+        }, "lancast-history-export");
+        exporter.setDaemon(true);
+        exporter.start();
+    }
+
+    private HistoryFilter currentHistoryFilter() {
+        Instant from = null;
+        String period = historyPeriodBox.getValue();
+        if (PERIOD_DAY.equals(period)) {
+            from = Instant.now().minus(1, ChronoUnit.DAYS);
+        } else if (PERIOD_WEEK.equals(period)) {
+            from = Instant.now().minus(7, ChronoUnit.DAYS);
+        } else if (PERIOD_MONTH.equals(period)) {
+            from = Instant.now().minus(30, ChronoUnit.DAYS);
+        }
+        String device = historyDeviceBox.getValue();
+        if (device == null || device.equals(ALL_DEVICES)) {
+            device = null;
+        }
+        String ip = historyIpField.getText() == null ? "" : historyIpField.getText().trim();
+        return new HistoryFilter(from, null, device, ip.isEmpty() ? null : ip);
     }
 
     private void refreshConnectionInfo() {
@@ -380,7 +785,7 @@ public class LanCastController {
             new Thread(() -> {
                 try {
                     Thread.sleep(1500);
-                    javafx.application.Platform.runLater(() -> urlLabel.setText(urlToCopy));
+                    Platform.runLater(() -> urlLabel.setText(urlToCopy));
                 } catch (InterruptedException e) {
                 }
             }).start();
@@ -412,12 +817,14 @@ public class LanCastController {
     }
 
     private void addFiles(List<File> files) {
+        List<File> newFiles = new ArrayList<>();
         for (File file : files) {
             if (!selectedFiles.contains(file)) {
                 selectedFiles.add(file);
-                LanCast.addFile(file);
+                newFiles.add(file);
             }
         }
+        LanCast.addFiles(newFiles);
         updateStatus();
     }
 
@@ -606,4 +1013,13 @@ public class LanCastController {
         if (files != null)
             addFiles(files);
     }
+
+    @FXML
+    private void handleBrowseFolder() {
+        javafx.stage.DirectoryChooser directoryChooser = new javafx.stage.DirectoryChooser();
+        directoryChooser.setTitle("Select Folder");
+        File folder = directoryChooser.showDialog(dropZone.getScene().getWindow());
+        if (folder != null)
+            addFiles(List.of(folder));
+    }
 }
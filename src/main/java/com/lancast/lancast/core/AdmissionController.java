@@ -0,0 +1,190 @@
+package com.lancast.lancast.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the number of transfers running at once.
+ * Requests beyond the limit wait in a FIFO queue; once the queue is full, or a
+ * request has waited too long, it is turned away with {@code 503} and {@code Retry-After}.
+ * Limits can be changed while the server is running.
+ */
+public class AdmissionController {
+
+    private static final long MAX_WAIT_MILLIS = 60_000;
+    private static final int RETRY_AFTER_SECONDS = 5;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition slotFree = lock.newCondition();
+    private int maxConcurrent;
+    private int maxQueued;
+    private int active;
+    private int queued;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong waitedCount = new AtomicLong();
+    private volatile long maxWaitNanos;
+
+    public AdmissionController(int maxConcurrent, int maxQueued) {
+        setLimits(maxConcurrent, maxQueued);
+    }
+
+    /**
+     * Updates the limits. Waiting requests are re-evaluated immediately.
+     */
+    public void setLimits(int maxConcurrent, int maxQueued) {
+        lock.lock();
+        try {
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+            this.maxQueued = Math.max(0, maxQueued);
+            slotFree.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wraps a handler so each exchange must obtain a transfer slot first.
+     */
+    public HttpHandler guard(HttpHandler handler) {
+        return t -> {
+            if (!acquire()) {
+                reject(t);
+                return;
+            }
+            try {
+                handler.handle(t);
+            } finally {
+                release();
+            }
+        };
+    }
+
+    /**
+     * Waits for a transfer slot.
+     *
+     * @return false if the queue is full, the wait timed out or the thread was interrupted.
+     */
+    boolean acquire() {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            if (active < maxConcurrent && queued == 0) {
+                active++;
+                admitted.incrementAndGet();
+                return true;
+            }
+            if (queued >= maxQueued) {
+                rejected.incrementAndGet();
+                return false;
+            }
+
+            queued++;
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MILLIS);
+                while (active >= maxConcurrent) {
+                    if (remaining <= 0) {
+                        rejected.incrementAndGet();
+                        return false;
+                    }
+                    remaining = slotFree.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected.incrementAndGet();
+                return false;
+            } finally {
+                queued--;
+            }
+
+            active++;
+            admitted.incrementAndGet();
+            long waited = System.nanoTime() - start;
+            totalWaitNanos.addAndGet(waited);
+            waitedCount.incrementAndGet();
+            if (waited > maxWaitNanos) {
+                maxWaitNanos = waited;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release() {
+        lock.lock();
+        try {
+            active--;
+            slotFree.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void reject(HttpExchange t) throws IOException {
+        byte[] bytes = "Server busy, please retry".getBytes(StandardCharsets.UTF_8);
+        t.getResponseHeaders().set("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+        t.sendResponseHeaders(503, bytes.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    // --- Statistics for the host ---
+
+    public int getActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return The mean time queued requests waited for a slot, in milliseconds.
+     */
+    public double getAverageWaitMillis() {
+        long count = waitedCount.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / (count * 1_000_000.0);
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,246 @@
+package com.lancast.lancast.core;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token-bucket bandwidth shaping for transfers.
+ * Every client IP gets its own bucket and all traffic also draws from a global bucket.
+ * When a global cap is set, each active client's rate is limited to an equal share of it,
+ * so one fast client cannot starve the rest. Limits can be changed at any time.
+ * With no limits configured the streams pass data straight through.
+ */
+public class BandwidthManager {
+
+    /** Largest slice reserved at once, so long writes are paced smoothly. */
+    private static final int MAX_SLICE = 64 * 1024;
+
+    private final TokenBucket global = new TokenBucket();
+    private final Map<String, ClientShare> clients = new ConcurrentHashMap<>();
+    private volatile long perClientRate;
+    private volatile long globalRate;
+
+    /**
+     * A bucket that hands out byte reservations. Tokens may go negative; the caller
+     * then sleeps for the returned debt, which keeps the lock hold time tiny.
+     */
+    static final class TokenBucket {
+        private long rate; // bytes per second, 0 = unlimited
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        synchronized void setRate(long rate) {
+            refill();
+            this.rate = rate;
+            tokens = Math.min(tokens, capacity());
+        }
+
+        /**
+         * @return How long the caller must wait, in nanoseconds, before sending {@code bytes}.
+         */
+        synchronized long reserve(int bytes) {
+            if (rate <= 0) {
+                return 0;
+            }
+            refill();
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1_000_000_000d / rate);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                tokens = Math.min(capacity(), tokens + (now - lastRefill) * rate / 1_000_000_000d);
+            }
+            lastRefill = now;
+        }
+
+        // Allow bursts of about 100 ms worth of data
+        private double capacity() {
+            return Math.max(rate / 10d, MAX_SLICE);
+        }
+    }
+
+    /**
+     * The bucket shared by all transfers of one client.
+     */
+    final class ClientShare {
+        private final String ip;
+        private final TokenBucket bucket = new TokenBucket();
+        private int streams;
+
+        ClientShare(String ip) {
+            this.ip = ip;
+        }
+
+        boolean limited() {
+            return isLimited();
+        }
+
+        void pace(int bytes) {
+            if (!isLimited()) {
+                return;
+            }
+            long wait = Math.max(bucket.reserve(bytes), global.reserve(bytes));
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    /**
+     * Sets the limits in bytes per second; 0 disables a limit.
+     */
+    public void setLimits(long perClientRate, long globalRate) {
+        this.perClientRate = Math.max(0, perClientRate);
+        this.globalRate = Math.max(0, globalRate);
+        global.setRate(this.globalRate);
+        rebalance();
+    }
+
+    public long getPerClientRate() {
+        return perClientRate;
+    }
+
+    public long getGlobalRate() {
+        return globalRate;
+    }
+
+    public boolean isLimited() {
+        return perClientRate > 0 || globalRate > 0;
+    }
+
+    /**
+     * Wraps a handler so the exchange's request and response bodies are shaped.
+     */
+    public HttpHandler shape(HttpHandler handler) {
+        return t -> {
+            String ip = t.getRemoteAddress().getAddress().getHostAddress();
+            ClientShare share = join(ip);
+            try {
+                t.setStreams(new ThrottledInputStream(t.getRequestBody(), share),
+                        new ThrottledOutputStream(t.getResponseBody(), share));
+                handler.handle(t);
+            } finally {
+                leave(share);
+            }
+        };
+    }
+
+    private ClientShare join(String ip) {
+        ClientShare share = clients.compute(ip, (k, existing) -> {
+            ClientShare s = existing != null ? existing : new ClientShare(k);
+            s.streams++;
+            return s;
+        });
+        rebalance();
+        return share;
+    }
+
+    private void leave(ClientShare share) {
+        clients.computeIfPresent(share.ip, (k, s) -> --s.streams <= 0 ? null : s);
+        rebalance();
+    }
+
+    /** Recomputes each client's rate as the smaller of the per-client limit and its fair share. */
+    private void rebalance() {
+        int active = Math.max(1, clients.size());
+        long rate = perClientRate;
+        if (globalRate > 0) {
+            long fairShare = Math.max(1, globalRate / active);
+            rate = rate > 0 ? Math.min(rate, fairShare) : fairShare;
+        }
+        for (ClientShare s : clients.values()) {
+            s.bucket.setRate(rate);
+        }
+    }
+
+    /**
+     * @return The number of clients currently transferring.
+     */
+    public int getActiveClients() {
+        return clients.size();
+    }
+
+    /**
+     * Response stream that paces writes through a client's share.
+     * While no limit is set it keeps exposing the underlying channel so zero-copy transfers still apply.
+     */
+    static final class ThrottledOutputStream extends FilterOutputStream implements FileTransfer.ChannelOutput {
+        private final ClientShare share;
+
+        ThrottledOutputStream(OutputStream out, ClientShare share) {
+            super(out);
+            this.share = share;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            share.pace(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int slice = Math.min(len, MAX_SLICE);
+                share.pace(slice);
+                out.write(b, off, slice);
+                off += slice;
+                len -= slice;
+            }
+        }
+
+        @Override
+        public WritableByteChannel channel() {
+            if (share.limited() || !(out instanceof FileTransfer.ChannelOutput)) {
+                return null;
+            }
+            return ((FileTransfer.ChannelOutput) out).channel();
+        }
+
+        @Override
+        public void channelWritten(long bytes) {
+            ((FileTransfer.ChannelOutput) out).channelWritten(bytes);
+        }
+    }
+
+    /**
+     * Request stream that paces reads through a client's share.
+     */
+    static final class ThrottledInputStream extends FilterInputStream {
+        private final ClientShare share;
+
+        ThrottledInputStream(InputStream in, ClientShare share) {
+            super(in);
+            this.share = share;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                share.pace(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, Math.min(len, MAX_SLICE));
+            if (n > 0) {
+                share.pace(n);
+            }
+            return n;
+        }
+    }
+}
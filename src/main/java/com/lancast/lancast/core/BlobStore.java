@@ -0,0 +1,434 @@
+package com.lancast.lancast.core;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed storage for received files.
+ * <p>
+ * Each distinct content is kept once, as {@code uploads/.blobs/ab/abcdef...} named by its
+ * SHA-256. The file a client sent shows up in {@code uploads/} under its own name as a
+ * hard link to the blob, so the same video sent five times takes the space of one, and
+ * the uploads folder still holds ordinary files the host can open. Names never replace
+ * one another: a different file with a taken name gets a numbered name instead.
+ * <p>
+ * Where hard links are not supported the content is copied, which keeps uploads working
+ * without the savings.
+ * <p>
+ * Received files stay writable, so the host can edit one and with it the shared blob. A
+ * blob is therefore checked against its hash before new uploads are matched to it, and
+ * dropped from the store if it no longer fits; the received files keep their content.
+ */
+public class BlobStore {
+
+    private static final String BLOB_DIR = ".blobs";
+    private static final String TEMP_DIR = "tmp";
+    private static final String LINKS_FILE = "links.properties";
+
+    private final File uploadsDir;
+    private final File blobDir;
+    private final File tempDir;
+    private final File linksFile;
+    // Sizes of the stored blobs, so clients can be told when hashing a file is worth it
+    private final Map<Long, Set<String>> bySize = new ConcurrentHashMap<>();
+    // Received file name -> hash, kept where the file system does not count hard links
+    private final Properties links = new Properties();
+    private boolean countsLinks = true;
+
+    /**
+     * A stored content.
+     */
+    public static final class Blob {
+        private final String hash;
+        private final long size;
+        private final boolean existing;
+        private final Digests digests;
+
+        Blob(String hash, long size, boolean existing, Digests digests) {
+            this.hash = hash;
+            this.size = size;
+            this.existing = existing;
+            this.digests = digests;
+        }
+
+        /**
+         * @return The SHA-256 of the content, in lower-case hex.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return true if the content was already stored, i.e. this upload was a duplicate.
+         */
+        public boolean isExisting() {
+            return existing;
+        }
+
+        /**
+         * @return The content's digests, or null if they are not known in this run.
+         */
+        public Digests getDigests() {
+            return digests;
+        }
+    }
+
+    /**
+     * Writes content to a stream, such as an upload body.
+     */
+    public interface Content {
+        /**
+         * @return The number of bytes written.
+         */
+        long writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * @param uploadsDir The directory received files appear in.
+     */
+    public BlobStore(File uploadsDir) {
+        this.uploadsDir = uploadsDir;
+        this.blobDir = new File(uploadsDir, BLOB_DIR);
+        this.tempDir = new File(blobDir, TEMP_DIR);
+        this.linksFile = new File(blobDir, LINKS_FILE);
+    }
+
+    /**
+     * Indexes the stored blobs, clears out interrupted writes and deletes blobs that no
+     * received file refers to any more (the host deleted every copy).
+     */
+    public synchronized void load() {
+        bySize.clear();
+        tempDir.mkdirs();
+        File[] temps = tempDir.listFiles();
+        if (temps != null) {
+            for (File f : temps) {
+                f.delete();
+            }
+        }
+        countsLinks = countsLinks(blobDir.toPath());
+        Set<String> referenced = countsLinks ? null : loadLinks();
+        File[] shards = blobDir.listFiles(f -> f.isDirectory() && !f.getName().equals(TEMP_DIR));
+        if (shards == null) {
+            return;
+        }
+        int blobs = 0;
+        int removed = 0;
+        for (File shard : shards) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(shard.toPath())) {
+                for (Path blob : stream) {
+                    boolean used = countsLinks ? isReferenced(blob)
+                            : referenced.contains(blob.getFileName().toString());
+                    if (!used) {
+                        Files.deleteIfExists(blob);
+                        removed++;
+                        continue;
+                    }
+                    index(blob.getFileName().toString(), Files.size(blob));
+                    blobs++;
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read blob directory " + shard + ": " + e.getMessage());
+            }
+        }
+        System.out.println("Blob store: " + blobs + " blobs" + (removed > 0 ? ", removed " + removed + " unused" : ""));
+    }
+
+    /**
+     * Stores content as it streams in, hashing it on the way.
+     *
+     * @param expected The digests the sender announced (see {@link Digests#verify}), or null.
+     * @return The blob, new or existing.
+     * @throws IllegalArgumentException If the content does not match the expected digests;
+     *                                  nothing is stored then.
+     */
+    public Blob store(Content content, String expected) throws IOException {
+        Digests.Digester digester = new Digests.Digester();
+        File temp = newTempFile();
+        Digests digests;
+        try {
+            long size;
+            try (OutputStream out = Digests.digesting(
+                    new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024), digester)) {
+                size = content.writeTo(out);
+            }
+            digests = digester.finish();
+            digests.verify(expected);
+            return commit(temp, digests, size);
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes over a complete file whose digests are already known. The file is moved into
+     * the store, or deleted if the content is already there.
+     */
+    public Blob adopt(File file, Digests digests) throws IOException {
+        return commit(file, digests, file.length());
+    }
+
+    private synchronized Blob commit(File file, Digests digests, long size) throws IOException {
+        String hash = digests.getSha256();
+        File blob = blobFile(hash);
+        if (blob.exists()) {
+            if (isIntact(hash, blob, size)) {
+                Files.delete(file.toPath());
+                return new Blob(hash, size, true, digests);
+            }
+            drop(hash, blob);
+        }
+        blob.getParentFile().mkdirs();
+        Files.move(file.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        index(hash, size);
+        Digests.remember(blob, size, blob.lastModified(), digests);
+        return new Blob(hash, size, false, digests);
+    }
+
+    /**
+     * @return The stored blob with this hash and size, or null.
+     */
+    public Blob find(String hash, long size) {
+        if (hash == null || !isHash(hash)) {
+            return null;
+        }
+        hash = hash.toLowerCase();
+        Set<String> hashes = bySize.get(size);
+        File blob = blobFile(hash);
+        if (hashes == null || !hashes.contains(hash) || !blob.isFile()) {
+            return null;
+        }
+        if (!isIntact(hash, blob, size)) {
+            synchronized (this) {
+                drop(hash, blob);
+            }
+            return null;
+        }
+        return new Blob(hash, size, true, Digests.cached(blob, size, blob.lastModified()));
+    }
+
+    /**
+     * @return true if the blob still holds the content it is named after. A received file
+     *         may have been edited in place, which changes the blob it is linked to.
+     */
+    private boolean isIntact(String hash, File blob, long size) {
+        long modified = blob.lastModified();
+        if (blob.length() != size) {
+            return false;
+        }
+        Digests digests = Digests.cached(blob, size, modified);
+        if (digests == null) {
+            Digests.Digester digester = new Digests.Digester();
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = new FileInputStream(blob)) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    digester.update(buffer, 0, n);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+            if (digester.length() != size || blob.lastModified() != modified) {
+                return false; // Changed while being read
+            }
+            digests = digester.finish();
+            Digests.remember(blob, size, modified, digests, false);
+        }
+        return digests.getSha256().equals(hash);
+    }
+
+    // Leaves the received files that link to the blob as they are
+    private void drop(String hash, File blob) {
+        for (Set<String> hashes : bySize.values()) {
+            hashes.remove(hash);
+        }
+        if (blob.delete()) {
+            System.out.println("Blob " + hash + " was changed through a received file; removed from the store");
+        }
+    }
+
+    /**
+     * @return true if some stored content has this size, so an upload of it may be a duplicate.
+     */
+    public boolean hasSize(long size) {
+        Set<String> hashes = bySize.get(size);
+        return hashes != null && !hashes.isEmpty();
+    }
+
+    /**
+     * Makes a blob appear in the uploads folder under a name. If the name already shows
+     * this content it is reused; if it shows something else, a numbered name is used.
+     *
+     * @param name A sanitized file name.
+     * @return The received file.
+     */
+    public synchronized File link(Blob blob, String name) throws IOException {
+        Path source = blobFile(blob.getHash()).toPath();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; ; i++) {
+            File target = new File(uploadsDir, i == 1 ? name : base + " (" + i + ")" + ext);
+            if (target.exists()) {
+                if (Files.isSameFile(target.toPath(), source)) {
+                    return target;
+                }
+                continue;
+            }
+            try {
+                Files.createLink(target.toPath(), source);
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            } catch (UnsupportedOperationException | IOException e) {
+                // No hard links on this file system (e.g. FAT); fall back to a copy
+                Files.copy(source, target.toPath());
+            }
+            if (!countsLinks) {
+                links.setProperty(target.getName(), blob.getHash());
+                saveLinks();
+            }
+            return target;
+        }
+    }
+
+    /**
+     * @return A new file in the store's scratch directory, for content that is still arriving.
+     */
+    public File newTempFile() throws IOException {
+        tempDir.mkdirs();
+        // Not createTempFile: its owner-only permissions would carry over to the received file
+        while (true) {
+            File temp = new File(tempDir, "upload-" + UUID.randomUUID() + ".tmp");
+            if (temp.createNewFile()) {
+                return temp;
+            }
+        }
+    }
+
+    private File blobFile(String hash) {
+        return new File(new File(blobDir, hash.substring(0, 2)), hash);
+    }
+
+    private void index(String hash, long size) {
+        bySize.computeIfAbsent(size, s -> ConcurrentHashMap.newKeySet()).add(hash);
+    }
+
+    /**
+     * @return false if only the store itself links to the blob.
+     */
+    private static boolean isReferenced(Path blob) {
+        try {
+            return ((Number) Files.getAttribute(blob, "unix:nlink")).intValue() > 1;
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return Whether the file system reports link counts (not on Windows, for one).
+     */
+    private static boolean countsLinks(Path dir) {
+        try {
+            Files.getAttribute(dir, "unix:nlink");
+            return true;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Reads the recorded received files, forgets those the host deleted or replaced, and
+     * returns the hashes still in use.
+     */
+    private Set<String> loadLinks() {
+        links.clear();
+        if (linksFile.isFile()) {
+            try (FileInputStream in = new FileInputStream(linksFile)) {
+                links.load(in);
+            } catch (IOException e) {
+                System.err.println("Could not read " + linksFile + ": " + e.getMessage());
+            }
+        }
+        Set<String> referenced = new HashSet<>();
+        for (String name : links.stringPropertyNames()) {
+            String hash = links.getProperty(name);
+            File received = new File(uploadsDir, name);
+            File blob = isHash(hash) ? blobFile(hash) : null;
+            if (blob != null && received.isFile() && isCopyOf(received, blob)) {
+                referenced.add(hash);
+            } else {
+                links.remove(name);
+            }
+        }
+        try {
+            saveLinks();
+        } catch (IOException e) {
+            System.err.println("Could not write " + linksFile + ": " + e.getMessage());
+        }
+        return referenced;
+    }
+
+    // The same file, or for copies at least the same size
+    private static boolean isCopyOf(File received, File blob) {
+        try {
+            return Files.isSameFile(received.toPath(), blob.toPath()) || received.length() == blob.length();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void saveLinks() throws IOException {
+        blobDir.mkdirs();
+        File tmp = new File(blobDir, LINKS_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            links.store(out, "LanCast received files");
+        }
+        Files.move(tmp.toPath(), linksFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean isHash(String s) {
+        if (s.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
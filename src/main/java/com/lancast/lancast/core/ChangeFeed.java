@@ -0,0 +1,197 @@
+package com.lancast.lancast.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pushes changes to web clients as Server-Sent Events ({@code GET /api/events}).
+ * <p>
+ * Each change is encoded once into an event frame and kept in a small ring, so the cost
+ * of publishing does not depend on the number of subscribers. A subscriber is just a
+ * parked virtual thread waiting for the sequence number to move, which keeps thousands
+ * of idle pages cheap. A client that reconnects with {@code Last-Event-ID} gets the
+ * events it missed, or a {@code resync} event if they are no longer in the ring.
+ */
+public class ChangeFeed implements HttpHandler {
+
+    private static final int HISTORY = 512;
+    private static final long HEARTBEAT_MILLIS = 15_000;
+    private static final int MAX_SUBSCRIBERS = 10_000;
+    private static final byte[] HEARTBEAT = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESYNC = "event: resync\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    private final byte[][] ring = new byte[HISTORY][];
+    private final AtomicInteger subscribers = new AtomicInteger();
+    // Event IDs are unique to this run, so a client reconnecting after a restart resyncs
+    private final long epoch = System.currentTimeMillis() / 1000 * 1_000_000;
+    private long sequence = epoch;
+    private boolean closed;
+
+    /**
+     * Publishes an event to every subscriber.
+     *
+     * @param event The event name, e.g. {@code files}.
+     * @param json  The event data, a single-line JSON value.
+     */
+    public void publish(String event, String json) {
+        lock.lock();
+        try {
+            sequence++;
+            String frame = "id: " + sequence + "\nevent: " + event + "\ndata: " + json + "\n\n";
+            ring[(int) (sequence % HISTORY)] = frame.getBytes(StandardCharsets.UTF_8);
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends all subscriptions, e.g. when the server stops. The feed can be reopened.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void reopen() {
+        lock.lock();
+        try {
+            closed = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.get();
+    }
+
+    @Override
+    public void handle(HttpExchange t) throws IOException {
+        if (!"GET".equals(t.getRequestMethod())) {
+            t.sendResponseHeaders(405, -1);
+            t.close();
+            return;
+        }
+        if (subscribers.incrementAndGet() > MAX_SUBSCRIBERS) {
+            subscribers.decrementAndGet();
+            t.getResponseHeaders().set("Retry-After", "30");
+            t.sendResponseHeaders(503, -1);
+            t.close();
+            return;
+        }
+        try {
+            stream(t);
+        } finally {
+            subscribers.decrementAndGet();
+        }
+    }
+
+    private void stream(HttpExchange t) throws IOException {
+        long cursor = current();
+        boolean resync = false;
+        String lastEventId = t.getRequestHeaders().getFirst("Last-Event-ID");
+        if (lastEventId != null) {
+            try {
+                long last = Long.parseLong(lastEventId.trim());
+                if (last <= cursor && cursor - last < HISTORY && last >= epoch) {
+                    cursor = last;
+                } else {
+                    resync = true;
+                }
+            } catch (NumberFormatException e) {
+                resync = true;
+            }
+        }
+
+        t.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        t.getResponseHeaders().set("Cache-Control", "no-cache");
+        t.sendResponseHeaders(200, 0);
+        try (OutputStream os = t.getResponseBody()) {
+            // Tell the browser how long to wait before reconnecting
+            os.write("retry: 3000\n\n".getBytes(StandardCharsets.UTF_8));
+            if (resync) {
+                os.write(RESYNC);
+            }
+            os.flush();
+
+            while (true) {
+                List<byte[]> frames = new ArrayList<>();
+                long next = await(cursor, frames);
+                if (next < 0) {
+                    return; // Feed closed
+                }
+                if (frames.isEmpty() && next == cursor) {
+                    os.write(HEARTBEAT);
+                } else if (frames.isEmpty()) {
+                    os.write(RESYNC); // Fell too far behind
+                } else {
+                    for (byte[] frame : frames) {
+                        os.write(frame);
+                    }
+                }
+                os.flush();
+                cursor = next;
+            }
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+
+    private long current() {
+        lock.lock();
+        try {
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for events after {@code cursor} or for the heartbeat interval to pass.
+     *
+     * @param frames Receives the missed frames; left empty on timeout or if they are gone.
+     * @return The new cursor, or -1 if the feed was closed.
+     */
+    private long await(long cursor, List<byte[]> frames) {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS);
+            while (sequence == cursor && !closed && remaining > 0) {
+                remaining = published.awaitNanos(remaining);
+            }
+            if (closed) {
+                return -1;
+            }
+            if (sequence - cursor > HISTORY - 1) {
+                return sequence;
+            }
+            for (long s = cursor + 1; s <= sequence; s++) {
+                frames.add(ring[(int) (s % HISTORY)]);
+            }
+            return sequence;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package com.lancast.lancast.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manages resumable chunked uploads.
+ * Each upload session owns a pre-sized {@code .part} file and a small properties file
+ * recording which byte ranges have arrived, both under {@code uploads/.partial/}.
+ * Chunks may arrive in any order and concurrently; the state survives a server restart.
+ * <p>
+ * The SHA-256 and CRC32C of the upload are built up as the received data becomes contiguous
+ * from the start, so completing it only hashes what is left, and the finished file goes
+ * into the {@link BlobStore} under that hash. A client can state the digests it expects,
+ * for the whole file and for each chunk, and data that does not match is refused.
+ * <p>
+ * The data file is sized up front, which on some file systems allocates the space before
+ * any data arrives. So an upload must fit in the free space with a margin to spare, each
+ * client may only have a few sessions open, and sessions left idle are dropped.
+ */
+public class ChunkedUploadManager {
+
+    /** Chunk size suggested to clients. */
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    /** Largest chunk accepted in a single request. */
+    public static final long MAX_CHUNK_SIZE = 64L * 1024 * 1024;
+
+    private static final String PARTIAL_DIR = ".partial";
+    private static final long EXPIRY_MILLIS = TimeUnit.DAYS.toMillis(7);
+    // Sessions that never received any data go much sooner
+    private static final long EMPTY_EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_SESSIONS_PER_CLIENT = 16;
+    // Free space left over after any upload
+    private static final long FREE_SPACE_MARGIN = 256L * 1024 * 1024;
+
+    private final File partialDir;
+    private final BlobStore blobs;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * State of one chunked upload.
+     */
+    public static class UploadSession {
+        private final String id;
+        private final String fileName;
+        private final long size;
+        private final String key;
+        // Address of the client that started it
+        private final String client;
+        private final File dataFile;
+        private final File stateFile;
+        // Received ranges as start -> end (exclusive), kept merged
+        private final TreeMap<Long, Long> received = new TreeMap<>();
+        private FileChannel channel;
+        // Digests of the first `hashed` bytes; rebuilt from the file after a restart
+        private Digests.Digester digester;
+        private long hashed;
+        private boolean maybeDuplicate;
+        // The digests the client announced for the whole file, if any
+        private String expected;
+        // Set once the upload is completed or abandoned; its files must not come back
+        private boolean closed;
+        private volatile long lastActive = System.currentTimeMillis();
+
+        UploadSession(String id, String fileName, long size, String key, String client, File dir) {
+            this.id = id;
+            this.fileName = fileName;
+            this.size = size;
+            this.key = key;
+            this.client = client;
+            this.dataFile = new File(dir, id + ".part");
+            this.stateFile = new File(dir, id + ".properties");
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public synchronized long getReceivedBytes() {
+            long total = 0;
+            for (Map.Entry<Long, Long> e : received.entrySet()) {
+                total += e.getValue() - e.getKey();
+            }
+            return total;
+        }
+
+        public synchronized boolean isComplete() {
+            return size == 0 || (received.size() == 1 && received.firstKey() == 0 && received.firstEntry().getValue() == size);
+        }
+
+        /**
+         * @return The received ranges as a JSON array of {@code [start, end)} pairs.
+         */
+        public synchronized String rangesJson() {
+            StringBuilder sb = new StringBuilder("[");
+            for (Map.Entry<Long, Long> e : received.entrySet()) {
+                if (sb.length() > 1) {
+                    sb.append(",");
+                }
+                sb.append("[").append(e.getKey()).append(",").append(e.getValue()).append("]");
+            }
+            return sb.append("]").toString();
+        }
+
+        public String toJson() {
+            return "{\"id\": " + Json.quote(id) + ", \"name\": " + Json.quote(fileName) + ", \"size\": " + size
+                    + ", \"chunkSize\": " + CHUNK_SIZE + ", \"received\": " + rangesJson()
+                    + ", \"complete\": " + isComplete() + ", \"maybeDuplicate\": " + maybeDuplicate + "}";
+        }
+
+        synchronized FileChannel channel() throws IOException {
+            checkOpen();
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+
+        synchronized void closeChannel() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                channel = null;
+            }
+        }
+
+        synchronized void addRange(long start, long end) {
+            checkOpen();
+            Map.Entry<Long, Long> before = received.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+            Map.Entry<Long, Long> next;
+            while ((next = received.ceilingEntry(start)) != null && next.getKey() <= end) {
+                end = Math.max(end, next.getValue());
+                received.remove(next.getKey());
+            }
+            received.put(start, end);
+        }
+
+        /**
+         * Hashes the data that has become contiguous from the start. It was just written,
+         * so it is normally read back from the page cache rather than the disk.
+         */
+        synchronized void advanceDigest() throws IOException {
+            long contiguous = received.isEmpty() || received.firstKey() != 0 ? 0 : received.firstEntry().getValue();
+            if (digester == null) {
+                digester = new Digests.Digester();
+                hashed = 0;
+            }
+            if (contiguous <= hashed) {
+                return;
+            }
+            FileChannel ch = channel();
+            ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+            while (hashed < contiguous) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), contiguous - hashed));
+                int n = ch.read(buffer, hashed);
+                if (n < 0) {
+                    throw new IOException("Upload data truncated: " + fileName);
+                }
+                buffer.flip();
+                digester.update(buffer);
+                hashed += n;
+            }
+        }
+
+        /**
+         * @return The digests of the complete upload.
+         */
+        synchronized Digests finishDigest() throws IOException {
+            advanceDigest();
+            Digests digests = digester.finish();
+            digester = null; // Spent; hashed again from the file if it is needed once more
+            return digests;
+        }
+
+        synchronized void save() throws IOException {
+            checkOpen();
+            Properties props = new Properties();
+            props.setProperty("name", fileName);
+            props.setProperty("size", String.valueOf(size));
+            if (key != null) {
+                props.setProperty("key", key);
+            }
+            if (client != null) {
+                props.setProperty("client", client);
+            }
+            if (expected != null) {
+                props.setProperty("expected", expected);
+            }
+            StringBuilder ranges = new StringBuilder();
+            for (Map.Entry<Long, Long> e : received.entrySet()) {
+                if (ranges.length() > 0) {
+                    ranges.append(",");
+                }
+                ranges.append(e.getKey()).append("-").append(e.getValue());
+            }
+            props.setProperty("received", ranges.toString());
+
+            File tmp = new File(stateFile.getParentFile(), id + ".properties.tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                props.store(out, "LanCast upload session");
+            }
+            Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        static UploadSession load(File stateFile) throws IOException {
+            Properties props = new Properties();
+            try (FileInputStream in = new FileInputStream(stateFile)) {
+                props.load(in);
+            }
+            String name = stateFile.getName();
+            String id = name.substring(0, name.length() - ".properties".length());
+            UploadSession session = new UploadSession(id, props.getProperty("name"),
+                    Long.parseLong(props.getProperty("size", "0")), props.getProperty("key"),
+                    props.getProperty("client"), stateFile.getParentFile());
+            session.expected = props.getProperty("expected");
+            session.lastActive = stateFile.lastModified();
+            String ranges = props.getProperty("received", "");
+            for (String range : ranges.split(",")) {
+                int dash = range.indexOf('-');
+                if (dash > 0) {
+                    session.addRange(Long.parseLong(range.substring(0, dash)), Long.parseLong(range.substring(dash + 1)));
+                }
+            }
+            return session;
+        }
+
+        /**
+         * @return Whether the session has been left alone long enough to be dropped.
+         */
+        boolean isExpired(long now) {
+            long idle = now - lastActive;
+            return idle > EXPIRY_MILLIS || (idle > EMPTY_EXPIRY_MILLIS && getReceivedBytes() == 0);
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("Upload already completed or cancelled");
+            }
+        }
+
+        /**
+         * Marks the upload finished and closes its data file; later writes are refused.
+         */
+        synchronized void close() {
+            closed = true;
+            closeChannel();
+        }
+
+        synchronized void delete() {
+            close();
+            dataFile.delete();
+            stateFile.delete();
+        }
+    }
+
+    /**
+     * @param uploadsDir The directory completed uploads are stored in.
+     * @param blobs      The store completed uploads go into.
+     */
+    public ChunkedUploadManager(File uploadsDir, BlobStore blobs) {
+        this.partialDir = new File(uploadsDir, PARTIAL_DIR);
+        this.blobs = blobs;
+    }
+
+    /**
+     * Loads sessions left over from a previous run and drops ones that have gone stale.
+     */
+    public void loadSessions() {
+        sessions.clear();
+        if (!partialDir.exists()) {
+            partialDir.mkdirs();
+        }
+        File[] files = partialDir.listFiles((dir, name) -> name.endsWith(".properties"));
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File f : files) {
+            try {
+                UploadSession session = UploadSession.load(f);
+                if (session.isExpired(now) || !session.dataFile.exists()) {
+                    session.delete();
+                    System.out.println("Discarded stale upload: " + session.getFileName());
+                    continue;
+                }
+                session.maybeDuplicate = blobs.hasSize(session.getSize());
+                sessions.put(session.getId(), session);
+                System.out.println("Resumable upload: " + session.getFileName() + " ("
+                        + session.getReceivedBytes() + "/" + session.getSize() + " bytes)");
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Could not load upload session " + f.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates an upload session, or returns the existing one with the same client key
+     * so a client can pick up where it left off.
+     *
+     * @param fileName The sanitized target file name.
+     * @param size     The total file size in bytes.
+     * @param key      An optional client fingerprint of the file (e.g. name, size and mtime).
+     * @param expected The digests the client expects for the file (see {@link Digests#verify}), or null.
+     * @param client   The address of the client.
+     * @throws IllegalArgumentException If the file would not fit in the free space.
+     * @throws IllegalStateException    If the client already has too many uploads open.
+     */
+    public synchronized UploadSession create(String fileName, long size, String key, String expected, String client)
+            throws IOException {
+        expireIdle();
+        if (key != null) {
+            for (UploadSession s : sessions.values()) {
+                if (key.equals(s.getKey()) && s.getSize() == size && s.getFileName().equals(fileName)) {
+                    if (expected != null && !expected.equals(s.expected)) {
+                        synchronized (s) {
+                            s.expected = expected;
+                            s.save();
+                        }
+                    }
+                    return s;
+                }
+            }
+        }
+        partialDir.mkdirs();
+        if (size > partialDir.getUsableSpace() - FREE_SPACE_MARGIN) {
+            throw new IllegalArgumentException("Not enough free space for " + fileName);
+        }
+        int open = 0;
+        for (UploadSession s : sessions.values()) {
+            if (s.client != null && s.client.equals(client)) {
+                open++;
+            }
+        }
+        if (open >= MAX_SESSIONS_PER_CLIENT) {
+            throw new IllegalStateException("Too many uploads in progress");
+        }
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder id = new StringBuilder();
+        for (byte b : bytes) {
+            id.append(String.format("%02x", b));
+        }
+
+        UploadSession session = new UploadSession(id.toString(), fileName, size, key, client, partialDir);
+        session.expected = expected;
+        // Same size as something already received: the client may want to send its hash first
+        session.maybeDuplicate = blobs.hasSize(size);
+        try (RandomAccessFile raf = new RandomAccessFile(session.dataFile, "rw")) {
+            raf.setLength(size);
+        }
+        session.save();
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    /**
+     * Drops sessions nobody has written to in a while, so their pre-sized files do not hold
+     * disk space until the next restart. Run whenever a session is created.
+     */
+    private void expireIdle() {
+        long now = System.currentTimeMillis();
+        for (UploadSession session : sessions.values()) {
+            if (session.isExpired(now)) {
+                abort(session);
+                System.out.println("Discarded idle upload: " + session.getFileName());
+            }
+        }
+    }
+
+    public UploadSession get(String id) {
+        return id == null ? null : sessions.get(id);
+    }
+
+    /**
+     * Writes one chunk at the given offset and records its range once it is on disk.
+     *
+     * @param in     The chunk body.
+     * @param offset The position of the chunk within the file.
+     * @param length The declared chunk length.
+     * @param digest The digests the client sent for the chunk ({@code Content-Digest}), or null.
+     *               A chunk that does not match, or is cut short, is not recorded.
+     * @return The number of bytes written.
+     * @throws IllegalArgumentException If the chunk does not fit the file or does not match its digest.
+     */
+    public long writeChunk(UploadSession session, InputStream in, long offset, long length, String digest)
+            throws IOException {
+        if (offset < 0 || length < 0 || length > MAX_CHUNK_SIZE || offset + length > session.getSize()) {
+            throw new IllegalArgumentException("Chunk outside file bounds");
+        }
+        session.lastActive = System.currentTimeMillis();
+        FileChannel channel = session.channel();
+        ReadableByteChannel source = Channels.newChannel(in);
+        Digests.Digester digester = null;
+        if (digest != null) {
+            // Checked as the chunk is copied in; the bytes pass through a buffer here anyway
+            digester = new Digests.Digester();
+            source = Digests.digesting(source, digester);
+        }
+        long written = 0;
+        while (written < length) {
+            long n = channel.transferFrom(source, offset + written, length - written);
+            if (n <= 0) {
+                break; // Client went away; keep what arrived
+            }
+            written += n;
+        }
+        if (digester != null) {
+            if (written < length) {
+                return 0; // Cannot be checked; the client sends the chunk again
+            }
+            digester.finish().verify(digest);
+        }
+        if (written > 0) {
+            channel.force(false);
+            // At once, so an abort or completion in between cannot bring the session back
+            synchronized (session) {
+                session.addRange(offset, offset + written);
+                session.save();
+                session.advanceDigest();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Moves a fully received upload into the blob store and forgets the session.
+     *
+     * @param expected Digests the client expects, in addition to any given when the upload
+     *                 was created, or null.
+     * @return The stored blob.
+     * @throws IllegalStateException    If some ranges are still missing.
+     * @throws IllegalArgumentException If the file does not match the expected digests.
+     *                                  The upload is discarded then.
+     */
+    public BlobStore.Blob complete(UploadSession session, String expected) throws IOException {
+        Digests digests;
+        synchronized (session) {
+            session.checkOpen();
+            if (!session.isComplete()) {
+                throw new IllegalStateException("Upload incomplete");
+            }
+            digests = session.finishDigest();
+            try {
+                digests.verify(session.expected);
+                digests.verify(expected);
+            } catch (IllegalArgumentException e) {
+                abort(session);
+                throw e;
+            }
+            session.close(); // Claimed: a second complete or a late chunk is refused
+        }
+        BlobStore.Blob blob;
+        try {
+            blob = blobs.adopt(session.dataFile, digests);
+        } catch (IOException | RuntimeException e) {
+            abort(session);
+            throw e;
+        }
+        session.stateFile.delete();
+        sessions.remove(session.getId());
+        return blob;
+    }
+
+    /**
+     * Completes an upload without its data, if the client's hash names content that is
+     * already stored.
+     *
+     * @param sha256 The SHA-256 of the file according to the client.
+     * @return The stored blob, or null if there is no such content and the data is needed.
+     */
+    public BlobStore.Blob completeDuplicate(UploadSession session, String sha256) {
+        BlobStore.Blob blob = blobs.find(sha256, session.getSize());
+        if (blob != null) {
+            abort(session);
+        }
+        return blob;
+    }
+
+    /**
+     * Abandons an upload and deletes its partial data.
+     */
+    public void abort(UploadSession session) {
+        sessions.remove(session.getId());
+        session.delete();
+    }
+
+    /**
+     * @return Snapshot of the sessions still in progress.
+     */
+    public List<UploadSession> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+}
@@ -0,0 +1,94 @@
+package com.lancast.lancast.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Recognizes files whose content is already compressed (photos, video, audio, archives),
+ * so they are not run through DEFLATE again for nothing. Checks the extension first and
+ * falls back to the file's leading magic bytes.
+ */
+public final class Compressibility {
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            // Images
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "avif", "jxl",
+            // Video. Not "ts": TypeScript sources use it too
+            "mp4", "m4v", "mov", "mkv", "webm", "avi", "3gp", "wmv", "flv", "m2ts",
+            // Audio
+            "mp3", "m4a", "aac", "ogg", "oga", "opus", "flac", "wma",
+            // Archives and packages
+            "zip", "7z", "rar", "gz", "tgz", "bz2", "xz", "zst", "lz4", "br",
+            "apk", "aab", "ipa", "jar", "war", "xapk", "appx", "msix", "dmg",
+            // ZIP-based documents
+            "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub",
+            // Fonts
+            "woff", "woff2");
+
+    private static final int SNIFF_BYTES = 16;
+
+    private Compressibility() {
+    }
+
+    /**
+     * @return true if the file is very likely already compressed.
+     */
+    public static boolean isIncompressible(File file) {
+        if (hasCompressedExtension(file.getName())) {
+            return true;
+        }
+        byte[] head = new byte[SNIFF_BYTES];
+        int n;
+        try (InputStream in = new FileInputStream(file)) {
+            n = in.readNBytes(head, 0, head.length);
+        } catch (IOException e) {
+            return false;
+        }
+        return hasCompressedMagic(head, n);
+    }
+
+    static boolean hasCompressedExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @param b The first bytes of a file.
+     * @param n How many of them are valid.
+     */
+    static boolean hasCompressedMagic(byte[] b, int n) {
+        return starts(b, n, 0xFF, 0xD8, 0xFF)                          // JPEG
+                || starts(b, n, 0x89, 'P', 'N', 'G')                    // PNG
+                || starts(b, n, 'G', 'I', 'F', '8')                     // GIF
+                || starts(b, n, 'P', 'K', 0x03, 0x04)                   // ZIP, APK, JAR, Office
+                || starts(b, n, 0x1F, 0x8B)                             // gzip
+                || starts(b, n, '7', 'z', 0xBC, 0xAF, 0x27, 0x1C)       // 7-Zip
+                || starts(b, n, 'R', 'a', 'r', '!')                     // RAR
+                || starts(b, n, 0xFD, '7', 'z', 'X', 'Z', 0x00)         // xz
+                || starts(b, n, 0x28, 0xB5, 0x2F, 0xFD)                 // zstd
+                || starts(b, n, 'B', 'Z', 'h')                          // bzip2
+                || starts(b, n, 0x1A, 0x45, 0xDF, 0xA3)                 // Matroska, WebM
+                || starts(b, n, 'O', 'g', 'g', 'S')                     // Ogg
+                || starts(b, n, 'f', 'L', 'a', 'C')                     // FLAC
+                || starts(b, n, 'I', 'D', '3')                          // MP3 with ID3 tag
+                || (n >= 2 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xE0) == 0xE0) // MPEG audio frame
+                || (n >= 12 && starts(b, n, 'R', 'I', 'F', 'F') && b[8] == 'W' && b[9] == 'E' && b[10] == 'B' && b[11] == 'P')
+                || (n >= 8 && b[4] == 'f' && b[5] == 't' && b[6] == 'y' && b[7] == 'p'); // MP4, MOV, HEIC, AVIF
+    }
+
+    private static boolean starts(byte[] b, int n, int... magic) {
+        if (n < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((b[i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,307 @@
+package com.lancast.lancast.core;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Integrity digests of a file: SHA-256 for a cryptographic check and CRC32C, which the
+ * CPU computes at many gigabytes per second, for a cheap one.
+ * <p>
+ * Digests are computed while the bytes stream through a transfer, never in a pass of
+ * their own, and remembered per file version (path, size and modification time). Once
+ * known they are announced in {@code Repr-Digest} (RFC 9530) ahead of the body, so a
+ * client can check a download, and they appear in the file listings.
+ */
+public final class Digests {
+
+    private static final int CACHE_LIMIT = 100_000;
+    private static final HexFormat HEX = HexFormat.of();
+
+    // Keyed by path, size and modification time, so a changed file is hashed afresh.
+    // Access-ordered, so the eldest entry is the least recently used
+    private static final Map<String, Digests> cache = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Digests> eldest) {
+            return size() > CACHE_LIMIT;
+        }
+    };
+    private static final List<Consumer<File>> listeners = new CopyOnWriteArrayList<>();
+
+    private final byte[] sha256;
+    private final int crc32c;
+
+    /**
+     * Computes both digests over bytes as they pass.
+     */
+    public static final class Digester {
+        private final MessageDigest sha256 = BlobStore.sha256();
+        private final CRC32C crc32c = new CRC32C();
+        private long length;
+
+        public void update(byte[] b, int off, int len) {
+            sha256.update(b, off, len);
+            crc32c.update(b, off, len);
+            length += len;
+        }
+
+        /**
+         * Digests the remaining bytes of the buffer, leaving its position unchanged.
+         */
+        public void update(ByteBuffer buffer) {
+            int remaining = buffer.remaining();
+            sha256.update(buffer.duplicate());
+            crc32c.update(buffer.duplicate());
+            length += remaining;
+        }
+
+        /**
+         * @return The number of bytes digested so far.
+         */
+        public long length() {
+            return length;
+        }
+
+        /**
+         * @return The digests of everything passed in. The digester cannot be used afterwards.
+         */
+        public Digests finish() {
+            return new Digests(sha256.digest(), (int) crc32c.getValue());
+        }
+    }
+
+    private Digests(byte[] sha256, int crc32c) {
+        this.sha256 = sha256;
+        this.crc32c = crc32c;
+    }
+
+    /**
+     * Recreates digests computed earlier, e.g. from the metadata cache.
+     *
+     * @param sha256 The SHA-256 in hex.
+     */
+    static Digests of(String sha256, int crc32c) {
+        return new Digests(HEX.parseHex(sha256), crc32c);
+    }
+
+    /**
+     * @return The SHA-256 in lower-case hex.
+     */
+    public String getSha256() {
+        return HEX.formatHex(sha256);
+    }
+
+    /**
+     * @return The CRC32C as eight hex digits.
+     */
+    public String getCrc32c() {
+        return HEX.toHexDigits(crc32c);
+    }
+
+    int crc32cValue() {
+        return crc32c;
+    }
+
+    /**
+     * @return The value of a {@code Repr-Digest} or {@code Content-Digest} header (RFC 9530).
+     */
+    public String toHeader() {
+        Base64.Encoder base64 = Base64.getEncoder();
+        byte[] crc = ByteBuffer.allocate(4).putInt(crc32c).array();
+        return "sha-256=:" + base64.encodeToString(sha256) + ":, crc32c=:" + base64.encodeToString(crc) + ":";
+    }
+
+    /**
+     * @return The value of the older {@code Digest} header (RFC 3230), for clients that only know that one.
+     */
+    public String toLegacyHeader() {
+        return "SHA-256=" + Base64.getEncoder().encodeToString(sha256);
+    }
+
+    void appendJson(StringBuilder sb) {
+        sb.append(", \"sha256\": \"").append(getSha256()).append('"');
+        sb.append(", \"crc32c\": \"").append(getCrc32c()).append('"');
+    }
+
+    /**
+     * Checks these digests against what a client expects.
+     *
+     * @param expected A {@code Repr-Digest} or {@code Content-Digest} value, or a bare SHA-256
+     *                 in hex; null or empty to expect nothing.
+     * @throws IllegalArgumentException If a digest differs, or none of the expected ones is supported.
+     */
+    public void verify(String expected) {
+        if (expected == null || expected.isBlank()) {
+            return;
+        }
+        expected = expected.trim();
+        if (expected.length() == 64 && expected.indexOf('=') < 0) {
+            expected = "sha-256=:" + Base64.getEncoder().encodeToString(parseHex(expected)) + ":";
+        }
+        boolean checked = false;
+        for (String member : expected.split(",")) {
+            int eq = member.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            String algorithm = member.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+            String value = member.substring(eq + 1);
+            int params = value.indexOf(';');
+            if (params >= 0) {
+                value = value.substring(0, params);
+            }
+            value = value.trim();
+            if (value.length() < 2 || value.charAt(0) != ':' || value.charAt(value.length() - 1) != ':') {
+                throw new IllegalArgumentException("Malformed digest: " + member.trim());
+            }
+            byte[] actual;
+            if (algorithm.equals("sha-256")) {
+                actual = sha256;
+            } else if (algorithm.equals("crc32c")) {
+                actual = ByteBuffer.allocate(4).putInt(crc32c).array();
+            } else {
+                continue; // Unsupported algorithm; the others still count
+            }
+            byte[] wanted;
+            try {
+                wanted = Base64.getDecoder().decode(value.substring(1, value.length() - 1));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Malformed digest: " + member.trim());
+            }
+            if (!MessageDigest.isEqual(actual, wanted)) {
+                throw new IllegalArgumentException("Digest mismatch (" + algorithm + ")");
+            }
+            checked = true;
+        }
+        if (!checked) {
+            throw new IllegalArgumentException("No supported digest algorithm (use sha-256 or crc32c)");
+        }
+    }
+
+    private static byte[] parseHex(String hex) {
+        try {
+            return HEX.parseHex(hex);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed SHA-256: " + hex);
+        }
+    }
+
+    /**
+     * @return The remembered digests of the file as it is now, or null.
+     */
+    public static Digests cached(File file) {
+        return cached(file, file.length(), file.lastModified());
+    }
+
+    /**
+     * @return The remembered digests of this version of the file, or null.
+     */
+    public static Digests cached(File file, long size, long lastModified) {
+        synchronized (cache) {
+            return cache.get(key(file, size, lastModified));
+        }
+    }
+
+    /**
+     * Remembers the digests of one version of a file and tells the listeners, if they are new.
+     */
+    public static void remember(File file, long size, long lastModified, Digests digests) {
+        remember(file, size, lastModified, digests, true);
+    }
+
+    /**
+     * @param notify false when remembering many at once; call {@link #changed(File)} afterwards.
+     */
+    static void remember(File file, long size, long lastModified, Digests digests, boolean notify) {
+        Digests previous;
+        synchronized (cache) {
+            previous = cache.put(key(file, size, lastModified), digests);
+        }
+        if (notify && (previous == null || !Arrays.equals(previous.sha256, digests.sha256))) {
+            changed(file);
+        }
+    }
+
+    /**
+     * Tells the listeners that digests of a file, or of files in a folder, became known.
+     */
+    static void changed(File file) {
+        for (Consumer<File> listener : listeners) {
+            listener.accept(file);
+        }
+    }
+
+    /**
+     * Registers a callback given each file (or folder) whose digests become known, e.g. to
+     * update its listing.
+     */
+    public static void addListener(Consumer<File> listener) {
+        listeners.add(listener);
+    }
+
+    private static String key(File file, long size, long lastModified) {
+        return file.getAbsolutePath() + '\0' + size + '\0' + lastModified;
+    }
+
+    /**
+     * @return A stream that digests everything written through it.
+     */
+    static OutputStream digesting(OutputStream out, Digester digester) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                digester.update(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                digester.update(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * @return A channel that digests everything read through it.
+     */
+    static ReadableByteChannel digesting(ReadableByteChannel in, Digester digester) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int start = dst.position();
+                int n = in.read(dst);
+                if (n > 0) {
+                    ByteBuffer read = dst.duplicate();
+                    read.position(start).limit(start + n);
+                    digester.update(read);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return in.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,359 @@
+package com.lancast.lancast.core;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A set of files offered to web clients, such as the host's shared session or the received uploads.
+ * <p>
+ * The host changes it from the UI thread while any number of request threads read it.
+ * Every file gets a stable ID derived from its path, so files with the same name in
+ * different folders stay distinct and can be found in constant time. Readers work on an
+ * immutable {@link Snapshot}, which also carries the listing JSON; it is built once after
+ * each change, however many clients ask for it.
+ */
+public class FileRegistry {
+
+    // Insertion order, guarded by this
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final Map<String, Entry> byId = new ConcurrentHashMap<>();
+    // First entry with each name, for links that address a file by name
+    private final Map<String, Entry> byName = new ConcurrentHashMap<>();
+    // Distinguishes versions of this instance from those of a previous run
+    private final String epoch = Long.toHexString(System.currentTimeMillis());
+    private long version;
+    private volatile Snapshot snapshot;
+    private volatile ChangeListener listener;
+
+    /**
+     * Told about each change as it is made, with the registry locked, so changes arrive
+     * in version order and each with its own version.
+     */
+    public interface ChangeListener {
+        /**
+         * @param version The version the change produced.
+         * @param op      {@code add} for added or replaced entries, {@code update} for entries
+         *                whose listing changed, such as by newly known digests, {@code remove}
+         *                or {@code reset}.
+         * @param entries The entries concerned; empty for a reset.
+         */
+        void changed(long version, String op, List<Entry> entries);
+    }
+
+    /**
+     * A shared file.
+     */
+    public static final class Entry {
+        private final String id;
+        private final File file;
+        private final long size;
+        private final long lastModified;
+        private final boolean directory;
+        // The listing JSON as last published, guarded by the registry's lock
+        private String json;
+
+        Entry(String id, File file) {
+            this.id = id;
+            this.file = file;
+            this.directory = file.isDirectory();
+            this.size = directory ? 0 : file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getName() {
+            return file.getName();
+        }
+
+        /**
+         * @return The size when the file was added; 0 for a folder.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return true for a shared folder, which is browsed and zipped rather than sent whole.
+         */
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        /**
+         * Appends the listing JSON of this file. Call with the registry locked.
+         */
+        void appendJson(StringBuilder sb) {
+            if (json == null) {
+                json = render();
+            }
+            sb.append(json);
+        }
+
+        private String render() {
+            StringBuilder sb = new StringBuilder(128);
+            sb.append("{\"id\": ");
+            Json.appendQuoted(sb, id);
+            sb.append(", \"name\": ");
+            Json.appendQuoted(sb, getName());
+            sb.append(", \"size\": ").append(size);
+            if (directory) {
+                sb.append(", \"dir\": true");
+            } else {
+                MetadataIndexer.appendJson(sb, file, size, lastModified);
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    /**
+     * An immutable view of the registry at one version.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final String etag;
+        private final List<Entry> entries;
+        private final byte[] json;
+
+        Snapshot(String epoch, long version, List<Entry> entries) {
+            this.version = version;
+            this.etag = "\"" + epoch + "-" + version + "\"";
+            this.entries = Collections.unmodifiableList(entries);
+            StringBuilder sb = new StringBuilder(64 + entries.size() * 80);
+            sb.append('[');
+            for (int i = 0; i < entries.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                entries.get(i).appendJson(sb);
+            }
+            sb.append(']');
+            this.json = sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return A strong validator for the listing JSON.
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        public List<File> getFiles() {
+            List<File> files = new ArrayList<>(entries.size());
+            for (Entry e : entries) {
+                files.add(e.getFile());
+            }
+            return files;
+        }
+
+        public boolean isEmpty() {
+            return entries.isEmpty();
+        }
+
+        /**
+         * @return The listing as UTF-8 JSON. Shared; do not modify.
+         */
+        public byte[] getJson() {
+            return json;
+        }
+    }
+
+    /**
+     * Adds a file unless it is already shared.
+     *
+     * @return The entry for the file, new or existing.
+     */
+    public Entry add(File file) {
+        String id = idOf(file);
+        synchronized (this) {
+            Entry existing = entries.get(id);
+            if (existing != null) {
+                return existing;
+            }
+            Entry entry = new Entry(id, file);
+            entries.put(id, entry);
+            byId.put(id, entry);
+            byName.putIfAbsent(entry.getName(), entry);
+            changed("add", List.of(entry));
+            return entry;
+        }
+    }
+
+    /**
+     * Adds a file, or refreshes the entry of a file that was replaced on disk.
+     *
+     * @return The current entry for the file.
+     */
+    public synchronized Entry put(File file) {
+        String id = idOf(file);
+        Entry entry = new Entry(id, file);
+        Entry previous = entries.put(id, entry);
+        byId.put(id, entry);
+        if (previous == null) {
+            byName.putIfAbsent(entry.getName(), entry);
+        } else {
+            byName.replace(entry.getName(), previous, entry);
+        }
+        changed("add", List.of(entry));
+        return entry;
+    }
+
+    /**
+     * Adds several files as one change.
+     *
+     * @return The entries that were not shared before.
+     */
+    public List<Entry> addAll(Collection<File> files) {
+        List<Entry> added = new ArrayList<>();
+        synchronized (this) {
+            for (File file : files) {
+                String id = idOf(file);
+                if (entries.containsKey(id)) {
+                    continue;
+                }
+                Entry entry = new Entry(id, file);
+                entries.put(id, entry);
+                byId.put(id, entry);
+                byName.putIfAbsent(entry.getName(), entry);
+                added.add(entry);
+            }
+            if (!added.isEmpty()) {
+                changed("add", added);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return The removed entry, or null if the file was not shared.
+     */
+    public synchronized Entry remove(File file) {
+        Entry entry = entries.remove(idOf(file));
+        if (entry == null) {
+            return null;
+        }
+        byId.remove(entry.getId());
+        if (byName.remove(entry.getName(), entry)) {
+            // Let the next file with the same name take over the name
+            for (Entry e : entries.values()) {
+                if (e.getName().equals(entry.getName())) {
+                    byName.put(e.getName(), e);
+                    break;
+                }
+            }
+        }
+        changed("remove", List.of(entry));
+        return entry;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        byId.clear();
+        byName.clear();
+        changed("reset", List.of());
+    }
+
+    public Entry getById(String id) {
+        return id == null ? null : byId.get(id);
+    }
+
+    /**
+     * @return The first shared file with this name, or null.
+     */
+    public Entry getByName(String name) {
+        return name == null ? null : byName.get(name);
+    }
+
+    /**
+     * @return The current contents. Cheap when nothing changed since the last call.
+     */
+    public Snapshot snapshot() {
+        Snapshot s = snapshot;
+        if (s != null) {
+            return s;
+        }
+        synchronized (this) {
+            if (snapshot == null) {
+                snapshot = new Snapshot(epoch, version, new ArrayList<>(entries.values()));
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Starts a new version if the listing of a shared file changed outside the registry,
+     * such as by newly known digests, and reports it as updated. Other files are not looked at.
+     */
+    public void refresh(File file) {
+        String id = idOf(file);
+        synchronized (this) {
+            Entry entry = entries.get(id);
+            if (entry == null || entry.json == null) {
+                return; // Not shared, or not listed yet and rendered fresh when it is
+            }
+            String published = entry.json;
+            entry.json = entry.render();
+            if (!entry.json.equals(published)) {
+                changed("update", List.of(entry));
+            }
+        }
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public void setListener(ChangeListener listener) {
+        this.listener = listener;
+    }
+
+    // Called with the lock held
+    private void changed(String op, List<Entry> entries) {
+        version++;
+        snapshot = null; // Rebuilt by the next reader
+        ChangeListener l = listener;
+        if (l != null) {
+            l.changed(version, op, Collections.unmodifiableList(entries));
+        }
+    }
+
+    /**
+     * @return A short ID that stays the same for a path across sessions and restarts.
+     */
+    static String idOf(File file) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
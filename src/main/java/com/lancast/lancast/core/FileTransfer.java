@@ -0,0 +1,138 @@
+package com.lancast.lancast.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves file regions to a response stream.
+ * When the stream can expose the underlying socket channel the bytes go through
+ * {@link FileChannel#transferTo} (sendfile on most platforms) and never enter the heap.
+ * Otherwise they are read straight from the file channel into one buffer and written
+ * to the raw response stream, without the extra buffered-stream copies.
+ */
+public final class FileTransfer {
+
+    private static final int BUFFER_SIZE = 262144; // 256KB buffer for fast transfers
+
+    /**
+     * The path a transfer took.
+     */
+    public enum Mode {
+        ZERO_COPY("zero-copy"),
+        STREAM("stream");
+
+        private final String label;
+
+        Mode(String label) {
+            this.label = label;
+        }
+
+        public String label() {
+            return label;
+        }
+    }
+
+    /**
+     * Implemented by response streams that sit directly on a blocking channel.
+     * Callers flush the stream before writing to the channel so both stay in order.
+     */
+    public interface ChannelOutput {
+        /**
+         * @return The channel behind this stream, or null if it cannot be written to directly right now.
+         */
+        WritableByteChannel channel();
+
+        /**
+         * Called after bytes were written to {@link #channel()} directly, so the stream can account for them.
+         */
+        default void channelWritten(long bytes) {
+        }
+    }
+
+    private static final AtomicLong zeroCopyTransfers = new AtomicLong();
+    private static final AtomicLong zeroCopyBytes = new AtomicLong();
+    private static final AtomicLong streamTransfers = new AtomicLong();
+    private static final AtomicLong streamBytes = new AtomicLong();
+
+    private FileTransfer() {
+    }
+
+    /**
+     * Reports which path a transfer to this stream would take.
+     */
+    public static Mode modeFor(OutputStream out) {
+        if (out instanceof ChannelOutput && ((ChannelOutput) out).channel() != null) {
+            return Mode.ZERO_COPY;
+        }
+        return Mode.STREAM;
+    }
+
+    /**
+     * Copies {@code length} bytes starting at {@code position} from the file to the stream.
+     *
+     * @return The path the transfer took.
+     * @throws IOException If the file is shorter than expected or the peer goes away.
+     */
+    public static Mode transfer(FileChannel source, long position, long length, OutputStream out)
+            throws IOException {
+        if (modeFor(out) == Mode.ZERO_COPY) {
+            out.flush();
+            ChannelOutput channelOutput = (ChannelOutput) out;
+            WritableByteChannel target = channelOutput.channel();
+            long remaining = length;
+            while (remaining > 0) {
+                long sent = source.transferTo(position, remaining, target);
+                if (sent <= 0 && position >= source.size()) {
+                    throw new IOException("File truncated while sending");
+                }
+                channelOutput.channelWritten(sent);
+                position += sent;
+                remaining -= sent;
+            }
+            zeroCopyTransfers.incrementAndGet();
+            zeroCopyBytes.addAndGet(length);
+            return Mode.ZERO_COPY;
+        }
+
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(length, 1))];
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long remaining = length;
+        while (remaining > 0) {
+            bb.clear();
+            if (remaining < buffer.length) {
+                bb.limit((int) remaining);
+            }
+            int count = source.read(bb, position);
+            if (count == -1) {
+                throw new IOException("File truncated while sending");
+            }
+            out.write(buffer, 0, count);
+            position += count;
+            remaining -= count;
+        }
+        out.flush();
+        streamTransfers.incrementAndGet();
+        streamBytes.addAndGet(length);
+        return Mode.STREAM;
+    }
+
+    public static long getZeroCopyTransfers() {
+        return zeroCopyTransfers.get();
+    }
+
+    public static long getZeroCopyBytes() {
+        return zeroCopyBytes.get();
+    }
+
+    public static long getStreamTransfers() {
+        return streamTransfers.get();
+    }
+
+    public static long getStreamBytes() {
+        return streamBytes.get();
+    }
+}
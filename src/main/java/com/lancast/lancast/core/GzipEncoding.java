@@ -0,0 +1,258 @@
+package com.lancast.lancast.core;
+
+import com.lancast.lancast.database.FileMetadata;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * gzip {@code Content-Encoding} for single-file downloads.
+ * <p>
+ * Only files that will shrink are encoded: already-compressed formats are ruled out by
+ * their type, and anything else by deflating a few small samples first. The first
+ * download of a file is compressed on the fly at the fastest level, which keeps up with
+ * Wi-Fi, and written to a disk cache on the way; later downloads send the cached copy
+ * with a length, ranges and zero-copy like any other file. The cache is bounded and
+ * drops the least recently used copies.
+ */
+final class GzipEncoding {
+
+    /** Smaller files are not worth the encoding overhead. */
+    static final long MIN_SIZE = 1024;
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int SAMPLES = 3;
+    // Encode only if the samples shrink to at most this fraction
+    private static final double MAX_RATIO = 0.9;
+    private static final long CACHE_LIMIT = 1024L * 1024 * 1024;
+    private static final int MAX_VERDICTS = 100_000;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final File dir;
+    // Sampling results per file version
+    private final Map<String, Boolean> verdicts = new ConcurrentHashMap<>();
+
+    /**
+     * @param dir The directory compressed copies are cached in.
+     */
+    GzipEncoding(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return true if an {@code Accept-Encoding} header allows gzip.
+     */
+    static boolean accepts(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String member : acceptEncoding.split(",")) {
+            String[] parts = member.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            if (!coding.equals("gzip") && !coding.equals("x-gzip")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim().toLowerCase(Locale.ROOT);
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The entity tag of the encoded form of a file with the given tag.
+     */
+    static String etag(String identityEtag) {
+        return identityEtag.substring(0, identityEtag.length() - 1) + "-gzip\"";
+    }
+
+    /**
+     * @return true if this version of the file shrinks enough to be worth encoding.
+     */
+    boolean isWorthwhile(File file, long size, long lastModified) {
+        if (size < MIN_SIZE) {
+            return false;
+        }
+        FileMetadata metadata = MetadataIndexer.cached(file, size, lastModified);
+        if (metadata != null ? metadata.isIncompressible() : Compressibility.hasCompressedExtension(file.getName())) {
+            return false;
+        }
+        String key = key(file, size, lastModified);
+        Boolean verdict = verdicts.get(key);
+        if (verdict == null) {
+            verdict = sample(file, size);
+            if (verdicts.size() >= MAX_VERDICTS) {
+                verdicts.clear();
+            }
+            verdicts.put(key, verdict);
+        }
+        return verdict;
+    }
+
+    /**
+     * Deflates samples from the start, middle and end of the file.
+     */
+    private static boolean sample(File file, long size) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        ByteBuffer input = ByteBuffer.allocate(SAMPLE_SIZE);
+        byte[] output = new byte[SAMPLE_SIZE];
+        long in = 0;
+        long out = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long step = Math.max(SAMPLE_SIZE, (size - SAMPLE_SIZE) / (SAMPLES - 1));
+            for (long position = 0; position < size && in < SAMPLES * SAMPLE_SIZE; position += step) {
+                input.clear();
+                int n = channel.read(input, position);
+                if (n <= 0) {
+                    break;
+                }
+                deflater.reset();
+                deflater.setInput(input.array(), 0, n);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out += deflater.deflate(output);
+                }
+                in += n;
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            deflater.end();
+        }
+        return in > 0 && out <= in * MAX_RATIO;
+    }
+
+    /**
+     * @return The cached encoded copy of this version of the file, or null.
+     */
+    File cached(File file, long size, long lastModified) {
+        File copy = cacheFile(file, size, lastModified);
+        if (!copy.isFile()) {
+            return null;
+        }
+        copy.setLastModified(System.currentTimeMillis()); // Recently used
+        return copy;
+    }
+
+    /**
+     * Compresses the file to the stream and, if it is sent completely and did not change
+     * meanwhile, keeps the result in the cache.
+     *
+     * @return The number of encoded bytes written.
+     */
+    long compress(File file, FileChannel source, long size, long lastModified, OutputStream out)
+            throws IOException {
+        dir.mkdirs();
+        File temp = new File(dir, UUID.randomUUID() + ".tmp");
+        long[] written = new long[1];
+        try {
+            try (OutputStream copy = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024)) {
+                OutputStream tee = new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[] { (byte) b }, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        copy.write(b, off, len);
+                        written[0] += len;
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        out.flush();
+                    }
+                };
+                GZIPOutputStream gzip = new GZIPOutputStream(tee, 64 * 1024) {
+                    {
+                        def.setLevel(Deflater.BEST_SPEED);
+                    }
+                };
+                byte[] buffer = new byte[BUFFER_SIZE];
+                ByteBuffer bb = ByteBuffer.wrap(buffer);
+                long position = 0;
+                while (position < size) {
+                    bb.clear().limit((int) Math.min(buffer.length, size - position));
+                    int n = source.read(bb, position);
+                    if (n < 0) {
+                        throw new IOException("File truncated while sending");
+                    }
+                    gzip.write(buffer, 0, n);
+                    position += n;
+                }
+                gzip.close(); // Finishes the stream; the response itself stays open
+                out.flush();
+            }
+            if (file.length() == size && file.lastModified() == lastModified) {
+                Files.move(temp.toPath(), cacheFile(file, size, lastModified).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                prune();
+            }
+        } finally {
+            temp.delete();
+        }
+        return written[0];
+    }
+
+    /**
+     * Deletes the least recently used copies while the cache is over its limit.
+     */
+    private synchronized void prune() {
+        File[] copies = dir.listFiles((d, name) -> name.endsWith(".gz"));
+        if (copies == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : copies) {
+            total += f.length();
+        }
+        if (total <= CACHE_LIMIT) {
+            return;
+        }
+        Arrays.sort(copies, Comparator.comparingLong(File::lastModified));
+        for (File f : copies) {
+            if (total <= CACHE_LIMIT * 3 / 4) {
+                break;
+            }
+            total -= f.length();
+            f.delete();
+        }
+    }
+
+    private File cacheFile(File file, long size, long lastModified) {
+        byte[] hash = BlobStore.sha256().digest(key(file, size, lastModified).getBytes(StandardCharsets.UTF_8));
+        return new File(dir, HexFormat.of().formatHex(hash, 0, 16) + ".gz");
+    }
+
+    private static String key(File file, long size, long lastModified) {
+        return file.getAbsolutePath() + '\0' + size + '\0' + lastModified;
+    }
+}
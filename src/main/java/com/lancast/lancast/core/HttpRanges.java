@@ -0,0 +1,191 @@
+package com.lancast.lancast.core;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Helpers for HTTP byte-range requests (RFC 9110, section 14).
+ * Parses {@code Range} / {@code If-Range} headers and builds the validators
+ * (ETag, Last-Modified) used to decide whether a partial response is safe.
+ */
+public final class HttpRanges {
+
+    /** Upper bound on ranges honoured in one request; more than this is served as a full response. */
+    private static final int MAX_RANGES = 32;
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    private HttpRanges() {
+    }
+
+    /**
+     * An inclusive byte range {@code [start, end]} within a representation.
+     */
+    public static final class Range {
+        public final long start;
+        public final long end;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long length() {
+            return end - start + 1;
+        }
+
+        /**
+         * @return The value for a {@code Content-Range} header, e.g. {@code bytes 0-99/1000}.
+         */
+        public String contentRange(long total) {
+            return "bytes " + start + "-" + end + "/" + total;
+        }
+    }
+
+    /**
+     * Builds a strong ETag from the file's absolute path, size and modification time.
+     * The path is hashed so the ETag does not leak the host's directory layout.
+     *
+     * @param file The file being served.
+     * @return A quoted strong entity tag.
+     */
+    public static String etag(File file) {
+        CRC32 crc = new CRC32();
+        crc.update(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+        return "\"" + Long.toHexString(crc.getValue()) + "-" + Long.toHexString(file.length()) + "-"
+                + Long.toHexString(file.lastModified()) + "\"";
+    }
+
+    /**
+     * Formats a millisecond timestamp as an IMF-fixdate for {@code Last-Modified}.
+     */
+    public static String httpDate(long millis) {
+        return HTTP_DATE.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+
+    /**
+     * Evaluates an {@code If-Range} precondition.
+     *
+     * @param ifRange      The header value, or null if absent.
+     * @param etag         The current strong ETag of the representation.
+     * @param lastModified The current modification time in milliseconds.
+     * @return true if the {@code Range} header should be honoured.
+     */
+    public static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        String value = ifRange.trim();
+        if (value.startsWith("\"")) {
+            // Strong comparison only; weak validators never match.
+            return value.equals(etag);
+        }
+        if (value.startsWith("W/")) {
+            return false;
+        }
+        try {
+            long since = ZonedDateTime.parse(value, HTTP_DATE).toInstant().toEpochMilli();
+            return since / 1000 == lastModified / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a {@code Range} header against a representation of the given length.
+     * Overlapping or adjacent ranges are coalesced and returned in ascending order.
+     *
+     * @param header The header value, or null if absent.
+     * @param length The full length of the representation in bytes.
+     * @return null if the header is absent, malformed or should be ignored (serve the full body);
+     *         an empty list if it is well-formed but unsatisfiable (respond 416);
+     *         otherwise the satisfiable ranges.
+     */
+    public static List<Range> parse(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<Range> ranges = new ArrayList<>();
+        boolean any = false;
+        for (String spec : specs) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            any = true;
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            try {
+                if (first.isEmpty()) {
+                    // Suffix range: the final N bytes.
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new Range(Math.max(0, length - suffix), length - 1));
+                    }
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    if (start < length) {
+                        ranges.add(new Range(start, Math.min(end, length - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (!any) {
+            return null; // No range-spec at all, e.g. "bytes=,"
+        }
+        return coalesce(ranges);
+    }
+
+    private static List<Range> coalesce(List<Range> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        List<Range> sorted = new ArrayList<>(ranges);
+        sorted.sort((a, b) -> Long.compare(a.start, b.start));
+        List<Range> merged = new ArrayList<>();
+        Range current = sorted.get(0);
+        for (int i = 1; i < sorted.size(); i++) {
+            Range next = sorted.get(i);
+            if (next.start <= current.end + 1) {
+                current = new Range(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return Collections.unmodifiableList(merged);
+    }
+}
@@ -1,13 +1,14 @@
 package com.lancast.lancast.core;
 
+import com.lancast.lancast.core.engine.NioServerEngine;
+import com.lancast.lancast.core.engine.ServerEngine;
+import com.lancast.lancast.database.FileMetadata;
 import com.lancast.lancast.database.HistoryManager;
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -16,13 +17,22 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * The Core Engine of LAN-Stream.
@@ -32,11 +42,46 @@ public class LanCast {
 
     private static final int PORT = 8000;
     private static final String UPLOADS_DIR = "uploads";
-    private static HttpServer server;
+    private static ServerEngine server;
     // Session state to hold selected files (shared by host)
-    private static List<File> sessionFiles = new ArrayList<>();
+    private static final FileRegistry sessionFiles = new FileRegistry();
     // Received files (uploaded by web clients)
-    private static List<File> receivedFiles = new ArrayList<>();
+    private static final FileRegistry receivedFiles = new FileRegistry();
+    // Digests, types and image sizes of shared and received files, worked out in the background
+    private static final MetadataIndexer metadata = new MetadataIndexer();
+    // Previews of shared and received images
+    private static final Thumbnails thumbnails = new Thumbnails(new File("cache", "thumbnails"));
+    // gzip-encoded copies of downloaded files
+    private static final GzipEncoding gzip = new GzipEncoding(new File("cache", "gzip"));
+    // Content of received files, stored once however often it is sent
+    private static BlobStore blobs;
+    // Resumable uploads in progress
+    private static ChunkedUploadManager chunkedUploads;
+    // Bounds concurrent transfers; requests beyond the limit queue or get a 503
+    private static final AdmissionController admission;
+    // Shapes transfer bandwidth per client and globally
+    private static final BandwidthManager bandwidth = new BandwidthManager();
+    // Pushes session and upload changes to connected pages
+    private static final ChangeFeed changes = new ChangeFeed();
+    private static final String FILES_EVENT = "files";
+    private static final String RECEIVED_EVENT = "received";
+    // Web UI files, served from memory
+    private static final StaticAssets assets = new StaticAssets(new File("."));
+
+    static {
+        SettingsManager settings = new SettingsManager();
+        admission = new AdmissionController(settings.getMaxTransfers(), settings.getTransferQueue());
+        applyBandwidthLimits(settings.getClientRateLimit(), settings.getGlobalRateLimit());
+        ZipStreamManager.setParallelism(settings.getZipThreads());
+        applyHistoryOverflow(settings.getHistoryOverflow());
+        sessionFiles.setListener((version, op, entries) -> publishChange(FILES_EVENT, version, op, entries));
+        receivedFiles.setListener((version, op, entries) -> publishChange(RECEIVED_EVENT, version, op, entries));
+        // Listings include digests, so publish the files whose digests downloads and uploads learn
+        Digests.addListener(file -> {
+            sessionFiles.refresh(file);
+            receivedFiles.refresh(file);
+        });
+    }
 
     // --- Control Methods for GUI ---
 
@@ -48,10 +93,30 @@ public class LanCast {
     public static void addFile(File f) {
         if (f != null && f.exists()) {
             sessionFiles.add(f);
+            metadata.submit(List.of(f));
             System.out.println("Added to session: " + f.getName());
         }
     }
 
+    /**
+     * Adds several files to the current session as one change.
+     *
+     * @param files The files to add.
+     */
+    public static void addFiles(List<File> files) {
+        List<File> existing = new ArrayList<>();
+        for (File f : files) {
+            if (f != null && f.exists()) {
+                existing.add(f);
+            }
+        }
+        List<FileRegistry.Entry> added = sessionFiles.addAll(existing);
+        metadata.submit(existing);
+        for (FileRegistry.Entry e : added) {
+            System.out.println("Added to session: " + e.getName());
+        }
+    }
+
     /**
      * Removes a file from the current session.
      * 
@@ -72,6 +137,72 @@ public class LanCast {
         System.out.println("Session cleared.");
     }
 
+    /**
+     * Publishes a change to a registry. Called by the registry as it makes the change, so
+     * the version is the one the change produced.
+     */
+    private static void publishChange(String event, long version, String op, List<FileRegistry.Entry> entries) {
+        StringBuilder json = new StringBuilder("{\"op\": ");
+        Json.appendQuoted(json, op);
+        json.append(", \"version\": ").append(version);
+        if (op.equals("remove")) {
+            json.append(", \"ids\": [");
+            for (int i = 0; i < entries.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                Json.appendQuoted(json, entries.get(i).getId());
+            }
+            json.append(']');
+        } else if (!op.equals("reset")) {
+            json.append(", \"files\": [");
+            for (int i = 0; i < entries.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                entries.get(i).appendJson(json);
+            }
+            json.append(']');
+        }
+        json.append('}');
+        changes.publish(event, json.toString());
+    }
+
+    /**
+     * @return The admission controller, for live statistics and limit changes.
+     */
+    public static AdmissionController getAdmissionController() {
+        return admission;
+    }
+
+    /**
+     * @return The bandwidth manager, for live statistics.
+     */
+    public static BandwidthManager getBandwidthManager() {
+        return bandwidth;
+    }
+
+    /**
+     * Applies new bandwidth limits to running and future transfers.
+     *
+     * @param clientMbps Per-client limit in Mbit/s, 0 for unlimited.
+     * @param globalMbps Total limit in Mbit/s, 0 for unlimited.
+     */
+    public static void applyBandwidthLimits(int clientMbps, int globalMbps) {
+        bandwidth.setLimits(clientMbps * 125_000L, globalMbps * 125_000L);
+    }
+
+    /**
+     * Sets what happens to history rows while the log is behind.
+     *
+     * @param policy {@link SettingsManager#HISTORY_OVERFLOW_BLOCK} or {@link SettingsManager#HISTORY_OVERFLOW_DROP}.
+     */
+    public static void applyHistoryOverflow(String policy) {
+        HistoryManager.getInstance().setOverflowPolicy(SettingsManager.HISTORY_OVERFLOW_DROP.equals(policy)
+                ? HistoryManager.OverflowPolicy.DROP
+                : HistoryManager.OverflowPolicy.BLOCK);
+    }
+
     // --- Server Logic ---
 
     public static void main(String[] args) throws IOException {
@@ -89,44 +220,75 @@ public class LanCast {
         if (!uploadsDir.exists()) {
             uploadsDir.mkdirs();
         }
+        blobs = new BlobStore(uploadsDir);
+        blobs.load();
         // Load existing uploaded files
         loadReceivedFiles();
-
-        server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        // Pick up chunked uploads interrupted by a previous run
+        chunkedUploads = new ChunkedUploadManager(uploadsDir, blobs);
+        chunkedUploads.loadSessions();
+
+        SettingsManager settings = new SettingsManager();
+        admission.setLimits(settings.getMaxTransfers(), settings.getTransferQueue());
+        applyBandwidthLimits(settings.getClientRateLimit(), settings.getGlobalRateLimit());
+        ZipStreamManager.setParallelism(settings.getZipThreads());
+
+        server = ServerEngine.create(settings.getServerEngine(), new InetSocketAddress(PORT));
+        if (server instanceof NioServerEngine) {
+            NioServerEngine nio = (NioServerEngine) server;
+            nio.setSocketBufferSize(settings.getSocketBufferKb() * 1024);
+            nio.setTcpNoDelay(settings.isTcpNoDelay());
+            nio.setIdleTimeoutMillis(settings.getIdleTimeoutSeconds() * 1000L);
+            nio.setMaxRequestsPerConnection(settings.getMaxRequestsPerConnection());
+        }
 
         // Context for the root path (UI)
         server.createContext("/", new RootHandler());
 
         // Context for the download action (ZIP / Bulk)
-        server.createContext("/download", new DownloadHandler());
+        server.createContext("/download", admission.guard(bandwidth.shape(new DownloadHandler())));
 
         // API to get list of files
         server.createContext("/api/files", new FileListHandler());
 
+        // Context for browsing shared folders
+        server.createContext("/api/tree/", new TreeHandler());
+
         // Context to download individual files
-        server.createContext("/files/", new FileDownloadHandler());
+        server.createContext("/files/", admission.guard(bandwidth.shape(new FileDownloadHandler())));
 
         // API to verify PIN
         server.createContext("/api/verify-pin", new PinVerifyHandler());
 
         // API to upload files
-        server.createContext("/api/upload", new FileUploadHandler());
+        server.createContext("/api/upload", admission.guard(bandwidth.shape(new FileUploadHandler())));
+
+        // API for resumable chunked uploads
+        server.createContext("/api/uploads", admission.guard(bandwidth.shape(new ChunkedUploadHandler())));
 
         // API to get list of received files
         server.createContext("/api/received-files", new ReceivedFilesListHandler());
 
+        // Live change feed (Server-Sent Events); not a transfer, so not admission-controlled
+        changes.reopen();
+        server.createContext("/api/events", changes);
+
         // Context to download received files
-        server.createContext("/received-files/", new ReceivedFileDownloadHandler());
+        server.createContext("/received-files/", admission.guard(bandwidth.shape(new ReceivedFileDownloadHandler())));
+
+        // Image previews; small, and bounded by their own pool rather than admission control
+        server.createContext("/thumbnails/", new ThumbnailHandler());
 
-        // Use thread pool for better concurrent performance
-        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        // One virtual thread per request; admission control bounds the actual transfers
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
         server.start();
-        System.out.println("LAN-Stream Core Server started on port " + PORT);
+        System.out.println("LAN-Stream Core Server started on port " + PORT + " (" + server.getName() + " engine)");
         printIpAddresses();
     }
 
     public static void stopServer() {
         if (server != null) {
+            changes.close();
             server.stop(0);
             server = null;
             System.out.println("Server stopped.");
@@ -213,19 +375,13 @@ public class LanCast {
     static class RootHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
-            if (!"GET".equals(t.getRequestMethod())) {
+            String method = t.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
                 sendResponse(t, 405, "Method Not Allowed");
                 return;
             }
 
-            try {
-                byte[] bytes = Files.readAllBytes(Paths.get("index.html"));
-                t.getResponseHeaders().set("Content-Type", "text/html");
-                t.sendResponseHeaders(200, bytes.length);
-                try (OutputStream os = t.getResponseBody()) {
-                    os.write(bytes);
-                }
-            } catch (Exception e) {
+            if (!assets.serve(t, "index.html")) {
                 String response = "Error: index.html not found";
                 sendResponse(t, 200, response);
             }
@@ -243,28 +399,18 @@ public class LanCast {
                 return;
             }
 
-            StringBuilder json = new StringBuilder("[");
-            for (int i = 0; i < sessionFiles.size(); i++) {
-                File f = sessionFiles.get(i);
-                json.append(String.format("{\"name\": \"%s\", \"size\": %d}", f.getName(), f.length()));
-                if (i < sessionFiles.size() - 1) {
-                    json.append(",");
-                }
-            }
-            json.append("]");
-
-            t.getResponseHeaders().set("Content-Type", "application/json");
-            sendResponse(t, 200, json.toString());
+            sendListing(t, sessionFiles.snapshot());
         }
     }
 
     /**
      * Handler for individual file downloads (GET /files/{filename}).
+     * Supports byte ranges so interrupted downloads can resume.
      */
     static class FileDownloadHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
-            if (!"GET".equals(t.getRequestMethod())) {
+            if (!"GET".equals(t.getRequestMethod()) && !"HEAD".equals(t.getRequestMethod())) {
                 sendResponse(t, 405, "Method Not Allowed");
                 return;
             }
@@ -272,44 +418,174 @@ public class LanCast {
             String path = t.getRequestURI().getPath();
             String filename = path.substring("/files/".length()); // Extract filename
 
+            // Files inside a shared folder are addressed as /files/{folder id}/{relative path}
+            String rawPath = t.getRequestURI().getRawPath().substring("/files/".length());
+            int slash = rawPath.indexOf('/');
+            if (slash > 0) {
+                FileRegistry.Entry folder = sessionFiles.getById(rawPath.substring(0, slash));
+                if (folder != null && folder.isDirectory()) {
+                    String relative = decodePath(rawPath.substring(slash + 1));
+                    Path target = SharedFolders.resolve(folder.getFile(), relative);
+                    if (target != null && Files.isRegularFile(target)) {
+                        sendFile(t, target.toFile(), folder.getName() + "/" + relative);
+                    } else {
+                        sendResponse(t, 404, "File Not Found");
+                    }
+                    return;
+                }
+            }
+
             // URL decode the filename
-            filename = java.net.URLDecoder.decode(filename, StandardCharsets.UTF_8);
+            filename = URLDecoder.decode(filename, StandardCharsets.UTF_8);
 
-            File fileToSend = null;
-            for (File f : sessionFiles) {
-                if (f.getName().equals(filename)) {
-                    fileToSend = f;
-                    break;
-                }
+            // Files are addressed by ID; a name still works for older links
+            FileRegistry.Entry entry = sessionFiles.getById(filename);
+            if (entry == null) {
+                entry = sessionFiles.getByName(filename);
             }
 
-            if (fileToSend != null && fileToSend.exists()) {
-                // Log transfer
-                String userAgent = t.getRequestHeaders().getFirst("User-Agent");
-                new HistoryManager().logTransfer(
-                        t.getRemoteAddress().getAddress().getHostAddress(),
-                        fileToSend.getName(),
-                        getDeviceType(userAgent));
+            if (entry != null && entry.getFile().isFile()) {
+                sendFile(t, entry.getFile(), entry.getName());
+            } else {
+                sendResponse(t, 404, "File Not Found");
+            }
+        }
+    }
 
-                t.getResponseHeaders().set("Content-Type", "application/octet-stream");
-                t.getResponseHeaders().set("Content-Disposition",
-                        "attachment; filename=\"" + fileToSend.getName() + "\"");
-                t.sendResponseHeaders(200, fileToSend.length());
-
-                try (java.io.BufferedOutputStream bos = new java.io.BufferedOutputStream(t.getResponseBody(), 262144);
-                        java.io.BufferedInputStream bis = new java.io.BufferedInputStream(
-                                new java.io.FileInputStream(fileToSend), 262144)) {
-                    byte[] buffer = new byte[262144]; // 256KB buffer for fast transfers
-                    int count;
-                    while ((count = bis.read(buffer)) != -1) {
-                        bos.write(buffer, 0, count);
-                    }
-                    bos.flush();
+    /**
+     * API Handler to browse a shared folder a page at a time
+     * (GET /api/tree/{id}?path=sub/folder&amp;after=name&amp;limit=200).
+     */
+    static class TreeHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            if (!"GET".equals(t.getRequestMethod())) {
+                sendResponse(t, 405, "Method Not Allowed");
+                return;
+            }
+
+            String id = t.getRequestURI().getPath().substring("/api/tree/".length());
+            FileRegistry.Entry folder = sessionFiles.getById(id);
+            Map<String, String> query = parseQuery(t.getRequestURI().getRawQuery());
+            String relative = query.getOrDefault("path", "");
+            Path target = folder != null && folder.isDirectory()
+                    ? SharedFolders.resolve(folder.getFile(), relative) : null;
+            if (target == null || !Files.isDirectory(target)) {
+                sendResponse(t, 404, "Folder Not Found");
+                return;
+            }
+
+            int limit;
+            try {
+                limit = Integer.parseInt(query.getOrDefault("limit", String.valueOf(SharedFolders.DEFAULT_PAGE_SIZE)));
+            } catch (NumberFormatException e) {
+                limit = SharedFolders.DEFAULT_PAGE_SIZE;
+            }
+            limit = Math.max(1, Math.min(limit, SharedFolders.MAX_PAGE_SIZE));
+
+            byte[] json = SharedFolders.page(target, relative, query.get("after"), limit);
+            t.getResponseHeaders().set("Content-Type", "application/json");
+            t.getResponseHeaders().set("Cache-Control", "no-cache");
+            t.sendResponseHeaders(200, json.length);
+            try (OutputStream os = t.getResponseBody()) {
+                os.write(json);
+            }
+        }
+    }
+
+    /**
+     * Decodes a URL path segment by segment, keeping the {@code /} separators.
+     */
+    private static String decodePath(String rawPath) {
+        StringBuilder sb = new StringBuilder();
+        for (String segment : rawPath.split("/", -1)) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(URLDecoder.decode(segment.replace("+", "%2B"), StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Handler for image previews (GET /thumbnails/files/{id}, /thumbnails/files/{folder id}/{path}
+     * and /thumbnails/received-files/{id}); the path after {@code /thumbnails} is the file's
+     * download path. Answers {@code 404} for files without a thumbnail and {@code 503} when
+     * too many are being made.
+     */
+    static class ThumbnailHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            if (!"GET".equals(t.getRequestMethod()) && !"HEAD".equals(t.getRequestMethod())) {
+                sendResponse(t, 405, "Method Not Allowed");
+                return;
+            }
+
+            String rawPath = t.getRequestURI().getRawPath().substring("/thumbnails".length());
+            File file = null;
+            if (rawPath.startsWith("/files/")) {
+                rawPath = rawPath.substring("/files/".length());
+                int slash = rawPath.indexOf('/');
+                FileRegistry.Entry entry = sessionFiles.getById(slash > 0 ? rawPath.substring(0, slash) : rawPath);
+                if (entry != null && entry.isDirectory() && slash > 0) {
+                    Path target = SharedFolders.resolve(entry.getFile(),
+                            decodePath(rawPath.substring(slash + 1)));
+                    file = target != null ? target.toFile() : null;
+                } else if (entry != null && slash < 0) {
+                    file = entry.getFile();
                 }
-            } else {
+            } else if (rawPath.startsWith("/received-files/")) {
+                FileRegistry.Entry entry = receivedFiles.getById(rawPath.substring("/received-files/".length()));
+                file = entry != null ? entry.getFile() : null;
+            }
+            if (file == null || !file.isFile()) {
                 sendResponse(t, 404, "File Not Found");
+                return;
+            }
+
+            String etag = HttpRanges.etag(file);
+            etag = etag.substring(0, etag.length() - 1) + "-thumb\"";
+            if (etag.equals(t.getRequestHeaders().getFirst("If-None-Match"))) {
+                setThumbnailCaching(t, etag);
+                t.sendResponseHeaders(304, -1);
+                t.close();
+                return;
+            }
+
+            Thumbnails.Thumbnail thumbnail;
+            try {
+                thumbnail = thumbnails.get(file).join();
+            } catch (RejectedExecutionException e) {
+                t.getResponseHeaders().set("Retry-After", "2");
+                sendResponse(t, 503, "Too many thumbnails requested");
+                return;
+            } catch (CompletionException e) {
+                System.err.println("Thumbnail of " + file.getName() + " failed: " + e.getCause());
+                sendResponse(t, 500, "Thumbnail failed");
+                return;
+            }
+            if (thumbnail.data == null) {
+                sendResponse(t, 404, "No thumbnail");
+                return;
+            }
+            setThumbnailCaching(t, etag);
+            t.getResponseHeaders().set("Content-Type", thumbnail.contentType);
+            if ("HEAD".equals(t.getRequestMethod())) {
+                t.sendResponseHeaders(200, -1);
+                return;
+            }
+            t.sendResponseHeaders(200, thumbnail.data.length);
+            try (OutputStream os = t.getResponseBody()) {
+                os.write(thumbnail.data);
             }
         }
+
+        // Only for a thumbnail actually served; errors must not be cached for a day
+        private static void setThumbnailCaching(HttpExchange t, String etag) {
+            t.getResponseHeaders().set("ETag", etag);
+            // Pages ask with the file's version in the query, so a new version is a new URL
+            t.getResponseHeaders().set("Cache-Control", "private, max-age=86400");
+        }
     }
 
     /**
@@ -319,38 +595,112 @@ public class LanCast {
     static class DownloadHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
-            if (!"POST".equals(t.getRequestMethod()) && !"GET".equals(t.getRequestMethod())) {
+            String method = t.getRequestMethod();
+            if (!"POST".equals(method) && !"GET".equals(method) && !"HEAD".equals(method)) {
                 sendResponse(t, 405, "Method Not Allowed");
                 return;
             }
 
-            if (sessionFiles.isEmpty()) {
+            // One shared folder (or file) by ID, otherwise the whole session
+            String archiveName = "lanstream_files.zip";
+            List<File> files;
+            String id = parseQuery(t.getRequestURI().getRawQuery()).get("id");
+            if (id != null) {
+                FileRegistry.Entry entry = sessionFiles.getById(id);
+                if (entry == null) {
+                    sendResponse(t, 404, "File Not Found");
+                    return;
+                }
+                files = List.of(entry.getFile());
+                archiveName = entry.getName() + ".zip";
+            } else {
+                files = sessionFiles.snapshot().getFiles();
+            }
+            if (files.isEmpty()) {
                 sendResponse(t, 404, "No files selected");
                 return;
             }
 
-            String userAgent = t.getRequestHeaders().getFirst("User-Agent");
-            String deviceType = getDeviceType(userAgent);
-            String clientIp = t.getRemoteAddress().getAddress().getHostAddress();
-            HistoryManager historyManager = new HistoryManager();
-
-            // Log each file individually
-            for (File f : sessionFiles) {
-                historyManager.logTransfer(clientIp, f.getName(), deviceType);
+            t.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + archiveName + "\"");
+            if (SettingsManager.ARCHIVE_EXACT.equals(new SettingsManager().getArchiveMode())) {
+                sendArchive(t, ZipArchive.of(files));
+                return;
             }
 
             t.getResponseHeaders().set("Content-Type", "application/zip");
-            t.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"lanstream_files.zip\"");
+            if ("HEAD".equals(method)) {
+                t.sendResponseHeaders(200, -1);
+                return;
+            }
+            logTransfers(t, files);
             t.sendResponseHeaders(200, 0); // Chunked encoding
 
             try (OutputStream os = t.getResponseBody()) {
-                ZipStreamManager.streamZip(sessionFiles, os);
+                ZipStreamManager.streamZip(files, os);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * Sends a ZIP laid out ahead of time, with its exact length and support for resuming.
+     */
+    private static void sendArchive(HttpExchange t, ZipArchive archive) throws IOException {
+        long length = archive.length();
+        boolean headOnly = "HEAD".equals(t.getRequestMethod());
+        t.getResponseHeaders().set("ETag", archive.getEtag());
+
+        // The archive has no meaningful modification date, so only an ETag can validate If-Range
+        List<HttpRanges.Range> ranges = requestedRanges(t, length, archive.getEtag(), Long.MIN_VALUE);
+        if (!headOnly && (ranges == null || (!ranges.isEmpty() && ranges.get(0).start == 0))) {
+            logTransfers(t, archive.getRoots());
+        }
+        try {
+            long sent = sendRanges(t, length, "application/zip", ranges, headOnly, archive::write);
+            if (sent > 0) {
+                System.out.println("Sent ZIP of " + archive.getEntryCount() + " files (" + sent + " of "
+                        + length + " bytes)");
+            }
+        } catch (IOException e) {
+            System.err.println("ZIP download interrupted: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records a download of each file in the history.
+     */
+    private static void logTransfers(HttpExchange t, List<File> files) {
+        String deviceType = getDeviceType(t.getRequestHeaders().getFirst("User-Agent"));
+        String clientIp = t.getRemoteAddress().getAddress().getHostAddress();
+        HistoryManager historyManager = HistoryManager.getInstance();
+        for (File f : files) {
+            historyManager.logTransfer(clientIp, f.getName(), deviceType);
+        }
+    }
+
+    /**
+     * Sends a pre-serialized file listing, or {@code 304} if the client has this version.
+     */
+    private static void sendListing(HttpExchange t, FileRegistry.Snapshot snapshot) throws IOException {
+        String etag = snapshot.getEtag();
+        t.getResponseHeaders().set("Content-Type", "application/json");
+        t.getResponseHeaders().set("Cache-Control", "no-cache");
+        t.getResponseHeaders().set("ETag", etag);
+        // Lets a page line the listing up with the versions in the change feed
+        t.getResponseHeaders().set("X-Version", String.valueOf(snapshot.getVersion()));
+        if (etag.equals(t.getRequestHeaders().getFirst("If-None-Match"))) {
+            t.sendResponseHeaders(304, -1);
+            t.close();
+            return;
+        }
+        byte[] json = snapshot.getJson();
+        t.sendResponseHeaders(200, json.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(json);
+        }
+    }
+
     private static void sendResponse(HttpExchange t, int statusCode, String response) throws IOException {
         byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
         t.sendResponseHeaders(statusCode, bytes.length);
@@ -372,7 +722,7 @@ public class LanCast {
 
             // Read the PIN from the request body
             String submittedPin;
-            try (java.util.Scanner scanner = new java.util.Scanner(t.getRequestBody(), StandardCharsets.UTF_8.name())) {
+            try (Scanner scanner = new Scanner(t.getRequestBody(), StandardCharsets.UTF_8.name())) {
                 submittedPin = scanner.useDelimiter("\\A").hasNext() ? scanner.next() : "";
             }
 
@@ -413,12 +763,15 @@ public class LanCast {
         if (uploadsDir.exists() && uploadsDir.isDirectory()) {
             File[] files = uploadsDir.listFiles();
             if (files != null) {
+                List<File> loaded = new ArrayList<>();
                 for (File f : files) {
                     if (f.isFile()) {
-                        receivedFiles.add(f);
+                        loaded.add(f);
                         System.out.println("Loaded received file: " + f.getName());
                     }
                 }
+                receivedFiles.addAll(loaded);
+                metadata.submit(loaded);
             }
         }
     }
@@ -427,7 +780,7 @@ public class LanCast {
      * Get the list of received files (for GUI access).
      */
     public static List<File> getReceivedFiles() {
-        return new ArrayList<>(receivedFiles);
+        return receivedFiles.snapshot().getFiles();
     }
 
     /**
@@ -449,18 +802,7 @@ public class LanCast {
             }
 
             // Extract boundary from Content-Type
-            String boundary = null;
-            for (String part : contentType.split(";")) {
-                part = part.trim();
-                if (part.startsWith("boundary=")) {
-                    boundary = part.substring("boundary=".length());
-                    // Remove quotes if present
-                    if (boundary.startsWith("\"") && boundary.endsWith("\"")) {
-                        boundary = boundary.substring(1, boundary.length() - 1);
-                    }
-                    break;
-                }
-            }
+            String boundary = MultipartParser.boundaryOf(contentType);
 
             if (boundary == null) {
                 sendResponse(t, 400, "Missing boundary in Content-Type");
@@ -468,96 +810,216 @@ public class LanCast {
             }
 
             try {
-                // Read the entire request body
-                InputStream is = t.getRequestBody();
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                byte[] buffer = new byte[262144]; // 256KB buffer for fast uploads
-                int len;
-                while ((len = is.read(buffer)) != -1) {
-                    baos.write(buffer, 0, len);
-                }
-                byte[] body = baos.toByteArray();
-
-                // Parse multipart data
-                String bodyStr = new String(body, StandardCharsets.ISO_8859_1);
-                String[] parts = bodyStr.split("--" + boundary);
+                // Stream each part straight to disk; memory use does not grow with upload size
+                MultipartParser parser = new MultipartParser(t.getRequestBody(), boundary);
+                MultipartParser.Part part;
 
                 int uploadedCount = 0;
-                for (String part : parts) {
-                    if (part.trim().isEmpty() || part.equals("--"))
-                        continue;
-
-                    // Find the filename
-                    int filenameStart = part.indexOf("filename=\"");
-                    if (filenameStart == -1)
-                        continue;
-                    filenameStart += "filename=\"".length();
-                    int filenameEnd = part.indexOf("\"", filenameStart);
-                    if (filenameEnd == -1)
-                        continue;
-                    String filename = part.substring(filenameStart, filenameEnd);
-
-                    if (filename.isEmpty())
-                        continue;
-
-                    // Find the start of file data (after double CRLF)
-                    int dataStart = part.indexOf("\r\n\r\n");
-                    if (dataStart == -1)
-                        continue;
-                    dataStart += 4;
-
-                    // Find where in the original byte array this part starts
-                    String partHeader = bodyStr.substring(0, bodyStr.indexOf(part) + dataStart);
-                    int byteDataStart = partHeader.getBytes(StandardCharsets.ISO_8859_1).length;
-
-                    // Calculate the end (before the trailing CRLF)
-                    String afterPart = part.substring(dataStart);
-                    int byteDataEnd = byteDataStart + afterPart.getBytes(StandardCharsets.ISO_8859_1).length;
-                    // Remove trailing \r\n
-                    if (byteDataEnd >= 2) {
-                        byteDataEnd -= 2;
-                    }
-
-                    // Extract file bytes
-                    byte[] fileData = new byte[byteDataEnd - byteDataStart];
-                    System.arraycopy(body, byteDataStart, fileData, 0, fileData.length);
-
-                    // Save the file
-                    File uploadedFile = new File(UPLOADS_DIR, filename);
-                    try (FileOutputStream fos = new FileOutputStream(uploadedFile)) {
-                        fos.write(fileData);
+                StringBuilder received = new StringBuilder();
+                while ((part = parser.nextPart()) != null) {
+                    String filename = MultipartParser.sanitizeFilename(part.getFilename());
+                    if (filename == null)
+                        continue; // Plain form field or empty file input; skipped by nextPart()
+
+                    // A part may say what it should hash to; it is refused, not stored, if it does not
+                    String expected = part.getHeader("Content-Digest");
+                    if (expected == null) {
+                        expected = part.getHeader("Repr-Digest");
                     }
 
-                    // Add to received files list
-                    if (!receivedFiles.contains(uploadedFile)) {
-                        receivedFiles.add(uploadedFile);
+                    // Save the file, hashed on the way in; known content is not kept twice
+                    BlobStore.Blob blob = blobs.store(parser::transferBody, expected);
+                    File uploadedFile = receive(t, blob, filename, "");
+                    if (uploadedCount > 0) {
+                        received.append(',');
                     }
-
-                    // Log the upload
-                    String userAgent = t.getRequestHeaders().getFirst("User-Agent");
-                    new HistoryManager().logTransfer(
-                            t.getRemoteAddress().getAddress().getHostAddress(),
-                            "UPLOADED: " + filename,
-                            getDeviceType(userAgent));
-
+                    appendReceivedJson(received, uploadedFile, blob);
                     uploadedCount++;
-                    System.out.println("Received file: " + filename + " (" + fileData.length + " bytes)");
                 }
 
                 if (uploadedCount > 0) {
                     t.getResponseHeaders().set("Content-Type", "application/json");
-                    sendResponse(t, 200, "{\"success\": true, \"count\": " + uploadedCount + "}");
+                    sendResponse(t, 200, "{\"success\": true, \"count\": " + uploadedCount
+                            + ", \"files\": [" + received + "]}");
                 } else {
                     sendResponse(t, 400, "{\"success\": false, \"error\": \"No files uploaded\"}");
                 }
 
+            } catch (IllegalArgumentException e) {
+                sendResponse(t, 400, "{\"success\": false, \"error\": " + Json.quote(e.getMessage()) + "}");
             } catch (Exception e) {
                 e.printStackTrace();
-                sendResponse(t, 500, "{\"success\": false, \"error\": \"" + e.getMessage() + "\"}");
+                sendResponse(t, 500, "{\"success\": false, \"error\": " + Json.quote(e.getMessage()) + "}");
+            }
+        }
+    }
+
+    /**
+     * Makes a stored upload appear among the received files, announces and logs it.
+     *
+     * @param how Extra detail for the console log, e.g. ", chunked".
+     * @return The received file.
+     */
+    private static File receive(HttpExchange t, BlobStore.Blob blob, String name, String how) throws IOException {
+        File uploadedFile = blobs.link(blob, name);
+        if (blob.getDigests() != null) {
+            Digests.remember(uploadedFile, uploadedFile.length(), uploadedFile.lastModified(), blob.getDigests());
+        }
+        receivedFiles.put(uploadedFile);
+        metadata.submit(List.of(uploadedFile));
+
+        String userAgent = t.getRequestHeaders().getFirst("User-Agent");
+        HistoryManager.getInstance().logTransfer(
+                t.getRemoteAddress().getAddress().getHostAddress(),
+                "UPLOADED: " + uploadedFile.getName(),
+                getDeviceType(userAgent));
+        System.out.println("Received file: " + uploadedFile.getName() + " (" + blob.getSize() + " bytes" + how
+                + (blob.isExisting() ? ", duplicate of stored content" : "") + ")");
+        return uploadedFile;
+    }
+
+    /**
+     * Describes a received file for an upload response, with its digests so the client can
+     * confirm what arrived.
+     */
+    private static void appendReceivedJson(StringBuilder sb, File file, BlobStore.Blob blob) {
+        sb.append("{\"name\": ");
+        Json.appendQuoted(sb, file.getName());
+        sb.append(", \"size\": ").append(blob.getSize());
+        if (blob.getDigests() != null) {
+            blob.getDigests().appendJson(sb);
+        } else {
+            sb.append(", \"sha256\": \"").append(blob.getHash()).append('"');
+        }
+        sb.append('}');
+    }
+
+    /**
+     * Handler for resumable chunked uploads (/api/uploads).
+     * <ul>
+     * <li>POST /api/uploads?name=..&amp;size=..&amp;key=..[&amp;sha256=..] creates (or resumes) a
+     * session, or completes at once if content with that hash is already stored</li>
+     * <li>PUT /api/uploads/{id}?offset=N writes one chunk</li>
+     * <li>GET /api/uploads/{id} returns the received ranges</li>
+     * <li>POST /api/uploads/{id}/complete[?sha256=..] finalizes the upload; with a hash of
+     * stored content it succeeds without the data. Sessions report {@code maybeDuplicate}
+     * when stored content has the same size, so the client knows a hash is worth sending</li>
+     * <li>The file's expected digests can be given as {@code sha256} or a {@code Repr-Digest}
+     * header when creating or completing, and each chunk's as a {@code Content-Digest}
+     * header; anything that does not match is refused with a 400</li>
+     * <li>DELETE /api/uploads/{id} aborts it</li>
+     * </ul>
+     */
+    static class ChunkedUploadHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            String method = t.getRequestMethod();
+            String rest = t.getRequestURI().getPath().substring("/api/uploads".length());
+            Map<String, String> query = parseQuery(t.getRequestURI().getRawQuery());
+            t.getResponseHeaders().set("Content-Type", "application/json");
+
+            try {
+                if (rest.isEmpty() || rest.equals("/")) {
+                    if (!"POST".equals(method)) {
+                        sendResponse(t, 405, "Method Not Allowed");
+                        return;
+                    }
+                    String name = MultipartParser.sanitizeFilename(query.get("name"));
+                    long size = Long.parseLong(query.getOrDefault("size", "-1"));
+                    if (name == null || size < 0) {
+                        sendResponse(t, 400, "{\"success\": false, \"error\": \"name and size are required\"}");
+                        return;
+                    }
+                    BlobStore.Blob stored = blobs.find(query.get("sha256"), size);
+                    if (stored != null) {
+                        File uploadedFile = receive(t, stored, name, ", already stored");
+                        sendResponse(t, 200, uploadedJson(uploadedFile, stored, ", \"complete\": true"));
+                        return;
+                    }
+                    ChunkedUploadManager.UploadSession session = chunkedUploads.create(name, size, query.get("key"),
+                            expectedDigest(t, query), t.getRemoteAddress().getAddress().getHostAddress());
+                    sendResponse(t, 200, session.toJson());
+                    return;
+                }
+
+                String[] segments = rest.substring(1).split("/");
+                ChunkedUploadManager.UploadSession session = chunkedUploads.get(segments[0]);
+                if (session == null) {
+                    sendResponse(t, 404, "{\"success\": false, \"error\": \"Unknown upload\"}");
+                    return;
+                }
+
+                if (segments.length == 2 && segments[1].equals("complete") && "POST".equals(method)) {
+                    BlobStore.Blob blob = null;
+                    if (!session.isComplete()) {
+                        // The client hashed its file instead of sending it; fine if we have that content
+                        blob = chunkedUploads.completeDuplicate(session, query.get("sha256"));
+                    }
+                    if (blob == null) {
+                        blob = chunkedUploads.complete(session, expectedDigest(t, query));
+                    }
+                    File uploadedFile = receive(t, blob, session.getFileName(), ", chunked");
+                    sendResponse(t, 200, uploadedJson(uploadedFile, blob, ""));
+                } else if (segments.length == 1 && "PUT".equals(method)) {
+                    String contentLength = t.getRequestHeaders().getFirst("Content-Length");
+                    if (contentLength == null) {
+                        sendResponse(t, 411, "{\"success\": false, \"error\": \"Content-Length required\"}");
+                        return;
+                    }
+                    long offset = Long.parseLong(query.getOrDefault("offset", "0"));
+                    try (InputStream is = t.getRequestBody()) {
+                        chunkedUploads.writeChunk(session, is, offset, Long.parseLong(contentLength),
+                                t.getRequestHeaders().getFirst("Content-Digest"));
+                    }
+                    sendResponse(t, 200, session.toJson());
+                } else if (segments.length == 1 && "GET".equals(method)) {
+                    sendResponse(t, 200, session.toJson());
+                } else if (segments.length == 1 && "DELETE".equals(method)) {
+                    chunkedUploads.abort(session);
+                    sendResponse(t, 200, "{\"success\": true}");
+                } else {
+                    sendResponse(t, 405, "Method Not Allowed");
+                }
+            } catch (IllegalArgumentException e) {
+                sendResponse(t, 400, "{\"success\": false, \"error\": " + Json.quote(e.getMessage()) + "}");
+            } catch (IllegalStateException e) {
+                sendResponse(t, 409, "{\"success\": false, \"error\": " + Json.quote(e.getMessage()) + "}");
             }
         }
     }
 
+    /**
+     * @return The digests a client expects for an upload: a {@code Repr-Digest} header or a
+     *         {@code sha256} parameter, or null.
+     */
+    private static String expectedDigest(HttpExchange t, Map<String, String> query) {
+        String header = t.getRequestHeaders().getFirst("Repr-Digest");
+        return header != null ? header : query.get("sha256");
+    }
+
+    private static String uploadedJson(File file, BlobStore.Blob blob, String extra) {
+        StringBuilder sb = new StringBuilder("{\"success\": true, \"count\": 1").append(extra).append(", \"files\": [");
+        appendReceivedJson(sb, file, blob);
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Parses a raw query string into decoded key/value pairs.
+     */
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq == -1 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq == -1 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            params.putIfAbsent(key, value);
+        }
+        return params;
+    }
+
     /**
      * API Handler to return list of received files (GET /api/received-files).
      */
@@ -569,30 +1031,18 @@ public class LanCast {
                 return;
             }
 
-            StringBuilder json = new StringBuilder("[");
-            for (int i = 0; i < receivedFiles.size(); i++) {
-                File f = receivedFiles.get(i);
-                if (f.exists()) {
-                    json.append(String.format("{\"name\": \"%s\", \"size\": %d}", f.getName(), f.length()));
-                    if (i < receivedFiles.size() - 1) {
-                        json.append(",");
-                    }
-                }
-            }
-            json.append("]");
-
-            t.getResponseHeaders().set("Content-Type", "application/json");
-            sendResponse(t, 200, json.toString());
+            sendListing(t, receivedFiles.snapshot());
         }
     }
 
     /**
      * Handler for downloading received files (GET /received-files/{filename}).
+     * Supports byte ranges so interrupted downloads can resume.
      */
     static class ReceivedFileDownloadHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
-            if (!"GET".equals(t.getRequestMethod())) {
+            if (!"GET".equals(t.getRequestMethod()) && !"HEAD".equals(t.getRequestMethod())) {
                 sendResponse(t, 405, "Method Not Allowed");
                 return;
             }
@@ -601,42 +1051,263 @@ public class LanCast {
             String filename = path.substring("/received-files/".length());
 
             // URL decode the filename
-            filename = java.net.URLDecoder.decode(filename, StandardCharsets.UTF_8);
+            filename = URLDecoder.decode(filename, StandardCharsets.UTF_8);
 
-            File fileToSend = null;
-            for (File f : receivedFiles) {
-                if (f.getName().equals(filename)) {
-                    fileToSend = f;
-                    break;
+            FileRegistry.Entry entry = receivedFiles.getById(filename);
+            if (entry == null) {
+                entry = receivedFiles.getByName(filename);
+            }
+
+            if (entry != null && entry.getFile().exists()) {
+                sendFile(t, entry.getFile(), "RECEIVED: " + entry.getName());
+            } else {
+                sendResponse(t, 404, "File Not Found");
+            }
+        }
+    }
+
+    /**
+     * Sends a file honouring {@code Range} and {@code If-Range}.
+     * A single range is answered with {@code 206} and {@code Content-Range};
+     * several ranges with a {@code multipart/byteranges} body.
+     * The transfer is logged only when the response starts at byte 0, so a
+     * resumed or segmented download counts once.
+     * <p>
+     * Known digests go out in {@code Repr-Digest}, which describes the whole file and so
+     * holds for ranges too. The first full download of a file computes them on the way
+     * out, through the buffered path instead of sendfile; later ones announce them and
+     * go zero-copy again.
+     * <p>
+     * Files that shrink are sent gzip-encoded to clients that accept it (see
+     * {@link GzipEncoding}). Range requests get the plain file, except from a client
+     * resuming an encoded download it has the tag of.
+     *
+     * @param t       The exchange to respond to.
+     * @param file    The file to send.
+     * @param logName The name recorded in the transfer history.
+     */
+    private static void sendFile(HttpExchange t, File file, String logName) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = HttpRanges.etag(file);
+        boolean headOnly = "HEAD".equals(t.getRequestMethod());
+
+        Headers headers = t.getResponseHeaders();
+        headers.set("Last-Modified", HttpRanges.httpDate(lastModified));
+        headers.set("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"");
+        FileMetadata info = MetadataIndexer.cached(file, length, lastModified);
+        String contentType = info != null ? info.mimeType : "application/octet-stream";
+
+        if (gzip.isWorthwhile(file, length, lastModified)) {
+            headers.set("Vary", "Accept-Encoding");
+            if (GzipEncoding.accepts(t.getRequestHeaders().getFirst("Accept-Encoding"))) {
+                String encodedEtag = GzipEncoding.etag(etag);
+                File encoded = gzip.cached(file, length, lastModified);
+                if (t.getRequestHeaders().getFirst("Range") == null
+                        || (encoded != null && encodedEtag.equals(t.getRequestHeaders().getFirst("If-Range")))) {
+                    sendEncoded(t, file, encoded, encodedEtag, contentType, logName);
+                    return;
                 }
             }
+        }
+
+        headers.set("ETag", etag);
+        Digests digests = Digests.cached(file, length, lastModified);
+        if (digests != null) {
+            headers.set("Repr-Digest", digests.toHeader());
+            headers.set("Digest", digests.toLegacyHeader());
+        }
 
-            if (fileToSend != null && fileToSend.exists()) {
-                // Log transfer
+        List<HttpRanges.Range> ranges = requestedRanges(t, length, etag, lastModified);
+        if (!headOnly && (ranges == null || (!ranges.isEmpty() && ranges.get(0).start == 0))) {
+            String userAgent = t.getRequestHeaders().getFirst("User-Agent");
+            HistoryManager.getInstance().logTransfer(
+                    t.getRemoteAddress().getAddress().getHostAddress(),
+                    logName,
+                    getDeviceType(userAgent));
+        }
+
+        Digests.Digester digester = digests == null && ranges == null && !headOnly ? new Digests.Digester() : null;
+        FileTransfer.Mode mode = digester != null ? FileTransfer.Mode.STREAM : FileTransfer.modeFor(t.getResponseBody());
+        headers.set("X-Transfer-Mode", mode.label());
+
+        long sent;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            sent = sendRanges(t, length, contentType, ranges, headOnly,
+                    (os, start, count) -> FileTransfer.transfer(channel, start, count,
+                            digester != null ? Digests.digesting(os, digester) : os));
+        }
+        // Only trust the digests if the whole file went out and did not change meanwhile
+        if (digester != null && digester.length() == length && file.length() == length
+                && file.lastModified() == lastModified) {
+            Digests.remember(file, length, lastModified, digester.finish());
+        }
+        if (sent > 0) {
+            System.out.println("Sent " + file.getName() + " (" + sent + " bytes) via " + mode.label());
+        }
+    }
+
+    /**
+     * Sends the gzip-encoded form of a file: the cached copy, with ranges, if there is one,
+     * otherwise compressed on the fly, without a length, while the copy is made.
+     *
+     * @param encoded The cached copy, or null.
+     */
+    private static void sendEncoded(HttpExchange t, File file, File encoded, String etag, String contentType,
+            String logName) throws IOException {
+        boolean headOnly = "HEAD".equals(t.getRequestMethod());
+        Headers headers = t.getResponseHeaders();
+        headers.set("ETag", etag);
+        headers.set("Content-Encoding", "gzip");
+
+        if (encoded != null) {
+            long length = encoded.length();
+            // Only the tag identifies the encoded form; its date is the file's
+            List<HttpRanges.Range> ranges = requestedRanges(t, length, etag, Long.MIN_VALUE);
+            if (!headOnly && (ranges == null || (!ranges.isEmpty() && ranges.get(0).start == 0))) {
                 String userAgent = t.getRequestHeaders().getFirst("User-Agent");
-                new HistoryManager().logTransfer(
+                HistoryManager.getInstance().logTransfer(
                         t.getRemoteAddress().getAddress().getHostAddress(),
-                        "RECEIVED: " + fileToSend.getName(),
+                        logName,
                         getDeviceType(userAgent));
+            }
+            FileTransfer.Mode mode = FileTransfer.modeFor(t.getResponseBody());
+            headers.set("X-Transfer-Mode", mode.label());
+            long sent;
+            try (FileChannel channel = FileChannel.open(encoded.toPath(), StandardOpenOption.READ)) {
+                sent = sendRanges(t, length, contentType, ranges, headOnly,
+                        (os, start, count) -> FileTransfer.transfer(channel, start, count, os));
+            }
+            if (sent > 0) {
+                System.out.println("Sent " + file.getName() + " (" + sent + " bytes gzip, cached) via " + mode.label());
+            }
+            return;
+        }
+
+        headers.set("Content-Type", contentType);
+        headers.set("X-Transfer-Mode", FileTransfer.Mode.STREAM.label());
+        if (headOnly) {
+            t.sendResponseHeaders(200, -1); // The encoded length is not known until it is made
+            return;
+        }
+        String userAgent = t.getRequestHeaders().getFirst("User-Agent");
+        HistoryManager.getInstance().logTransfer(
+                t.getRemoteAddress().getAddress().getHostAddress(),
+                logName,
+                getDeviceType(userAgent));
+        long length = file.length();
+        long lastModified = file.lastModified();
+        t.sendResponseHeaders(200, 0);
+        long sent;
+        try (OutputStream os = t.getResponseBody();
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            sent = gzip.compress(file, channel, length, lastModified, os);
+        }
+        System.out.println("Sent " + file.getName() + " (" + length + " bytes as " + sent + " gzip)");
+    }
+
+    /**
+     * Writes part of a representation.
+     */
+    private interface RangeBody {
+        void write(OutputStream os, long start, long count) throws IOException;
+    }
+
+    /**
+     * Evaluates {@code If-Range} and {@code Range} for a representation.
+     *
+     * @return null to send it whole, an empty list if the range is unsatisfiable, otherwise the ranges.
+     */
+    private static List<HttpRanges.Range> requestedRanges(HttpExchange t, long length, String etag,
+            long lastModified) {
+        if (!HttpRanges.ifRangeMatches(t.getRequestHeaders().getFirst("If-Range"), etag, lastModified)) {
+            return null;
+        }
+        List<HttpRanges.Range> ranges = HttpRanges.parse(t.getRequestHeaders().getFirst("Range"), length);
+        if (ranges != null && ranges.size() == 1 && ranges.get(0).length() == length) {
+            return null; // The range covers everything
+        }
+        return ranges;
+    }
+
+    /**
+     * Sends a whole representation, one range of it, or several as {@code multipart/byteranges}.
+     *
+     * @param ranges As returned by {@link #requestedRanges}.
+     * @return The number of body bytes sent.
+     */
+    private static long sendRanges(HttpExchange t, long length, String contentType, List<HttpRanges.Range> ranges,
+            boolean headOnly, RangeBody body) throws IOException {
+        Headers headers = t.getResponseHeaders();
+        headers.set("Accept-Ranges", "bytes");
+        if (ranges != null && ranges.isEmpty()) {
+            headers.set("Content-Range", "bytes */" + length);
+            sendResponse(t, 416, "Range Not Satisfiable");
+            return 0;
+        }
+
+        long sent = 0;
+        if (ranges == null) {
+            headers.set("Content-Type", contentType);
+            sendHeaders(t, 200, length, headOnly);
+            if (!headOnly) {
+                try (OutputStream os = t.getResponseBody()) {
+                    body.write(os, 0, length);
+                    sent = length;
+                }
+            }
+        } else if (ranges.size() == 1) {
+            HttpRanges.Range range = ranges.get(0);
+            headers.set("Content-Type", contentType);
+            headers.set("Content-Range", range.contentRange(length));
+            sendHeaders(t, 206, range.length(), headOnly);
+            if (!headOnly) {
+                try (OutputStream os = t.getResponseBody()) {
+                    body.write(os, range.start, range.length());
+                    sent = range.length();
+                }
+            }
+        } else {
+            String boundary = "LANCAST_" + Long.toHexString(System.nanoTime());
+            List<byte[]> partHeaders = new ArrayList<>();
+            byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            long total = closing.length;
+            for (HttpRanges.Range range : ranges) {
+                byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                        + "Content-Type: " + contentType + "\r\n"
+                        + "Content-Range: " + range.contentRange(length) + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII);
+                partHeaders.add(partHeader);
+                total += partHeader.length + range.length();
+            }
 
-                t.getResponseHeaders().set("Content-Type", "application/octet-stream");
-                t.getResponseHeaders().set("Content-Disposition",
-                        "attachment; filename=\"" + fileToSend.getName() + "\"");
-                t.sendResponseHeaders(200, fileToSend.length());
-
-                try (java.io.BufferedOutputStream bos = new java.io.BufferedOutputStream(t.getResponseBody(), 262144);
-                        java.io.BufferedInputStream bis = new java.io.BufferedInputStream(
-                                new java.io.FileInputStream(fileToSend), 262144)) {
-                    byte[] buffer = new byte[262144]; // 256KB buffer for fast transfers
-                    int count;
-                    while ((count = bis.read(buffer)) != -1) {
-                        bos.write(buffer, 0, count);
+            headers.set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            sendHeaders(t, 206, total, headOnly);
+            if (!headOnly) {
+                try (OutputStream os = t.getResponseBody()) {
+                    for (int i = 0; i < ranges.size(); i++) {
+                        os.write(partHeaders.get(i));
+                        body.write(os, ranges.get(i).start, ranges.get(i).length());
+                        sent += ranges.get(i).length();
                     }
-                    bos.flush();
+                    os.write(closing);
                 }
-            } else {
-                sendResponse(t, 404, "File Not Found");
             }
         }
+        return sent;
+    }
+
+    /**
+     * Sends the status line and headers. HEAD responses advertise the length
+     * they would have had but carry no body.
+     */
+    private static void sendHeaders(HttpExchange t, int statusCode, long length, boolean headOnly)
+            throws IOException {
+        if (headOnly) {
+            t.getResponseHeaders().set("Content-Length", String.valueOf(length));
+            t.sendResponseHeaders(statusCode, -1);
+        } else {
+            t.sendResponseHeaders(statusCode, length);
+        }
     }
 }
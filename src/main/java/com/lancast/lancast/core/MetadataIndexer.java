@@ -0,0 +1,318 @@
+package com.lancast.lancast.core;
+
+import com.lancast.lancast.database.FileMetadata;
+import com.lancast.lancast.database.MetadataStore;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Works out, once, what the server wants to know about shared and received files: their
+ * digests, the CRC-32 a ZIP entry needs, the MIME type, whether the content is already
+ * compressed and, for images, the dimensions.
+ * <p>
+ * One low-priority background thread reads each file a single time to compute all of it.
+ * Results are kept in memory for requests and persisted in lancast.db by canonical path,
+ * size and modification time, so sharing the same folder after a restart costs a query
+ * and a directory walk rather than a read of every file. A file that changed no longer
+ * matches its row and is read again.
+ */
+public class MetadataIndexer {
+
+    private static final int CACHE_LIMIT = 200_000;
+    // Rows written per transaction
+    private static final int BATCH_SIZE = 500;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int SNIFF_BYTES = 16;
+
+    // MIME types the JDK's table lacks
+    private static final Map<String, String> EXTRA_TYPES = Map.of(
+            "heic", "image/heic", "heif", "image/heif", "avif", "image/avif",
+            "mkv", "video/x-matroska", "webm", "video/webm", "opus", "audio/opus",
+            "apk", "application/vnd.android.package-archive", "epub", "application/epub+zip");
+
+    // Keyed by path, size and modification time, like the other per-version caches.
+    // Access-ordered, so a long walk evicts the least recently used rows, not the hot ones
+    private static final Map<String, FileMetadata> cache = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileMetadata> eldest) {
+            return size() > CACHE_LIMIT;
+        }
+    };
+
+    private final BlockingQueue<File> queue = new LinkedBlockingQueue<>();
+    // Roots waiting in the queue, so sharing a folder twice indexes it once
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private MetadataStore store;
+    private Thread worker;
+
+    /**
+     * @return The metadata of this version of the file, or null if it is not indexed (yet).
+     */
+    public static FileMetadata cached(File file, long size, long lastModified) {
+        synchronized (cache) {
+            return cache.get(key(file, size, lastModified));
+        }
+    }
+
+    /**
+     * Adds what is known about this version of a file to its listing JSON:
+     * {@code "sha256"}, {@code "crc32c"}, {@code "type"}, and {@code "width"} and
+     * {@code "height"} for images.
+     */
+    static void appendJson(StringBuilder sb, File file, long size, long lastModified) {
+        Digests digests = Digests.cached(file, size, lastModified);
+        FileMetadata metadata = cached(file, size, lastModified);
+        if (digests == null && metadata != null && metadata.sha256 != null) {
+            // The digest cache is the smaller one
+            digests = Digests.of(metadata.sha256, metadata.crc32c);
+        }
+        if (digests != null) {
+            digests.appendJson(sb);
+        }
+        if (metadata != null) {
+            sb.append(", \"type\": ");
+            Json.appendQuoted(sb, metadata.mimeType);
+            if (metadata.width > 0) {
+                sb.append(", \"width\": ").append(metadata.width).append(", \"height\": ").append(metadata.height);
+            }
+        }
+    }
+
+    /**
+     * Queues files and folders for indexing. Folders are indexed with everything in them.
+     */
+    public synchronized void submit(Collection<File> roots) {
+        for (File root : roots) {
+            if (queued.add(root.getAbsolutePath())) {
+                queue.add(root);
+            }
+        }
+        if (worker == null) {
+            worker = new Thread(this::run, "lancast-metadata");
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            worker.start();
+        }
+    }
+
+    private void run() {
+        store = new MetadataStore();
+        while (true) {
+            File root;
+            try {
+                root = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            queued.remove(root.getAbsolutePath());
+            try {
+                index(root);
+            } catch (Exception e) {
+                System.err.println("Could not index " + root + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void index(File root) throws IOException {
+        if (!root.exists()) {
+            return;
+        }
+        long started = System.currentTimeMillis();
+        Path given = root.toPath().toAbsolutePath();
+        Path real = given.toRealPath();
+        Map<String, FileMetadata> rows = root.isDirectory()
+                ? store.findUnder(real.toString())
+                : store.find(List.of(real.toString()));
+
+        List<FileMetadata> dirty = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        long[] stats = new long[3]; // files, files read, bytes read
+        SharedFolders.walk(List.of(root), (file, name, attrs) -> {
+            // Stored under the canonical path; published under the path requests will use too
+            String path = real.resolve(given.relativize(file.toPath().toAbsolutePath())).toString();
+            seen.add(path);
+            stats[0]++;
+            FileMetadata row = rows.get(path);
+            if (row == null || !row.matches(attrs.size(), attrs.lastModifiedTime().toMillis())) {
+                row = compute(file, path, attrs, stats);
+                if (row == null) {
+                    return true; // Changed while being read; indexed when it is shared again
+                }
+                dirty.add(row);
+                if (dirty.size() >= BATCH_SIZE) {
+                    store.saveAll(dirty);
+                    dirty.clear();
+                }
+            }
+            publish(file, row);
+            if (!path.equals(file.getAbsolutePath())) {
+                publish(new File(path), row);
+            }
+            return true;
+        });
+        store.saveAll(dirty);
+
+        // Rows of files deleted from the folder since it was last indexed
+        List<String> gone = new ArrayList<>();
+        for (String path : rows.keySet()) {
+            if (!seen.contains(path)) {
+                gone.add(path);
+            }
+        }
+        store.deleteAll(gone);
+        // Listings pick up the digests with their next version
+        Digests.changed(root);
+
+        System.out.println("Indexed " + root.getName() + ": " + stats[0] + " files, " + stats[1] + " read ("
+                + stats[2] / (1024 * 1024) + " MB) in " + (System.currentTimeMillis() - started) + " ms");
+    }
+
+    private static void publish(File file, FileMetadata row) {
+        synchronized (cache) {
+            cache.put(key(file, row.size, row.modified), row);
+        }
+        if (row.sha256 != null) {
+            Digests.remember(file, row.size, row.modified, Digests.of(row.sha256, row.crc32c), false);
+        }
+    }
+
+    /**
+     * Reads the file once for everything in a row. When its digests are already known
+     * (e.g. it was just uploaded) only the first bytes are read.
+     *
+     * @return The row, or null if the file changed while it was read.
+     */
+    private static FileMetadata compute(File file, String path, BasicFileAttributes attrs, long[] stats)
+            throws IOException {
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        FileMetadata row = new FileMetadata(path, size, lastModified);
+        Digests digests = Digests.cached(file, size, lastModified);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        byte[] head = new byte[SNIFF_BYTES];
+        int headLength;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (digests != null) {
+                buffer.limit(SNIFF_BYTES);
+                channel.read(buffer, 0);
+                buffer.flip();
+                headLength = buffer.remaining();
+                buffer.get(head, 0, headLength);
+            } else {
+                Digests.Digester digester = new Digests.Digester();
+                CRC32 crc32 = new CRC32();
+                long position = 0;
+                headLength = 0;
+                while (position < size) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+                    int n = channel.read(buffer, position);
+                    if (n < 0) {
+                        return null;
+                    }
+                    buffer.flip();
+                    if (position == 0) {
+                        headLength = Math.min(n, SNIFF_BYTES);
+                        buffer.duplicate().get(head, 0, headLength);
+                    }
+                    digester.update(buffer);
+                    crc32.update(buffer);
+                    position += n;
+                }
+                digests = digester.finish();
+                row.crc32 = crc32.getValue();
+                stats[1]++;
+                stats[2] += size;
+            }
+        }
+        if (file.length() != size || file.lastModified() != lastModified) {
+            return null;
+        }
+        row.sha256 = digests.getSha256();
+        row.crc32c = digests.crc32cValue();
+        row.incompressible = Compressibility.hasCompressedExtension(file.getName())
+                || Compressibility.hasCompressedMagic(head, headLength);
+        row.mimeType = mimeTypeOf(file.getName(), head, headLength);
+        if (row.mimeType.startsWith("image/")) {
+            readDimensions(file, row);
+        }
+        return row;
+    }
+
+    static String mimeTypeOf(String name, byte[] head, int n) {
+        String type = URLConnection.guessContentTypeFromName(name);
+        if (type != null) {
+            return type;
+        }
+        int dot = name.lastIndexOf('.');
+        type = dot >= 0 ? EXTRA_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT)) : null;
+        if (type != null) {
+            return type;
+        }
+        if (n >= 3 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xD8 && (head[2] & 0xFF) == 0xFF) {
+            return "image/jpeg";
+        }
+        if (n >= 4 && (head[0] & 0xFF) == 0x89 && head[1] == 'P' && head[2] == 'N' && head[3] == 'G') {
+            return "image/png";
+        }
+        if (n >= 4 && head[0] == 'G' && head[1] == 'I' && head[2] == 'F' && head[3] == '8') {
+            return "image/gif";
+        }
+        if (n >= 4 && head[0] == '%' && head[1] == 'P' && head[2] == 'D' && head[3] == 'F') {
+            return "application/pdf";
+        }
+        return "application/octet-stream";
+    }
+
+    /**
+     * Reads an image's size from its header, without decoding the pixels.
+     */
+    private static void readDimensions(File file, FileMetadata row) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                return;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return; // No reader for this format, e.g. HEIC
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                row.width = reader.getWidth(0);
+                row.height = reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Corrupt or truncated image; leave the dimensions unknown
+        }
+    }
+
+    private static String key(File file, long size, long lastModified) {
+        return file.getAbsolutePath() + '\0' + size + '\0' + lastModified;
+    }
+}
@@ -0,0 +1,415 @@
+package com.lancast.lancast.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Incremental multipart/form-data parser (RFC 7578).
+ * The request body is scanned through a fixed buffer with a Boyer-Moore-Horspool
+ * search for the boundary delimiter, so each part can be streamed straight to its
+ * destination using constant memory no matter how large the upload is.
+ *
+ * <pre>
+ * MultipartParser parser = new MultipartParser(in, boundary);
+ * MultipartParser.Part part;
+ * while ((part = parser.nextPart()) != null) {
+ *     parser.transferBody(out);
+ * }
+ * </pre>
+ */
+public final class MultipartParser {
+
+    private static final int BUFFER_SIZE = 262144; // 256KB buffer for fast uploads
+    private static final int MAX_HEADER_BYTES = 16384;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final int[] skip = new int[256];
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    private boolean started;
+    private boolean inBody;
+    private boolean finished;
+
+    /**
+     * A part of the multipart body. Its content is read with {@link MultipartParser#transferBody}.
+     */
+    public static final class Part {
+        private final Map<String, String> headers;
+        private final String name;
+        private final String filename;
+
+        Part(Map<String, String> headers, String name, String filename) {
+            this.headers = headers;
+            this.name = name;
+            this.filename = filename;
+        }
+
+        /**
+         * @return The header value (case-insensitive name), or null.
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The client file name, {@code filename*} taking precedence, or null for plain fields.
+         */
+        public String getFilename() {
+            return filename;
+        }
+
+        public String getContentType() {
+            return getHeader("content-type");
+        }
+    }
+
+    /**
+     * @param in       The raw request body.
+     * @param boundary The boundary parameter from the {@code Content-Type} header.
+     */
+    public MultipartParser(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buf = new byte[Math.max(BUFFER_SIZE, delimiter.length * 4)];
+
+        // Horspool bad-character table
+        for (int i = 0; i < skip.length; i++) {
+            skip[i] = delimiter.length;
+        }
+        for (int i = 0; i < delimiter.length - 1; i++) {
+            skip[delimiter[i] & 0xff] = delimiter.length - 1 - i;
+        }
+
+        // The first delimiter has no leading CRLF; seeding one lets a single search handle every delimiter.
+        buf[0] = '\r';
+        buf[1] = '\n';
+        limit = 2;
+    }
+
+    /**
+     * Extracts the boundary parameter from a multipart {@code Content-Type} header.
+     *
+     * @return The boundary, or null if absent.
+     */
+    public static String boundaryOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        String value = parseParameters(contentType).get("boundary");
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Advances to the next part, discarding any unread content of the current one.
+     *
+     * @return The next part, or null when the closing delimiter has been reached.
+     * @throws IOException If the body is truncated or malformed.
+     */
+    public Part nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+        // Skips the preamble on the first call, or the rest of the previous part
+        transferBody(null);
+        if (finished) {
+            return null;
+        }
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        int headerBytes = 0;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            headerBytes += line.length();
+            if (headerBytes > MAX_HEADER_BYTES) {
+                throw new IOException("Multipart headers too large");
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+
+        String name = null;
+        String filename = null;
+        String disposition = headers.get("content-disposition");
+        if (disposition != null) {
+            Map<String, String> params = parseParameters(disposition);
+            name = params.get("name");
+            filename = params.get("filename");
+            String extended = params.get("filename*");
+            if (extended != null) {
+                String decoded = decodeExtendedValue(extended);
+                if (decoded != null) {
+                    filename = decoded;
+                }
+            }
+        }
+
+        inBody = true;
+        return new Part(headers, name, filename);
+    }
+
+    /**
+     * Streams the content of the current part.
+     *
+     * @param out Destination for the content, or null to discard it.
+     * @return The number of content bytes.
+     * @throws IOException If the body ends before the next delimiter.
+     */
+    public long transferBody(OutputStream out) throws IOException {
+        if (finished || (started && !inBody)) {
+            return 0;
+        }
+        started = true;
+        long total = 0;
+        while (true) {
+            int idx = indexOfDelimiter(pos, limit);
+            if (idx >= 0) {
+                if (out != null) {
+                    out.write(buf, pos, idx - pos);
+                }
+                total += idx - pos;
+                pos = idx + delimiter.length;
+                inBody = false;
+                readDelimiterTail();
+                return total;
+            }
+
+            // Everything except a possible delimiter prefix at the end is content
+            int safe = limit - (delimiter.length - 1);
+            if (safe > pos) {
+                if (out != null) {
+                    out.write(buf, pos, safe - pos);
+                }
+                total += safe - pos;
+                pos = safe;
+            }
+            if (eof) {
+                throw new IOException("Unexpected end of multipart body");
+            }
+            fill();
+        }
+    }
+
+    /**
+     * Consumes what follows a delimiter: {@code --} for the closing delimiter,
+     * otherwise optional whitespace and CRLF before the next part's headers.
+     */
+    private void readDelimiterTail() throws IOException {
+        ensure(2);
+        if (buf[pos] == '-' && buf[pos + 1] == '-') {
+            pos += 2;
+            finished = true;
+            return;
+        }
+        while (true) {
+            ensure(1);
+            byte b = buf[pos];
+            if (b == ' ' || b == '\t') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        ensure(2);
+        if (buf[pos] != '\r' || buf[pos + 1] != '\n') {
+            throw new IOException("Malformed multipart delimiter");
+        }
+        pos += 2;
+    }
+
+    private String readLine() throws IOException {
+        while (true) {
+            for (int i = pos; i + 1 < limit; i++) {
+                if (buf[i] == '\r' && buf[i + 1] == '\n') {
+                    // Browsers send raw UTF-8 in header parameters
+                    String line = new String(buf, pos, i - pos, StandardCharsets.UTF_8);
+                    pos = i + 2;
+                    return line;
+                }
+            }
+            if (limit - pos > MAX_HEADER_BYTES) {
+                throw new IOException("Multipart header line too long");
+            }
+            if (eof) {
+                throw new IOException("Unexpected end of multipart headers");
+            }
+            fill();
+        }
+    }
+
+    /** Horspool search for the delimiter within {@code buf[from, to)}. */
+    private int indexOfDelimiter(int from, int to) {
+        int last = delimiter.length - 1;
+        int i = from;
+        while (i + last < to) {
+            int j = last;
+            while (buf[i + j] == delimiter[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += skip[buf[i + last] & 0xff];
+        }
+        return -1;
+    }
+
+    private void ensure(int n) throws IOException {
+        while (limit - pos < n) {
+            if (eof) {
+                throw new IOException("Unexpected end of multipart body");
+            }
+            fill();
+        }
+    }
+
+    /** Compacts unread bytes to the front of the buffer and reads more. */
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        while (limit < buf.length) {
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n == -1) {
+                eof = true;
+                return;
+            }
+            if (n > 0) {
+                limit += n;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Parses {@code ; key=value} parameters of a header value, honouring quoted strings.
+     * Keys are lower-cased; the leading token (e.g. {@code form-data}) is ignored.
+     */
+    static Map<String, String> parseParameters(String header) {
+        Map<String, String> params = new LinkedHashMap<>();
+        int i = header.indexOf(';');
+        int n = header.length();
+        while (i >= 0 && i < n) {
+            i++; // skip ';'
+            while (i < n && Character.isWhitespace(header.charAt(i))) {
+                i++;
+            }
+            int eq = i;
+            while (eq < n && header.charAt(eq) != '=' && header.charAt(eq) != ';') {
+                eq++;
+            }
+            String key = header.substring(i, eq).trim().toLowerCase(Locale.ROOT);
+            if (eq >= n || header.charAt(eq) == ';') {
+                i = eq < n ? eq : -1;
+                continue;
+            }
+            i = eq + 1;
+            while (i < n && Character.isWhitespace(header.charAt(i))) {
+                i++;
+            }
+            StringBuilder value = new StringBuilder();
+            if (i < n && header.charAt(i) == '"') {
+                i++;
+                while (i < n && header.charAt(i) != '"') {
+                    char c = header.charAt(i);
+                    if (c == '\\' && i + 1 < n) {
+                        c = header.charAt(++i);
+                    }
+                    value.append(c);
+                    i++;
+                }
+                i = header.indexOf(';', i);
+            } else {
+                int end = header.indexOf(';', i);
+                value.append(header, i, end == -1 ? n : end);
+                i = end;
+            }
+            if (!key.isEmpty() && !params.containsKey(key)) {
+                params.put(key, value.toString().trim());
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Decodes an RFC 8187 extended parameter value such as {@code UTF-8''na%C3%AFve.txt}.
+     *
+     * @return The decoded value, or null if it is malformed or uses an unknown charset.
+     */
+    static String decodeExtendedValue(String value) {
+        int firstQuote = value.indexOf('\'');
+        int secondQuote = firstQuote == -1 ? -1 : value.indexOf('\'', firstQuote + 1);
+        if (secondQuote == -1) {
+            return null;
+        }
+        Charset charset;
+        try {
+            charset = Charset.forName(value.substring(0, firstQuote).trim());
+        } catch (RuntimeException e) {
+            return null;
+        }
+        String encoded = value.substring(secondQuote + 1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(encoded.length());
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= encoded.length()) {
+                    return null;
+                }
+                int hi = Character.digit(encoded.charAt(i + 1), 16);
+                int lo = Character.digit(encoded.charAt(i + 2), 16);
+                if (hi < 0 || lo < 0) {
+                    return null;
+                }
+                bytes.write((hi << 4) | lo);
+                i += 2;
+            } else {
+                bytes.write(c);
+            }
+        }
+        return new String(bytes.toByteArray(), charset);
+    }
+
+    /**
+     * Reduces a client-supplied file name to a safe single path segment.
+     * Browsers may send full paths (e.g. {@code C:\fakepath\photo.jpg}).
+     *
+     * @return The bare file name, or null if nothing usable remains.
+     */
+    public static String sanitizeFilename(String filename) {
+        if (filename == null) {
+            return null;
+        }
+        String name = filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1);
+        StringBuilder clean = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 0x20 && c != 0x7f && ":*?\"<>|".indexOf(c) == -1) {
+                clean.append(c);
+            }
+        }
+        name = clean.toString().trim();
+        if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+            return null;
+        }
+        return name;
+    }
+}
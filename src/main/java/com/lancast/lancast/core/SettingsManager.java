@@ -1,18 +1,52 @@
 package com.lancast.lancast.core;
 
+import com.lancast.lancast.core.engine.ServerEngine;
+
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Properties;
 
 public class SettingsManager {
+    /**
+     * Bulk ZIPs laid out up front: stored entries, exact length, resumable. Files with a
+     * known CRC get plain entries that streaming unzippers can read.
+     */
+    public static final String ARCHIVE_EXACT = "exact";
+    /** Bulk ZIPs deflated on the fly and sent chunked. */
+    public static final String ARCHIVE_COMPRESSED = "compressed";
+    /** History rows wait for room when the log falls behind. */
+    public static final String HISTORY_OVERFLOW_BLOCK = "block";
+    /** History rows are skipped when the log falls behind, so downloads never wait. */
+    public static final String HISTORY_OVERFLOW_DROP = "drop";
+
     private static final String SETTINGS_FILE = "settings.properties";
     private static final String KEY_PIN = "security_pin";
     private static final String KEY_THEME = "app_theme";
     private static final String KEY_ACCENT = "accent_color";
+    private static final String KEY_MAX_TRANSFERS = "max_transfers";
+    private static final String KEY_TRANSFER_QUEUE = "transfer_queue";
+    private static final String KEY_CLIENT_RATE = "client_rate_limit_mbps";
+    private static final String KEY_GLOBAL_RATE = "global_rate_limit_mbps";
+    private static final String KEY_SERVER_ENGINE = "server_engine";
+    private static final String KEY_SOCKET_BUFFER = "socket_buffer_kb";
+    private static final String KEY_TCP_NODELAY = "tcp_nodelay";
+    private static final String KEY_IDLE_TIMEOUT = "idle_timeout_seconds";
+    private static final String KEY_MAX_REQUESTS = "max_requests_per_connection";
+    private static final String KEY_ZIP_THREADS = "zip_threads";
+    private static final String KEY_ARCHIVE_MODE = "archive_mode";
+    private static final String KEY_HISTORY_OVERFLOW = "history_overflow";
     private static final String DEFAULT_PIN = "1234";
     private static final String DEFAULT_THEME = "dark";
     private static final String DEFAULT_ACCENT = "purple";
+    private static final int DEFAULT_MAX_TRANSFERS = 16;
+    private static final int DEFAULT_TRANSFER_QUEUE = 64;
+    private static final String DEFAULT_SERVER_ENGINE = ServerEngine.JDK;
+    private static final int DEFAULT_SOCKET_BUFFER_KB = 1024;
+    private static final int DEFAULT_IDLE_TIMEOUT = 30;
+    private static final int DEFAULT_MAX_REQUESTS = 1000;
+    private static final String DEFAULT_ARCHIVE_MODE = ARCHIVE_EXACT;
+    private static final String DEFAULT_HISTORY_OVERFLOW = HISTORY_OVERFLOW_BLOCK;
 
     private Properties properties;
 
@@ -63,4 +97,151 @@ public class SettingsManager {
         properties.setProperty(KEY_ACCENT, accent);
         saveSettings();
     }
+
+    public int getMaxTransfers() {
+        return getInt(KEY_MAX_TRANSFERS, DEFAULT_MAX_TRANSFERS);
+    }
+
+    public void setMaxTransfers(int maxTransfers) {
+        properties.setProperty(KEY_MAX_TRANSFERS, String.valueOf(maxTransfers));
+        saveSettings();
+    }
+
+    public int getTransferQueue() {
+        return getInt(KEY_TRANSFER_QUEUE, DEFAULT_TRANSFER_QUEUE);
+    }
+
+    public void setTransferQueue(int transferQueue) {
+        properties.setProperty(KEY_TRANSFER_QUEUE, String.valueOf(transferQueue));
+        saveSettings();
+    }
+
+    /**
+     * @return The per-client bandwidth limit in Mbit/s, 0 for unlimited.
+     */
+    public int getClientRateLimit() {
+        return getInt(KEY_CLIENT_RATE, 0);
+    }
+
+    public void setClientRateLimit(int mbps) {
+        properties.setProperty(KEY_CLIENT_RATE, String.valueOf(mbps));
+        saveSettings();
+    }
+
+    /**
+     * @return The total bandwidth limit in Mbit/s, 0 for unlimited.
+     */
+    public int getGlobalRateLimit() {
+        return getInt(KEY_GLOBAL_RATE, 0);
+    }
+
+    public void setGlobalRateLimit(int mbps) {
+        properties.setProperty(KEY_GLOBAL_RATE, String.valueOf(mbps));
+        saveSettings();
+    }
+
+    /**
+     * @return The HTTP engine to run, {@code jdk} or {@code nio}. Takes effect on the next server start.
+     */
+    public String getServerEngine() {
+        return properties.getProperty(KEY_SERVER_ENGINE, DEFAULT_SERVER_ENGINE);
+    }
+
+    public void setServerEngine(String engine) {
+        properties.setProperty(KEY_SERVER_ENGINE, engine);
+        saveSettings();
+    }
+
+    /**
+     * @return The send and receive buffer of each connection on the NIO engine, in KB.
+     */
+    public int getSocketBufferKb() {
+        return getInt(KEY_SOCKET_BUFFER, DEFAULT_SOCKET_BUFFER_KB);
+    }
+
+    public void setSocketBufferKb(int kb) {
+        properties.setProperty(KEY_SOCKET_BUFFER, String.valueOf(kb));
+        saveSettings();
+    }
+
+    /**
+     * @return Whether the NIO engine sends small writes at once (TCP_NODELAY).
+     */
+    public boolean isTcpNoDelay() {
+        return Boolean.parseBoolean(properties.getProperty(KEY_TCP_NODELAY, "true").trim());
+    }
+
+    public void setTcpNoDelay(boolean noDelay) {
+        properties.setProperty(KEY_TCP_NODELAY, String.valueOf(noDelay));
+        saveSettings();
+    }
+
+    /**
+     * @return Seconds the NIO engine lets a connection stay silent, between requests or within one.
+     */
+    public int getIdleTimeoutSeconds() {
+        return getInt(KEY_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    public void setIdleTimeoutSeconds(int seconds) {
+        properties.setProperty(KEY_IDLE_TIMEOUT, String.valueOf(seconds));
+        saveSettings();
+    }
+
+    /**
+     * @return Requests the NIO engine serves on one keep-alive connection before closing it.
+     */
+    public int getMaxRequestsPerConnection() {
+        return getInt(KEY_MAX_REQUESTS, DEFAULT_MAX_REQUESTS);
+    }
+
+    public void setMaxRequestsPerConnection(int requests) {
+        properties.setProperty(KEY_MAX_REQUESTS, String.valueOf(requests));
+        saveSettings();
+    }
+
+    /**
+     * @return Threads compressing ZIP downloads, 0 for one per CPU core.
+     */
+    public int getZipThreads() {
+        return getInt(KEY_ZIP_THREADS, 0);
+    }
+
+    public void setZipThreads(int threads) {
+        properties.setProperty(KEY_ZIP_THREADS, String.valueOf(threads));
+        saveSettings();
+    }
+
+    /**
+     * @return How bulk ZIP downloads are built, {@link #ARCHIVE_EXACT} or {@link #ARCHIVE_COMPRESSED}.
+     */
+    public String getArchiveMode() {
+        return properties.getProperty(KEY_ARCHIVE_MODE, DEFAULT_ARCHIVE_MODE);
+    }
+
+    public void setArchiveMode(String mode) {
+        properties.setProperty(KEY_ARCHIVE_MODE, mode);
+        saveSettings();
+    }
+
+    /**
+     * @return What happens to history rows while the log is behind,
+     *         {@link #HISTORY_OVERFLOW_BLOCK} or {@link #HISTORY_OVERFLOW_DROP}.
+     */
+    public String getHistoryOverflow() {
+        return properties.getProperty(KEY_HISTORY_OVERFLOW, DEFAULT_HISTORY_OVERFLOW);
+    }
+
+    public void setHistoryOverflow(String policy) {
+        properties.setProperty(KEY_HISTORY_OVERFLOW, policy);
+        saveSettings();
+    }
+
+    private int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(properties.getProperty(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
 }
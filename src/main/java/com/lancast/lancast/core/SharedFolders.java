@@ -0,0 +1,206 @@
+package com.lancast.lancast.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Support for folders shared as session entries.
+ * <p>
+ * A shared folder can hold tens of thousands of files, so nothing here lists one in
+ * full: downloads walk the tree lazily, holding only the current branch, and the web
+ * listing pages through one folder at a time in name order, keeping one page in memory.
+ */
+final class SharedFolders {
+
+    static final int DEFAULT_PAGE_SIZE = 200;
+    static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * Receives the files of a walk, in order.
+     */
+    interface Visitor {
+        /**
+         * @param name The file's path in a download, with {@code /} separators.
+         * @return false to stop the walk.
+         */
+        boolean visit(File file, String name, BasicFileAttributes attrs) throws IOException;
+    }
+
+    private SharedFolders() {
+    }
+
+    /**
+     * Visits the shared files, and every regular file below the shared folders. Top-level
+     * names are made unique; files in a folder are named by their path relative to it.
+     * Files that disappear or cannot be read are skipped.
+     */
+    static void walk(List<File> roots, Visitor visitor) throws IOException {
+        Set<String> names = new HashSet<>();
+        for (File root : roots) {
+            boolean more;
+            if (root.isDirectory()) {
+                more = walkFolder(root.toPath(), ZipStreamManager.uniqueName(root.getName(), names) + "/", visitor);
+            } else if (root.isFile()) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(root.toPath(), BasicFileAttributes.class);
+                } catch (IOException e) {
+                    System.err.println("Skipping unreadable file: " + root.getAbsolutePath());
+                    continue;
+                }
+                more = visitor.visit(root, ZipStreamManager.uniqueName(root.getName(), names), attrs);
+            } else {
+                System.err.println("Skipping invalid file: " + root.getAbsolutePath());
+                continue;
+            }
+            if (!more) {
+                return;
+            }
+        }
+    }
+
+    private static boolean walkFolder(Path folder, String prefix, Visitor visitor) throws IOException {
+        boolean[] more = {true};
+        Files.walkFileTree(folder, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                more[0] = visitor.visit(file.toFile(), prefix + relativeName(folder, file), attrs);
+                return more[0] ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.err.println("Skipping unreadable path: " + file + " (" + e.getMessage() + ")");
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return more[0];
+    }
+
+    private static String relativeName(Path folder, Path file) {
+        StringBuilder sb = new StringBuilder();
+        for (Path part : folder.relativize(file)) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Resolves a path below a shared folder, refusing anything that leads outside it.
+     *
+     * @param relative A path with {@code /} separators; empty for the folder itself.
+     * @return The resolved path, or null if it does not exist or is outside the folder.
+     */
+    static Path resolve(File folder, String relative) {
+        try {
+            Path base = folder.toPath().toRealPath();
+            Path target = base;
+            for (String part : relative.split("/")) {
+                if (!part.isEmpty()) {
+                    target = target.resolve(part);
+                }
+            }
+            target = target.toRealPath();
+            return target.startsWith(base) ? target : null;
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lists one page of a folder as JSON, in name order:
+     * {@code {"path": ..., "entries": [{"name", "size", "modified"[, "dir": true][, "sha256", "crc32c", "type", ...]}], "next": ...}}.
+     * The folder is read once per page; only the names that belong on it are kept.
+     *
+     * @param path  The folder's path, echoed back.
+     * @param after The last name of the previous page, or null for the first page.
+     * @param limit The page size.
+     */
+    static byte[] page(Path folder, String path, String after, int limit) throws IOException {
+        // The page's names so far, largest at the head; one extra tells whether there is a next page
+        PriorityQueue<String> page = new PriorityQueue<>(limit + 1, Comparator.reverseOrder());
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path child : stream) {
+                String name = child.getFileName().toString();
+                if (after != null && name.compareTo(after) <= 0) {
+                    continue;
+                }
+                if (page.size() <= limit) {
+                    page.add(name);
+                } else if (name.compareTo(page.peek()) < 0) {
+                    page.poll();
+                    page.add(name);
+                }
+            }
+        }
+        List<String> names = new ArrayList<>(page);
+        Collections.sort(names);
+        boolean hasMore = names.size() > limit;
+        if (hasMore) {
+            names.remove(names.size() - 1);
+        }
+
+        StringBuilder sb = new StringBuilder(64 + names.size() * 80);
+        sb.append("{\"path\": ");
+        Json.appendQuoted(sb, path);
+        sb.append(", \"entries\": [");
+        boolean first = true;
+        for (String name : names) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(folder.resolve(name), BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                continue; // Gone since the folder was read
+            }
+            if (!attrs.isRegularFile() && !attrs.isDirectory()) {
+                continue; // Links and special files are not shared, as in downloads
+            }
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"name\": ");
+            Json.appendQuoted(sb, name);
+            sb.append(", \"size\": ").append(attrs.isDirectory() ? 0 : attrs.size());
+            sb.append(", \"modified\": ").append(attrs.lastModifiedTime().toMillis());
+            if (attrs.isDirectory()) {
+                sb.append(", \"dir\": true");
+            } else {
+                MetadataIndexer.appendJson(sb, folder.resolve(name).toFile(), attrs.size(),
+                        attrs.lastModifiedTime().toMillis());
+            }
+            sb.append('}');
+        }
+        sb.append("], \"next\": ");
+        if (hasMore) {
+            Json.appendQuoted(sb, names.get(names.size() - 1));
+        } else {
+            sb.append("null");
+        }
+        sb.append('}');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
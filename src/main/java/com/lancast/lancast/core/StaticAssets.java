@@ -0,0 +1,267 @@
+package com.lancast.lancast.core;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory cache for the web UI's static files.
+ * Each file is read once and kept together with gzip and deflate variants, so a page
+ * load costs a map lookup and a single write, or just a {@code 304} when the browser
+ * already has it. A file is reloaded only after its size or modification time changes.
+ */
+public class StaticAssets {
+
+    /** How often a cached file is checked against the disk. */
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    private final File baseDir;
+    private final Map<String, Asset> cache = new ConcurrentHashMap<>();
+
+    /**
+     * A loaded file and its encoded variants.
+     */
+    static final class Asset {
+        final long lastModified;
+        final long length;
+        final String contentType;
+        final String etag;
+        final byte[] identity;
+        final byte[] gzip;    // null if it would not be smaller
+        final byte[] deflate; // null if it would not be smaller
+        volatile long checkedAt;
+
+        Asset(File file, byte[] content, String contentType) throws IOException {
+            this.lastModified = file.lastModified();
+            this.length = content.length;
+            this.contentType = contentType;
+            this.identity = content;
+            this.etag = hash(content);
+            byte[] gz = compress(content, true);
+            byte[] df = compress(content, false);
+            this.gzip = gz.length < content.length ? gz : null;
+            this.deflate = df.length < content.length ? df : null;
+            this.checkedAt = System.currentTimeMillis();
+        }
+
+        boolean isStale(File file) {
+            long now = System.currentTimeMillis();
+            if (now - checkedAt < CHECK_INTERVAL_MILLIS) {
+                return false;
+            }
+            checkedAt = now;
+            return file.lastModified() != lastModified || file.length() != length;
+        }
+    }
+
+    /**
+     * @param baseDir The directory assets are served from.
+     */
+    public StaticAssets(File baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    /**
+     * Serves a file from the base directory, negotiating the encoding and honouring
+     * {@code If-None-Match}. Handles GET and HEAD.
+     *
+     * @param name The file name relative to the base directory.
+     * @return false if the file does not exist; nothing has been sent in that case.
+     */
+    public boolean serve(HttpExchange t, String name) throws IOException {
+        Asset asset = get(name);
+        if (asset == null) {
+            return false;
+        }
+
+        String encoding = negotiate(t.getRequestHeaders().getFirst("Accept-Encoding"), asset);
+        byte[] body = "gzip".equals(encoding) ? asset.gzip : "deflate".equals(encoding) ? asset.deflate : asset.identity;
+        // Every representation needs its own strong validator
+        String etag = "\"" + asset.etag + (encoding != null ? "-" + encoding : "") + "\"";
+
+        t.getResponseHeaders().set("ETag", etag);
+        t.getResponseHeaders().set("Cache-Control", cacheControl(asset.contentType));
+        t.getResponseHeaders().set("Vary", "Accept-Encoding");
+        t.getResponseHeaders().set("Last-Modified", HttpRanges.httpDate(asset.lastModified));
+
+        if (etagMatches(t.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            t.sendResponseHeaders(304, -1);
+            t.close();
+            return true;
+        }
+
+        t.getResponseHeaders().set("Content-Type", asset.contentType);
+        if (encoding != null) {
+            t.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+        if ("HEAD".equals(t.getRequestMethod())) {
+            t.getResponseHeaders().set("Content-Length", String.valueOf(body.length));
+            t.sendResponseHeaders(200, -1);
+            t.close();
+            return true;
+        }
+        t.sendResponseHeaders(200, body.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(body);
+        }
+        return true;
+    }
+
+    /**
+     * @return The cached asset, loading or reloading it as needed, or null if the file does not exist.
+     */
+    Asset get(String name) throws IOException {
+        File file = new File(baseDir, name);
+        Asset asset = cache.get(name);
+        if (asset != null && !asset.isStale(file)) {
+            return asset;
+        }
+        if (!file.isFile()) {
+            cache.remove(name);
+            return null;
+        }
+        // Concurrent reloads of the same file are harmless; the last one wins
+        asset = new Asset(file, Files.readAllBytes(file.toPath()), contentTypeOf(name));
+        cache.put(name, asset);
+        System.out.println("Loaded web asset: " + name + " (" + asset.length + " bytes"
+                + (asset.gzip != null ? ", gzip " + asset.gzip.length : "") + ")");
+        return asset;
+    }
+
+    /**
+     * Picks gzip, then deflate, if the client accepts them and the variant exists. A coding
+     * named with {@code q=0} is refused even if {@code *} would allow it.
+     *
+     * @return The content coding, or null for identity.
+     */
+    static String negotiate(String acceptEncoding, Asset asset) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        // null while the header does not name the coding
+        Boolean gzip = null;
+        Boolean deflate = null;
+        boolean any = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.trim().split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String p = params[i].trim().toLowerCase(Locale.ROOT);
+                if (p.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(p.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = accepted;
+            } else if (coding.equals("deflate")) {
+                deflate = accepted;
+            } else if (coding.equals("*")) {
+                any = accepted;
+            }
+        }
+        if ((gzip != null ? gzip : any) && asset.gzip != null) {
+            return "gzip";
+        }
+        if ((deflate != null ? deflate : any) && asset.deflate != null) {
+            return "deflate";
+        }
+        return null;
+    }
+
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String c = candidate.trim();
+            if (c.equals("*")) {
+                return true;
+            }
+            // If-None-Match uses weak comparison
+            if (c.startsWith("W/")) {
+                c = c.substring(2);
+            }
+            if (c.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String cacheControl(String contentType) {
+        // Pages revalidate every time (a cheap 304) so an updated UI shows up at once
+        return contentType.startsWith("text/html") ? "no-cache" : "public, max-age=3600";
+    }
+
+    private static String contentTypeOf(String name) {
+        String lower = name.toLowerCase();
+        if (lower.endsWith(".html") || lower.endsWith(".htm")) {
+            return "text/html; charset=utf-8";
+        } else if (lower.endsWith(".css")) {
+            return "text/css; charset=utf-8";
+        } else if (lower.endsWith(".js")) {
+            return "application/javascript; charset=utf-8";
+        } else if (lower.endsWith(".json")) {
+            return "application/json; charset=utf-8";
+        } else if (lower.endsWith(".svg")) {
+            return "image/svg+xml";
+        } else if (lower.endsWith(".png")) {
+            return "image/png";
+        } else if (lower.endsWith(".ico")) {
+            return "image/x-icon";
+        }
+        return "application/octet-stream";
+    }
+
+    private static byte[] compress(byte[] content, boolean gzip) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 3 + 64);
+        if (gzip) {
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            }) {
+                out.write(content);
+            }
+        } else {
+            // HTTP "deflate" is the zlib format
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+                out.write(content);
+            } finally {
+                deflater.end();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 12; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package com.lancast.lancast.core;
+
+import com.lancast.lancast.database.FileMetadata;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small previews of shared and received images, so a phone can see what a photo is
+ * without downloading all 12 MB of it.
+ * <p>
+ * Thumbnails are made on demand by a few low-priority threads, so a page full of photos
+ * cannot take the CPU from running transfers, and requests beyond what the queue holds
+ * are turned away. Decoding subsamples the source as it is read, so a large photo never
+ * sits in memory at full resolution. Requests for a thumbnail that is being made wait
+ * for that one decode instead of starting their own. Finished thumbnails are kept in a
+ * small LRU in memory and in a bounded disk cache, both per file version, so each version
+ * of a photo is decoded once.
+ */
+final class Thumbnails {
+
+    /** Thumbnails fit in a square of this many pixels. */
+    static final int SIZE = 256;
+
+    private static final int MEMORY_LIMIT = 32 * 1024 * 1024;
+    private static final long DISK_LIMIT = 256L * 1024 * 1024;
+    private static final int QUEUE_LIMIT = 256;
+    // Larger images, even subsampled, are not decoded (decompression bombs)
+    private static final long MAX_DECODED_PIXELS = 16_000_000;
+    private static final float JPEG_QUALITY = 0.8f;
+    // Where EXIF orientation is looked for in a JPEG
+    private static final int EXIF_SCAN_BYTES = 128 * 1024;
+
+    /** The result for files that have no thumbnail: not images, or not readable. */
+    static final Thumbnail NONE = new Thumbnail(null, null);
+
+    /**
+     * An encoded thumbnail.
+     */
+    static final class Thumbnail {
+        final byte[] data;
+        final String contentType;
+
+        Thumbnail(byte[] data, String contentType) {
+            this.data = data;
+            this.contentType = contentType;
+        }
+
+        int weight() {
+            return data != null ? data.length : 64;
+        }
+    }
+
+    private final File dir;
+    private final ThreadPoolExecutor pool;
+    // Thumbnails being made, so concurrent requests share one decode
+    private final Map<String, CompletableFuture<Thumbnail>> inFlight = new ConcurrentHashMap<>();
+    // Access-ordered, so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Thumbnail> memory = new LinkedHashMap<>(256, 0.75f, true);
+    private long memoryBytes;
+    // Size of the disk cache, counted on first use
+    private long diskBytes = -1;
+
+    /**
+     * @param dir The directory thumbnails are cached in.
+     */
+    Thumbnails(File dir) {
+        this.dir = dir;
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_LIMIT), r -> {
+                    Thread thread = new Thread(r, "lancast-thumbnail-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return The thumbnail of the file as it is now, when it is ready; {@link #NONE} if
+     *         it has none.
+     * @throws RejectedExecutionException If it has to be made and the queue is full.
+     */
+    CompletableFuture<Thumbnail> get(File file) {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        String key = key(file, size, lastModified);
+        Thumbnail cached = fromMemory(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<Thumbnail> future = new CompletableFuture<>();
+        CompletableFuture<Thumbnail> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            return running;
+        }
+        try {
+            pool.execute(() -> {
+                try {
+                    future.complete(load(file, size, lastModified, key));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(key, future);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key, future);
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Takes the thumbnail from the disk cache, or makes it.
+     */
+    private Thumbnail load(File file, long size, long lastModified, String key) throws IOException {
+        Thumbnail thumbnail = fromMemory(key); // Finished while this task was queued
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+        String name = cacheName(key);
+        for (String[] format : new String[][] { { ".jpg", "image/jpeg" }, { ".png", "image/png" } }) {
+            File copy = new File(dir, name + format[0]);
+            if (copy.isFile()) {
+                copy.setLastModified(System.currentTimeMillis()); // Recently used
+                thumbnail = new Thumbnail(Files.readAllBytes(copy.toPath()), format[1]);
+                toMemory(key, thumbnail);
+                return thumbnail;
+            }
+        }
+
+        thumbnail = render(file, size, lastModified);
+        if (file.length() != size || file.lastModified() != lastModified) {
+            return thumbnail; // Changed while it was read; not cached under this version
+        }
+        if (thumbnail.data != null) {
+            save(new File(dir, name + (thumbnail.contentType.equals("image/png") ? ".png" : ".jpg")), thumbnail.data);
+        }
+        toMemory(key, thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * Decodes the image at reduced resolution and encodes the thumbnail: PNG if it has
+     * transparency, JPEG otherwise.
+     */
+    private static Thumbnail render(File file, long size, long lastModified) throws IOException {
+        FileMetadata metadata = MetadataIndexer.cached(file, size, lastModified);
+        if (metadata != null && !metadata.mimeType.startsWith("image/")) {
+            return NONE;
+        }
+        BufferedImage image;
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                return NONE;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return NONE; // Not an image, or a format without a reader, e.g. HEIC
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                double scale = Math.min(1.0, (double) SIZE / Math.max(width, height));
+                int targetWidth = Math.max(1, (int) Math.round(width * scale));
+                int targetHeight = Math.max(1, (int) Math.round(height * scale));
+                // Every n-th pixel, keeping at least twice the thumbnail's resolution for a smooth result
+                int step = Math.max(1, Math.min(width / (2 * targetWidth), height / (2 * targetHeight)));
+                if ((long) (width / step) * (height / step) > MAX_DECODED_PIXELS) {
+                    return NONE;
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                image = scale(reader.read(0, param), targetWidth, targetHeight);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return NONE; // Corrupt or truncated image
+        }
+        image = orient(image, exifOrientation(file));
+        return image.getColorModel().hasAlpha()
+                ? new Thumbnail(encodePng(image), "image/png")
+                : new Thumbnail(encodeJpeg(image), "image/jpeg");
+    }
+
+    /**
+     * Scales down by halves, then to the exact size, which looks much like area averaging
+     * at a fraction of the cost.
+     */
+    private static BufferedImage scale(BufferedImage source, int width, int height) {
+        boolean alpha = source.getColorModel().hasAlpha();
+        BufferedImage current = source;
+        int w = source.getWidth();
+        int h = source.getHeight();
+        do {
+            w = Math.max(width, w / 2);
+            h = Math.max(height, h / 2);
+            BufferedImage next = new BufferedImage(w, h, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(current, 0, 0, w, h, null);
+            g.dispose();
+            current = next;
+        } while (w != width || h != height);
+        return current;
+    }
+
+    /**
+     * Turns an image the way its EXIF orientation says, as phones store photos as the
+     * sensor saw them.
+     *
+     * @param orientation The EXIF orientation, 1 to 8.
+     */
+    private static BufferedImage orient(BufferedImage image, int orientation) {
+        if (orientation < 2 || orientation > 8) {
+            return image;
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        boolean transposed = orientation >= 5;
+        BufferedImage result = new BufferedImage(transposed ? h : w, transposed ? w : h, image.getType());
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int rgb = image.getRGB(x, y);
+                switch (orientation) {
+                    case 2 -> result.setRGB(w - 1 - x, y, rgb);
+                    case 3 -> result.setRGB(w - 1 - x, h - 1 - y, rgb);
+                    case 4 -> result.setRGB(x, h - 1 - y, rgb);
+                    case 5 -> result.setRGB(y, x, rgb);
+                    case 6 -> result.setRGB(h - 1 - y, x, rgb);
+                    case 7 -> result.setRGB(h - 1 - y, w - 1 - x, rgb);
+                    default -> result.setRGB(y, w - 1 - x, rgb);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the orientation tag from a JPEG's EXIF block.
+     *
+     * @return The orientation, or 1 (as stored) if there is none.
+     */
+    private static int exifOrientation(File file) {
+        byte[] b;
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            b = in.readNBytes(EXIF_SCAN_BYTES);
+        } catch (IOException e) {
+            return 1;
+        }
+        if (b.length < 4 || (b[0] & 0xFF) != 0xFF || (b[1] & 0xFF) != 0xD8) {
+            return 1;
+        }
+        int i = 2;
+        while (i + 4 <= b.length && (b[i] & 0xFF) == 0xFF) {
+            int marker = b[i + 1] & 0xFF;
+            int length = ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+            if (marker == 0xDA) {
+                break; // Image data follows; EXIF comes before it
+            }
+            if (marker == 0xE1 && i + 10 <= b.length
+                    && new String(b, i + 4, 6, StandardCharsets.ISO_8859_1).equals("Exif\0\0")) {
+                return tiffOrientation(b, i + 10, Math.min(b.length, i + 2 + length));
+            }
+            i += 2 + length;
+        }
+        return 1;
+    }
+
+    private static int tiffOrientation(byte[] b, int tiff, int end) {
+        if (tiff + 8 > end) {
+            return 1;
+        }
+        boolean little = b[tiff] == 'I';
+        int ifd = tiff + (int) read(b, tiff + 4, 4, little);
+        if (ifd < tiff || ifd + 2 > end) {
+            return 1;
+        }
+        int entries = (int) read(b, ifd, 2, little);
+        for (int e = 0; e < entries; e++) {
+            int entry = ifd + 2 + e * 12;
+            if (entry + 12 > end) {
+                break;
+            }
+            if (read(b, entry, 2, little) == 0x0112) {
+                return (int) read(b, entry + 8, 2, little);
+            }
+        }
+        return 1;
+    }
+
+    private static long read(byte[] b, int offset, int length, boolean littleEndian) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int shift = littleEndian ? 8 * i : 8 * (length - 1 - i);
+            value |= (long) (b[offset + i] & 0xFF) << shift;
+        }
+        return value;
+    }
+
+    private static byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", bytes);
+        return bytes.toByteArray();
+    }
+
+    private synchronized Thumbnail fromMemory(String key) {
+        return memory.get(key);
+    }
+
+    private synchronized void toMemory(String key, Thumbnail thumbnail) {
+        Thumbnail previous = memory.put(key, thumbnail);
+        if (previous != null) {
+            memoryBytes -= previous.weight();
+        }
+        memoryBytes += thumbnail.weight();
+        Iterator<Thumbnail> eldest = memory.values().iterator();
+        while (memoryBytes > MEMORY_LIMIT && eldest.hasNext()) {
+            memoryBytes -= eldest.next().weight();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Writes a thumbnail to the disk cache, then deletes the least recently used ones if
+     * the cache is over its limit.
+     */
+    private void save(File copy, byte[] data) {
+        dir.mkdirs();
+        File temp = new File(dir, UUID.randomUUID() + ".tmp");
+        try {
+            Files.write(temp.toPath(), data);
+            Files.move(temp.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not cache thumbnail: " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        synchronized (this) {
+            File[] copies = null;
+            if (diskBytes < 0) {
+                copies = cachedCopies();
+                diskBytes = 0;
+                for (File f : copies) {
+                    diskBytes += f.length();
+                }
+            } else {
+                diskBytes += data.length;
+            }
+            if (diskBytes <= DISK_LIMIT) {
+                return;
+            }
+            if (copies == null) {
+                copies = cachedCopies();
+            }
+            Arrays.sort(copies, Comparator.comparingLong(File::lastModified));
+            for (File f : copies) {
+                if (diskBytes <= DISK_LIMIT * 3 / 4) {
+                    break;
+                }
+                long length = f.length();
+                if (f.delete()) {
+                    diskBytes -= length;
+                }
+            }
+        }
+    }
+
+    private File[] cachedCopies() {
+        File[] copies = dir.listFiles((d, name) -> name.endsWith(".jpg") || name.endsWith(".png"));
+        return copies != null ? copies : new File[0];
+    }
+
+    private static String cacheName(String key) {
+        byte[] hash = BlobStore.sha256().digest(key.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(hash, 0, 16);
+    }
+
+    private static String key(File file, long size, long lastModified) {
+        return file.getAbsolutePath() + '\0' + size + '\0' + lastModified;
+    }
+}
@@ -0,0 +1,477 @@
+package com.lancast.lancast.core;
+
+import com.lancast.lancast.database.FileMetadata;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+
+/**
+ * A ZIP archive of shared files and folders whose byte layout is fixed before anything is sent.
+ * <p>
+ * Every entry is stored, so its size and position follow from the file sizes alone and
+ * the archive has an exact length and a strong ETag. Any byte range can be produced by
+ * seeking into the layout: headers are encoded on demand and file data is copied with
+ * channel transfers. Folders are not listed up front; each request walks the tree again
+ * in the same order and recomputes the offsets as it goes. Only each file's size,
+ * modification time, name hash and CRC (if known) are kept, so every walk can check it
+ * finds the files the layout was made from before relying on the offsets.
+ * <p>
+ * A file whose CRC is already known, from the metadata index or an earlier download,
+ * has it in its local header like any plain ZIP. Only files not checksummed yet carry
+ * it in a data descriptor after their data; it is computed while the data goes out (or
+ * read separately when a range skips the data) and remembered for the next request.
+ * Streaming readers such as {@code java.util.zip.ZipInputStream} reject stored entries
+ * with a data descriptor, so once the shared files are indexed they read these archives too.
+ */
+public final class ZipArchive {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_CACHED_CHECKSUMS = 100_000;
+
+    // CRC-32 by path, size and modification time
+    private static final Map<String, Long> CHECKSUMS = new ConcurrentHashMap<>();
+
+    private final List<File> roots;
+    private final long entryCount;
+    private final long directoryOffset;
+    private final long directorySize;
+    private final long length;
+    private final String etag;
+    // Each file as the layout found it, in walk order
+    private final long[] sizes;
+    private final long[] lastModified;
+    private final int[] names;
+    // The CRCs known when the layout was made, -1 for entries with a data descriptor
+    private final long[] checksums;
+
+    /**
+     * A file and where its parts sit in the archive.
+     */
+    private static final class Item {
+        final File file;
+        final long lastModified;
+        final ZipWriter.Entry entry;
+        final long dataStart;
+        final long descriptorStart;
+        final long end;
+        // Whether the CRC follows the data rather than being in the local header
+        final boolean described;
+        boolean checksummed;
+        // Used while writing the central directory
+        long headerOffset;
+        ForkJoinTask<Long> checksumTask;
+
+        /**
+         * @param crc The file's CRC if known, or -1 to send it in a data descriptor.
+         */
+        Item(File file, String name, long size, long lastModified, long offset, long crc) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.described = crc < 0;
+            int flags = described ? ZipWriter.FLAG_DATA_DESCRIPTOR | ZipWriter.FLAG_UTF8 : ZipWriter.FLAG_UTF8;
+            this.entry = new ZipWriter.Entry(name.getBytes(StandardCharsets.UTF_8), ZipWriter.STORED, flags,
+                    ZipWriter.dosTime(lastModified), offset);
+            entry.compressedSize = size;
+            entry.size = size;
+            if (!described) {
+                entry.crc = crc;
+                checksummed = true;
+            }
+            this.dataStart = offset + ZipWriter.localHeaderLength(entry.name, size, size);
+            this.descriptorStart = dataStart + size;
+            this.end = descriptorStart + (described ? ZipWriter.dataDescriptorLength(size, size) : 0);
+        }
+
+        long size() {
+            return entry.size;
+        }
+
+        int centralHeaderLength() {
+            return ZipWriter.centralHeaderLength(entry.name, size(), size(), entry.offset);
+        }
+    }
+
+    /**
+     * Places files one after another as a walk produces them.
+     */
+    private static final class Layout {
+        long offset;
+        long count;
+        long directorySize;
+        // Filled in only by of()
+        long[] sizes = new long[16];
+        long[] lastModified = new long[16];
+        int[] names = new int[16];
+        long[] checksums = new long[16];
+
+        Item next(File file, String name, BasicFileAttributes attrs, long crc) {
+            Item item = new Item(file, name, attrs.size(), attrs.lastModifiedTime().toMillis(), offset, crc);
+            offset = item.end;
+            count++;
+            directorySize += item.centralHeaderLength();
+            return item;
+        }
+
+        void record(Item item, String name) {
+            int index = (int) count - 1;
+            if (index == sizes.length) {
+                sizes = Arrays.copyOf(sizes, index * 2);
+                lastModified = Arrays.copyOf(lastModified, index * 2);
+                names = Arrays.copyOf(names, index * 2);
+                checksums = Arrays.copyOf(checksums, index * 2);
+            }
+            sizes[index] = item.size();
+            lastModified[index] = item.lastModified;
+            names[index] = name.hashCode();
+            checksums[index] = item.described ? -1 : item.entry.crc;
+        }
+    }
+
+    private ZipArchive(List<File> roots, Layout layout, String etag) {
+        this.roots = List.copyOf(roots);
+        this.entryCount = layout.count;
+        this.directoryOffset = layout.offset;
+        this.directorySize = layout.directorySize;
+        this.length = directoryOffset + directorySize
+                + ZipWriter.endOfCentralDirectoryLength(entryCount, directoryOffset, directorySize);
+        this.etag = etag;
+        this.sizes = Arrays.copyOf(layout.sizes, (int) entryCount);
+        this.lastModified = Arrays.copyOf(layout.lastModified, (int) entryCount);
+        this.names = Arrays.copyOf(layout.names, (int) entryCount);
+        this.checksums = Arrays.copyOf(layout.checksums, (int) entryCount);
+    }
+
+    /**
+     * Lays out an archive of the files, and the files in the folders, as they are now.
+     * Files that no longer exist are left out.
+     */
+    public static ZipArchive of(List<File> roots) throws IOException {
+        Layout layout = new Layout();
+        MessageDigest digest = sha256();
+        ByteBuffer scratch = ByteBuffer.allocate(25);
+        SharedFolders.walk(roots, (file, name, attrs) -> {
+            Long known = knownChecksum(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+            Item item = layout.next(file, name, attrs, known != null ? known : -1);
+            layout.record(item, name);
+            digest.update(item.entry.name);
+            digest.update(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+            // The layout depends on which CRCs were known, so the validator does too
+            digest.update(scratch.clear().putLong(item.size()).putLong(item.lastModified)
+                    .putLong(known != null ? known : -1).put((byte) 0).flip());
+            return true;
+        });
+        String etag = "\"zip-" + HexFormat.of().formatHex(digest.digest(), 0, 12) + "\"";
+        return new ZipArchive(roots, layout, etag);
+    }
+
+    /**
+     * @return The exact size of the archive in bytes.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return A strong validator; it changes when any file is added, removed or modified.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return The shared files and folders the archive is made of.
+     */
+    public List<File> getRoots() {
+        return roots;
+    }
+
+    /**
+     * Writes part of the archive. The stream is flushed but not closed.
+     *
+     * @param start  Offset of the first byte.
+     * @param count  Number of bytes to write.
+     * @throws IOException If files changed since the layout was made, or the peer went away.
+     */
+    public void write(OutputStream out, long start, long count) throws IOException {
+        long end = start + count;
+        OutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+        if (start < directoryOffset) {
+            Layout layout = new Layout();
+            SharedFolders.walk(roots, (file, name, attrs) -> {
+                Item item = next(layout, file, name, attrs);
+                if (item.end > start) {
+                    writeItem(item, start, end, buffered, out);
+                }
+                return item.end < end;
+            });
+            // A walk that stopped early has checked every file up to the range
+            if (end >= directoryOffset ? layout.offset != directoryOffset : layout.offset < end) {
+                throw new IOException("Shared files changed while zipping");
+            }
+        }
+        if (end > directoryOffset) {
+            writeDirectory(buffered, start, end);
+        }
+        buffered.flush();
+    }
+
+    /**
+     * Places the next file a walk produced, checking it is the one the layout was made
+     * from: a file that grew, shrank, changed or was renamed would move everything after it.
+     */
+    private Item next(Layout layout, File file, String name, BasicFileAttributes attrs) throws IOException {
+        int index = (int) layout.count;
+        if (index >= entryCount) {
+            throw new IOException("Shared files changed while zipping: " + name);
+        }
+        Item item = layout.next(file, name, attrs, checksums[index]);
+        if (sizes[index] != item.size() || lastModified[index] != item.lastModified
+                || names[index] != name.hashCode()) {
+            throw new IOException("Shared files changed while zipping: " + name);
+        }
+        return item;
+    }
+
+    private void writeItem(Item item, long start, long end, OutputStream buffered, OutputStream out)
+            throws IOException {
+        if (start < item.dataStart) {
+            byte[] header = ZipWriter.localHeader(item.entry, item.described ? 0 : item.entry.crc, item.size(),
+                    item.size());
+            writeSlice(buffered, header, item.entry.offset, start, end);
+        }
+        if (start < item.descriptorStart && end > item.dataStart) {
+            long from = Math.max(start, item.dataStart) - item.dataStart;
+            long to = Math.min(end, item.descriptorStart) - item.dataStart;
+            writeData(item, from, to, buffered, out);
+        }
+        if (item.described && end > item.descriptorStart) {
+            byte[] descriptor = ZipWriter.dataDescriptor(checksum(item), item.size(), item.size());
+            writeSlice(buffered, descriptor, item.descriptorStart, start, end);
+        }
+    }
+
+    /**
+     * Writes the part of the central directory and end records in {@code [start, end)}.
+     * CRCs that are not known yet are computed on the ZIP pool, a window of files ahead.
+     */
+    private void writeDirectory(OutputStream out, long start, long end) throws IOException {
+        ForkJoinPool pool = ZipStreamManager.pool();
+        int window = pool.getParallelism() * 2;
+        Deque<Item> pending = new ArrayDeque<>();
+        Layout layout = new Layout();
+        try {
+            SharedFolders.walk(roots, (file, name, attrs) -> {
+                Item item = next(layout, file, name, attrs);
+                item.headerOffset = directoryOffset + layout.directorySize - item.centralHeaderLength();
+                if (item.headerOffset >= end) {
+                    return false;
+                }
+                if (layout.directorySize + directoryOffset <= start) {
+                    return true; // Before the range; its CRC is not needed
+                }
+                if (cachedChecksum(item) == null) {
+                    item.checksumTask = pool.submit(() -> {
+                        try {
+                            return checksum(item.file, item.size(), item.lastModified);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }
+                pending.add(item);
+                while (pending.size() >= window) {
+                    writeCentralHeader(pending.poll(), out, start, end);
+                }
+                return true;
+            });
+            if (end > directoryOffset + layout.directorySize && layout.count != entryCount) {
+                throw new IOException("Shared files changed while zipping");
+            }
+            while (!pending.isEmpty()) {
+                writeCentralHeader(pending.poll(), out, start, end);
+            }
+        } finally {
+            for (Item item : pending) {
+                if (item.checksumTask != null) {
+                    item.checksumTask.cancel(false);
+                }
+            }
+        }
+        byte[] tail = ZipWriter.endOfCentralDirectory(entryCount, directoryOffset, directorySize);
+        writeSlice(out, tail, directoryOffset + directorySize, start, end);
+    }
+
+    private void writeCentralHeader(Item item, OutputStream out, long start, long end) throws IOException {
+        if (item.checksumTask != null) {
+            try {
+                remember(item, item.checksumTask.join());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        checksum(item);
+        writeSlice(out, ZipWriter.centralHeader(item.entry), item.headerOffset, start, end);
+    }
+
+    /**
+     * Writes the part of {@code bytes}, located at {@code position} in the archive, that falls in {@code [start, end)}.
+     */
+    private static void writeSlice(OutputStream out, byte[] bytes, long position, long start, long end)
+            throws IOException {
+        long from = Math.max(start, position);
+        long to = Math.min(end, position + bytes.length);
+        if (from < to) {
+            out.write(bytes, (int) (from - position), (int) (to - from));
+        }
+    }
+
+    /**
+     * Writes bytes {@code [from, to)} of a file. A whole file whose CRC is not known yet is
+     * copied through the checksum; anything else goes by channel transfer.
+     */
+    private void writeData(Item item, long from, long to, OutputStream buffered, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(item.file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() != item.size() || item.file.lastModified() != item.lastModified) {
+                throw new IOException("File changed while zipping: " + item.file.getName());
+            }
+            if (from == 0 && to == item.size() && !item.checksummed && cachedChecksum(item) == null) {
+                CRC32 crc = new CRC32();
+                byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(item.size(), 1))];
+                ByteBuffer bb = ByteBuffer.wrap(buffer);
+                long position = 0;
+                while (position < to) {
+                    bb.clear().limit((int) Math.min(buffer.length, to - position));
+                    int n = channel.read(bb, position);
+                    if (n < 0) {
+                        throw new IOException("File truncated while zipping: " + item.file.getName());
+                    }
+                    crc.update(buffer, 0, n);
+                    buffered.write(buffer, 0, n);
+                    position += n;
+                }
+                remember(item, crc.getValue());
+                return;
+            }
+            buffered.flush();
+            FileTransfer.transfer(channel, from, to - from, out);
+        }
+    }
+
+    private long checksum(Item item) throws IOException {
+        if (!item.checksummed) {
+            remember(item, checksum(item.file, item.size(), item.lastModified));
+        }
+        return item.entry.crc;
+    }
+
+    private Long cachedChecksum(Item item) {
+        if (item.checksummed) {
+            return item.entry.crc;
+        }
+        Long crc = knownChecksum(item.file, item.size(), item.lastModified);
+        if (crc != null) {
+            item.entry.crc = crc;
+            item.checksummed = true;
+        }
+        return crc;
+    }
+
+    private static void remember(Item item, long crc) {
+        item.entry.crc = crc;
+        item.checksummed = true;
+        cache(key(item.file, item.size(), item.lastModified), crc);
+    }
+
+    /**
+     * Computes the CRC-32 of a file, or returns the one remembered for this version of it.
+     *
+     * @param size         The size the file is expected to have.
+     * @param lastModified The modification time it is expected to have.
+     * @throws IOException If the file cannot be read or no longer matches.
+     */
+    static long checksum(File file, long size, long lastModified) throws IOException {
+        Long cached = knownChecksum(file, size, lastModified);
+        if (cached != null) {
+            return cached;
+        }
+        String key = key(file, size, lastModified);
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() != size || file.lastModified() != lastModified) {
+                throw new IOException("File changed while zipping: " + file.getName());
+            }
+            long position = 0;
+            while (position < size) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new IOException("File truncated while zipping: " + file.getName());
+                }
+                buffer.flip();
+                crc.update(buffer);
+                position += n;
+            }
+        }
+        cache(key, crc.getValue());
+        return crc.getValue();
+    }
+
+    /**
+     * @return The CRC-32 of this version of the file if it was computed before, by a ZIP
+     *         download or the metadata indexer, or null.
+     */
+    private static Long knownChecksum(File file, long size, long lastModified) {
+        Long crc = CHECKSUMS.get(key(file, size, lastModified));
+        if (crc == null) {
+            FileMetadata metadata = MetadataIndexer.cached(file, size, lastModified);
+            if (metadata != null && metadata.crc32 >= 0) {
+                crc = metadata.crc32;
+            }
+        }
+        return crc;
+    }
+
+    private static void cache(String key, long crc) {
+        if (CHECKSUMS.size() >= MAX_CACHED_CHECKSUMS) {
+            CHECKSUMS.clear(); // Rarely reached; starting over is cheaper than tracking use
+        }
+        CHECKSUMS.put(key, crc);
+    }
+
+    private static String key(File file, long size, long lastModified) {
+        return file.getAbsolutePath() + '\0' + size + '\0' + lastModified;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,64 +1,316 @@
 package com.lancast.lancast.core;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import com.lancast.lancast.database.FileMetadata;
+
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
  * Utility class for managing file zipping operations.
  * Designed for high-performance streaming directly to the network without temporary files.
+ * <p>
+ * Files are cut into chunks that are deflated in parallel on a shared fork-join pool,
+ * while the request thread reads ahead and writes finished chunks in order. Each chunk
+ * is primed with the end of the previous one as its dictionary and ends on a sync flush,
+ * so the chunks of an entry join into one ordinary deflate stream and the archive opens
+ * with any unzip tool. Content that is already compressed is stored instead, copied
+ * with channel transfers after a CRC pass that runs ahead on the pool.
  */
 public class ZipStreamManager {
 
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static volatile ForkJoinPool pool = newPool(0);
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    /**
+     * Something queued for the archive, in order, with work running on the pool.
+     */
+    private abstract static class Pending {
+        ForkJoinTask<?> task;
+
+        /** Waits for the task and writes the result. */
+        abstract void write(ZipWriter zip) throws IOException;
+    }
+
+    /**
+     * Progress through one deflated file, shared by its chunks.
+     */
+    private static final class EntryState {
+        final String name;
+        final long lastModified;
+        final CRC32 crc = new CRC32();
+        long size;
+        long compressedSize;
+
+        EntryState(String name, long lastModified) {
+            this.name = name;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * A piece of a file, deflated on the pool.
+     */
+    private static final class Chunk extends Pending {
+        final EntryState entry;
+        final byte[] data;
+        final byte[] dictionary;
+        final boolean first;
+        final boolean last;
+
+        Chunk(EntryState entry, byte[] data, byte[] dictionary, boolean first, boolean last) {
+            this.entry = entry;
+            this.data = data;
+            this.dictionary = dictionary;
+            this.first = first;
+            this.last = last;
+        }
+
+        byte[] compress() {
+            Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data);
+            byte[] buf = new byte[data.length + data.length / 1000 + 64];
+            int len = 0;
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (len == buf.length) {
+                        buf = Arrays.copyOf(buf, buf.length * 2);
+                    }
+                    len += deflater.deflate(buf, len, buf.length - len);
+                }
+            } else {
+                // A sync flush ends the chunk on a byte boundary so the next one can follow directly
+                while (true) {
+                    int n = deflater.deflate(buf, len, buf.length - len, Deflater.SYNC_FLUSH);
+                    len += n;
+                    if (len < buf.length) {
+                        break;
+                    }
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+            }
+            return Arrays.copyOf(buf, len);
+        }
+
+        @Override
+        void write(ZipWriter zip) throws IOException {
+            byte[] compressed = (byte[]) task.join();
+            if (first) {
+                zip.beginEntry(entry.name, ZipWriter.DEFLATED, entry.lastModified);
+            }
+            entry.crc.update(data);
+            entry.size += data.length;
+            entry.compressedSize += compressed.length;
+            zip.writeData(compressed, 0, compressed.length);
+            if (last) {
+                zip.endEntry(entry.crc.getValue(), entry.compressedSize, entry.size);
+            }
+        }
+    }
+
+    /**
+     * An already-compressed file, stored as is. Its CRC is computed on the pool ahead of
+     * time so the local header is exact, then the content is copied by channel transfer.
+     */
+    private static final class StoredFile extends Pending {
+        final File file;
+        final String name;
+        final long lastModified;
+        final long size;
+
+        StoredFile(File file, String name) {
+            this.file = file;
+            this.name = name;
+            this.lastModified = file.lastModified();
+            this.size = file.length();
+        }
+
+        long checksum() {
+            try {
+                return ZipArchive.checksum(file, size, lastModified);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        void write(ZipWriter zip) throws IOException {
+            long crc;
+            try {
+                crc = (Long) task.join();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() != size) {
+                    throw new IOException("File changed while zipping: " + file.getName());
+                }
+                zip.beginStoredEntry(name, lastModified, crc, size);
+                zip.transferData(channel, 0, size);
+                zip.endEntry(crc, size, size);
+            }
+        }
+    }
+
+    /**
+     * Sets how many threads compress ZIP downloads, shared by all downloads.
+     *
+     * @param threads The thread count, or 0 for one per CPU core.
+     */
+    public static synchronized void setParallelism(int threads) {
+        int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        if (pool.getParallelism() == parallelism) {
+            return;
+        }
+        // Running downloads keep the old pool; its idle workers exit on their own
+        pool = newPool(parallelism);
+    }
+
+    public static int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * @return The pool ZIP work currently runs on.
+     */
+    static ForkJoinPool pool() {
+        return pool;
+    }
+
+    private static ForkJoinPool newPool(int threads) {
+        int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        return new ForkJoinPool(parallelism, p -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("lancast-zip-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
     /**
      * Streams a list of files as a ZIP archive directly to the provided OutputStream.
      * This method avoids creating a temporary ZIP file on disk, improving performance and reducing I/O.
      *
-     * @param files The list of files to be compressed and streamed.
+     * @param files The files to be compressed and streamed; folders are added with everything in them.
      * @param out   The OutputStream to write the ZIP data to (typically the network stream).
      * @throws IOException If an I/O error occurs during zipping or streaming.
      */
     public static void streamZip(List<File> files, OutputStream out) throws IOException {
-        // Use BufferedOutputStream for efficiency
-        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(out))) {
+        ForkJoinPool pool = ZipStreamManager.pool;
+        // Enough work in flight to keep every thread busy while the oldest is written
+        int window = pool.getParallelism() * 2;
+        Deque<Pending> inFlight = new ArrayDeque<>();
+        ZipWriter zip = new ZipWriter(out);
 
-            for (File file : files) {
-                if (!file.exists() || !file.isFile()) {
-                    System.err.println("Skipping invalid file: " + file.getAbsolutePath());
-                    continue;
+        try {
+            // Folders are walked as the archive streams, so their files are never all listed at once
+            SharedFolders.walk(files, (file, name, attrs) -> {
+                // Photos, video and archives would not shrink; store them and skip the CPU work
+                FileMetadata metadata = MetadataIndexer.cached(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+                if (metadata != null ? metadata.incompressible : Compressibility.isIncompressible(file)) {
+                    StoredFile stored = new StoredFile(file, name);
+                    stored.task = pool.submit(stored::checksum);
+                    enqueue(zip, inFlight, stored, window);
+                    return true;
                 }
 
-                // Create a new ZipEntry for the file
-                ZipEntry zipEntry = new ZipEntry(file.getName());
-                zos.putNextEntry(zipEntry);
-
-                // Read the file content and write it to the ZipOutputStream
-                // Using BufferedInputStream for efficient reading
-                try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
-                    byte[] buffer = new byte[8192]; // 8KB buffer
-                    int bytesRead;
-                    while ((bytesRead = bis.read(buffer)) != -1) {
-                        zos.write(buffer, 0, bytesRead);
-                    }
+                EntryState entry = new EntryState(name, file.lastModified());
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    long position = 0;
+                    byte[] previous = null;
+                    boolean last;
+                    do {
+                        int n = (int) Math.min(CHUNK_SIZE, size - position);
+                        byte[] data = read(channel, position, n);
+                        position += n;
+                        last = position >= size;
+
+                        Chunk chunk = new Chunk(entry, data, dictionaryOf(previous), previous == null, last);
+                        chunk.task = pool.submit(chunk::compress);
+                        enqueue(zip, inFlight, chunk, window);
+                        previous = data;
+                    } while (!last);
                 }
+                return true;
+            });
+            while (!inFlight.isEmpty()) {
+                inFlight.poll().write(zip);
+            }
+            zip.finish();
+        } finally {
+            for (Pending p : inFlight) {
+                p.task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Queues work and writes the oldest items while the window is full.
+     */
+    private static void enqueue(ZipWriter zip, Deque<Pending> inFlight, Pending pending, int window) throws IOException {
+        inFlight.add(pending);
+        while (inFlight.size() >= window) {
+            inFlight.poll().write(zip);
+        }
+    }
 
-                // Close the current entry
-                zos.closeEntry();
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File truncated while zipping");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static byte[] dictionaryOf(byte[] previous) {
+        if (previous == null) {
+            return null;
+        }
+        return previous.length <= DICTIONARY_SIZE ? previous
+                : Arrays.copyOfRange(previous, previous.length - DICTIONARY_SIZE, previous.length);
+    }
+
+    /**
+     * Makes entry names unique, since files with the same name can come from different folders.
+     */
+    static String uniqueName(String name, Set<String> used) {
+        if (used.add(name)) {
+            return name;
+        }
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int i = 2; ; i++) {
+            String candidate = base + " (" + i + ")" + ext;
+            if (used.add(candidate)) {
+                return candidate;
             }
-            
-            // Finish the ZIP process (this writes the central directory)
-            // Note: We do NOT close the underlying 'out' stream here, as the server might need to do more with it,
-            // or the server framework handles closing the exchange stream. 
-            // However, ZipOutputStream.close() DOES close the underlying stream.
-            // In the context of HttpExchange, closing the response body stream is usually fine/required to end the response.
-            zos.finish();
-            zos.flush();
         }
     }
 }
@@ -0,0 +1,357 @@
+package com.lancast.lancast.core;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the ZIP container format around entry data that the caller has already
+ * encoded. Unlike {@link java.util.zip.ZipOutputStream} it does not compress anything
+ * itself, so entries can be deflated elsewhere (in parallel) and copied in as they are.
+ * Entries whose CRC and size are known up front get exact local headers and can be
+ * copied straight from a file channel; others carry a data descriptor instead.
+ * <p>
+ * ZIP64 records are used where a size, an offset or the entry count does not fit the
+ * classic fields, and only there, so small archives stay readable by old tools. The
+ * record encoders are shared with {@link ZipArchive}, which lays archives out ahead of time.
+ */
+public class ZipWriter {
+
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    static final int FLAG_UTF8 = 1 << 11;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int ZIP64_END_LOCATOR = 0x07064b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int ZIP64_EXTRA = 0x0001;
+    // Values at or above these limits move to the ZIP64 records
+    private static final long LIMIT_32 = 0xFFFFFFFFL;
+    private static final int LIMIT_16 = 0xFFFF;
+
+    private final OutputStream raw;
+    private final OutputStream out;
+    private final List<Entry> entries = new ArrayList<>();
+    private long written;
+    private Entry current;
+
+    /**
+     * An entry as recorded in the central directory.
+     */
+    static final class Entry {
+        final byte[] name;
+        final int method;
+        final int flags;
+        final int dosTime;
+        final long offset;
+        long crc;
+        long compressedSize;
+        long size;
+        long dataStart;
+
+        Entry(byte[] name, int method, int flags, int dosTime, long offset) {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.dosTime = dosTime;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * @param out The stream to write to. Writes are buffered here; {@link #transferData}
+     *            goes to the stream directly so it can use zero-copy transfers.
+     */
+    public ZipWriter(OutputStream out) {
+        this.raw = out;
+        this.out = new BufferedOutputStream(out, 64 * 1024);
+    }
+
+    /**
+     * Starts an entry whose CRC and sizes follow in a data descriptor.
+     * Its encoded data follows through {@link #writeData}.
+     *
+     * @param method       {@link #STORED} or {@link #DEFLATED}.
+     * @param lastModified Modification time in epoch millis.
+     */
+    public void beginEntry(String name, int method, long lastModified) throws IOException {
+        begin(name, method, FLAG_DATA_DESCRIPTOR | FLAG_UTF8, lastModified, 0, 0);
+    }
+
+    /**
+     * Starts a {@link #STORED} entry with a complete local header.
+     *
+     * @param crc  CRC-32 of the content.
+     * @param size The content size.
+     */
+    public void beginStoredEntry(String name, long lastModified, long crc, long size) throws IOException {
+        begin(name, STORED, FLAG_UTF8, lastModified, crc, size);
+        current.crc = crc;
+        current.compressedSize = size;
+        current.size = size;
+    }
+
+    private void begin(String name, int method, int flags, long lastModified, long crc, long size) throws IOException {
+        if (current != null) {
+            throw new IllegalStateException("Entry not ended: " + new String(current.name, StandardCharsets.UTF_8));
+        }
+        current = new Entry(name.getBytes(StandardCharsets.UTF_8), method, flags, dosTime(lastModified), written);
+        byte[] header = localHeader(current, crc, size, size);
+        write(header, 0, header.length);
+        current.dataStart = written;
+    }
+
+    /**
+     * Writes encoded entry data.
+     */
+    public void writeData(byte[] data, int off, int len) throws IOException {
+        write(data, off, len);
+    }
+
+    /**
+     * Copies entry data straight from a file, zero-copy where the stream allows it.
+     */
+    public void transferData(FileChannel source, long position, long length) throws IOException {
+        out.flush();
+        FileTransfer.transfer(source, position, length, raw);
+        written += length;
+    }
+
+    /**
+     * Ends the current entry.
+     *
+     * @param crc            CRC-32 of the uncompressed data.
+     * @param compressedSize Bytes written through {@link #writeData}.
+     * @param size           Uncompressed size.
+     */
+    public void endEntry(long crc, long compressedSize, long size) throws IOException {
+        if (current == null) {
+            throw new IllegalStateException("No entry started");
+        }
+        if ((current.flags & FLAG_DATA_DESCRIPTOR) == 0) {
+            // The local header already holds the values; they had better be right
+            if (crc != current.crc || size != current.size || written - current.dataStart != compressedSize
+                    || compressedSize != current.compressedSize) {
+                throw new IOException("Entry changed while zipping: " + new String(current.name, StandardCharsets.UTF_8));
+            }
+            entries.add(current);
+            current = null;
+            return;
+        }
+        current.crc = crc;
+        current.compressedSize = compressedSize;
+        current.size = size;
+        byte[] descriptor = dataDescriptor(crc, compressedSize, size);
+        write(descriptor, 0, descriptor.length);
+        entries.add(current);
+        current = null;
+    }
+
+    /**
+     * Writes the central directory. The underlying stream is flushed but not closed.
+     */
+    public void finish() throws IOException {
+        if (current != null) {
+            throw new IllegalStateException("Entry not ended");
+        }
+        long directoryOffset = written;
+        for (Entry e : entries) {
+            byte[] header = centralHeader(e);
+            write(header, 0, header.length);
+        }
+        byte[] end = endOfCentralDirectory(entries.size(), directoryOffset, written - directoryOffset);
+        write(end, 0, end.length);
+        out.flush();
+    }
+
+    /**
+     * @return Bytes written so far.
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    private void write(byte[] data, int off, int len) throws IOException {
+        out.write(data, off, len);
+        written += len;
+    }
+
+    /**
+     * Encodes a local file header. Entries with a data descriptor have a zero CRC here;
+     * sizes that do not fit 32 bits go into a ZIP64 extra field.
+     */
+    static byte[] localHeader(Entry e, long crc, long compressedSize, long size) {
+        boolean zip64 = compressedSize >= LIMIT_32 || size >= LIMIT_32;
+        ByteBuffer b = buffer(localHeaderLength(e.name, compressedSize, size));
+        b.putInt(LOCAL_HEADER);
+        b.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+        b.putShort((short) e.flags);
+        b.putShort((short) e.method);
+        b.putInt(e.dosTime);
+        b.putInt((int) crc);
+        b.putInt((int) (zip64 ? LIMIT_32 : compressedSize));
+        b.putInt((int) (zip64 ? LIMIT_32 : size));
+        b.putShort((short) e.name.length);
+        b.putShort((short) (zip64 ? 20 : 0));
+        b.put(e.name);
+        if (zip64) {
+            b.putShort((short) ZIP64_EXTRA);
+            b.putShort((short) 16);
+            b.putLong(size);
+            b.putLong(compressedSize);
+        }
+        return b.array();
+    }
+
+    static int localHeaderLength(byte[] name, long compressedSize, long size) {
+        return 30 + name.length + (compressedSize >= LIMIT_32 || size >= LIMIT_32 ? 20 : 0);
+    }
+
+    /**
+     * Encodes a data descriptor, with 8-byte sizes when they do not fit 32 bits.
+     */
+    static byte[] dataDescriptor(long crc, long compressedSize, long size) {
+        boolean zip64 = compressedSize >= LIMIT_32 || size >= LIMIT_32;
+        ByteBuffer b = buffer(dataDescriptorLength(compressedSize, size));
+        b.putInt(DATA_DESCRIPTOR);
+        b.putInt((int) crc);
+        if (zip64) {
+            b.putLong(compressedSize);
+            b.putLong(size);
+        } else {
+            b.putInt((int) compressedSize);
+            b.putInt((int) size);
+        }
+        return b.array();
+    }
+
+    static int dataDescriptorLength(long compressedSize, long size) {
+        return compressedSize >= LIMIT_32 || size >= LIMIT_32 ? 24 : 16;
+    }
+
+    /**
+     * Encodes a central directory header. Sizes and the offset that do not fit 32 bits
+     * are replaced by 0xFFFFFFFF and listed, in that order, in a ZIP64 extra field.
+     */
+    static byte[] centralHeader(Entry e) {
+        int extra = centralExtraLength(e.compressedSize, e.size, e.offset);
+        ByteBuffer b = buffer(46 + e.name.length + extra);
+        int version = extra > 0 ? VERSION_ZIP64 : VERSION;
+        b.putInt(CENTRAL_HEADER);
+        b.putShort((short) version); // Made by
+        b.putShort((short) version); // Needed to extract
+        b.putShort((short) e.flags);
+        b.putShort((short) e.method);
+        b.putInt(e.dosTime);
+        b.putInt((int) e.crc);
+        b.putInt((int) Math.min(e.compressedSize, LIMIT_32));
+        b.putInt((int) Math.min(e.size, LIMIT_32));
+        b.putShort((short) e.name.length);
+        b.putShort((short) extra);
+        b.putShort((short) 0); // Comment
+        b.putShort((short) 0); // Disk number
+        b.putShort((short) 0); // Internal attributes
+        b.putInt(0); // External attributes
+        b.putInt((int) Math.min(e.offset, LIMIT_32));
+        b.put(e.name);
+        if (extra > 0) {
+            b.putShort((short) ZIP64_EXTRA);
+            b.putShort((short) (extra - 4));
+            if (e.size >= LIMIT_32) {
+                b.putLong(e.size);
+            }
+            if (e.compressedSize >= LIMIT_32) {
+                b.putLong(e.compressedSize);
+            }
+            if (e.offset >= LIMIT_32) {
+                b.putLong(e.offset);
+            }
+        }
+        return b.array();
+    }
+
+    static int centralHeaderLength(byte[] name, long compressedSize, long size, long offset) {
+        return 46 + name.length + centralExtraLength(compressedSize, size, offset);
+    }
+
+    private static int centralExtraLength(long compressedSize, long size, long offset) {
+        int fields = (size >= LIMIT_32 ? 1 : 0) + (compressedSize >= LIMIT_32 ? 1 : 0) + (offset >= LIMIT_32 ? 1 : 0);
+        return fields == 0 ? 0 : 4 + fields * 8;
+    }
+
+    /**
+     * Encodes the end of central directory record, preceded by the ZIP64 end record and
+     * its locator when the entry count or the directory position needs them.
+     */
+    static byte[] endOfCentralDirectory(long count, long directoryOffset, long directorySize) {
+        boolean zip64 = needsZip64End(count, directoryOffset, directorySize);
+        ByteBuffer b = buffer(endOfCentralDirectoryLength(count, directoryOffset, directorySize));
+        if (zip64) {
+            long recordOffset = directoryOffset + directorySize;
+            b.putInt(ZIP64_END_OF_CENTRAL_DIRECTORY);
+            b.putLong(44); // Size of the rest of the record
+            b.putShort((short) VERSION_ZIP64);
+            b.putShort((short) VERSION_ZIP64);
+            b.putInt(0); // This disk
+            b.putInt(0); // Disk with the central directory
+            b.putLong(count);
+            b.putLong(count);
+            b.putLong(directorySize);
+            b.putLong(directoryOffset);
+
+            b.putInt(ZIP64_END_LOCATOR);
+            b.putInt(0);
+            b.putLong(recordOffset);
+            b.putInt(1); // Total disks
+        }
+        b.putInt(END_OF_CENTRAL_DIRECTORY);
+        b.putShort((short) 0);
+        b.putShort((short) 0);
+        b.putShort((short) Math.min(count, LIMIT_16));
+        b.putShort((short) Math.min(count, LIMIT_16));
+        b.putInt((int) Math.min(directorySize, LIMIT_32));
+        b.putInt((int) Math.min(directoryOffset, LIMIT_32));
+        b.putShort((short) 0);
+        return b.array();
+    }
+
+    static int endOfCentralDirectoryLength(long count, long directoryOffset, long directorySize) {
+        return needsZip64End(count, directoryOffset, directorySize) ? 56 + 20 + 22 : 22;
+    }
+
+    private static boolean needsZip64End(long count, long directoryOffset, long directorySize) {
+        return count >= LIMIT_16 || directoryOffset >= LIMIT_32 || directorySize >= LIMIT_32;
+    }
+
+    private static ByteBuffer buffer(int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Converts a timestamp to the MS-DOS date and time fields (date in the high half).
+     */
+    static int dosTime(long millis) {
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (t.getYear() < 1980) {
+            return (1 << 21) | (1 << 16); // 1980-01-01 00:00
+        }
+        return (t.getYear() - 1980) << 25 | t.getMonthValue() << 21 | t.getDayOfMonth() << 16
+                | t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+    }
+}
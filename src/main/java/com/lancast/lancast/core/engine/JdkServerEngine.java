@@ -0,0 +1,45 @@
+package com.lancast.lancast.core.engine;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * Engine backed by the JDK's {@link HttpServer}. This is the default.
+ */
+public class JdkServerEngine implements ServerEngine {
+
+    private final HttpServer server;
+
+    public JdkServerEngine(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+    }
+
+    @Override
+    public void createContext(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        server.setExecutor(executor);
+    }
+
+    @Override
+    public void start() {
+        server.start();
+    }
+
+    @Override
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+    }
+
+    @Override
+    public String getName() {
+        return JDK;
+    }
+}
@@ -0,0 +1,597 @@
+package com.lancast.lancast.core.engine;
+
+import com.lancast.lancast.core.FileTransfer;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One request/response on a {@link NioServerEngine} connection.
+ * <p>
+ * Follows the {@link HttpExchange} contract of the JDK server so handlers run unchanged:
+ * a response length of 0 means chunked, -1 means no body. The response stream writes
+ * straight to the socket and exposes it as a {@link FileTransfer.ChannelOutput}.
+ */
+final class NioHttpExchange extends HttpExchange {
+
+    /** Unread request body we are willing to discard to keep a connection alive. */
+    private static final long MAX_DRAIN_BYTES = 1024 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final NioServerEngine.Connection connection;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final RequestBody rawIn;
+    private final ResponseBody rawOut = new ResponseBody();
+    private InputStream in;
+    private OutputStream out;
+    private HttpContext context;
+    private boolean keepAlive;
+    private int responseCode = -1;
+
+    private NioHttpExchange(NioServerEngine.Connection connection, String method, URI uri, String protocol,
+                            Headers requestHeaders, RequestBody body) {
+        this.connection = connection;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.rawIn = body;
+        this.in = body;
+        this.out = rawOut;
+    }
+
+    /**
+     * Parses the request head buffered on the connection and consumes it.
+     *
+     * @param headEnd The index just past the head's terminating blank line.
+     * @return The exchange, or null if the head is malformed.
+     */
+    static NioHttpExchange parse(NioServerEngine.Connection c, int headEnd) {
+        byte[] head = new byte[headEnd];
+        c.in.get(0, head);
+        c.consume(headEnd);
+
+        String[] lines = new String(head, 0, headEnd - 4, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            return null;
+        }
+        URI uri;
+        try {
+            uri = new URI(requestLine[1]);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+
+        Headers headers = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                return null;
+            }
+            headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+        }
+
+        RequestBody body;
+        String transferEncoding = headers.getFirst("Transfer-Encoding");
+        if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            body = new RequestBody(c, -1);
+        } else {
+            long length = 0;
+            String contentLength = headers.getFirst("Content-Length");
+            if (contentLength != null) {
+                try {
+                    length = Long.parseLong(contentLength.trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (length < 0) {
+                    return null;
+                }
+            }
+            body = new RequestBody(c, length);
+        }
+        body.expectContinue = "100-continue".equalsIgnoreCase(headers.getFirst("Expect"));
+
+        NioHttpExchange exchange = new NioHttpExchange(c, requestLine[0], uri, requestLine[2], headers, body);
+        String connectionHeader = headers.getFirst("Connection");
+        if ("HTTP/1.0".equals(requestLine[2])) {
+            exchange.keepAlive = "keep-alive".equalsIgnoreCase(connectionHeader);
+        } else {
+            exchange.keepAlive = !"close".equalsIgnoreCase(connectionHeader);
+        }
+        return exchange;
+    }
+
+    static void writeBadRequest(NioServerEngine.Connection c) {
+        byte[] bytes = "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        try {
+            writeFully(c, ByteBuffer.wrap(bytes));
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Lowers keep-alive for this exchange; it can never be raised past what the client asked for. */
+    void setKeepAlive(boolean allowed) {
+        keepAlive &= allowed;
+    }
+
+    void setContext(HttpContext context) {
+        this.context = context;
+    }
+
+    void sendSimple(int code, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        responseHeaders.set("Content-Type", "text/plain; charset=utf-8");
+        sendResponseHeaders(code, bytes.length);
+        rawOut.write(bytes);
+        rawOut.close();
+    }
+
+    void handlerFailed(Throwable e) {
+        if (!(e instanceof IOException)) {
+            System.err.println("Handler error for " + uri + ": " + e);
+        }
+        keepAlive = false;
+        if (responseCode == -1) {
+            try {
+                sendSimple(500, "Internal Server Error");
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Completes the exchange after the handler returned.
+     *
+     * @return true if the connection can carry another request.
+     */
+    boolean finish() throws IOException {
+        if (responseCode == -1) {
+            System.err.println("No response sent for " + uri);
+            keepAlive = false;
+            sendSimple(500, "Internal Server Error");
+        }
+        rawOut.close();
+        if (!rawOut.complete) {
+            return false;
+        }
+        return keepAlive && rawIn.drain(MAX_DRAIN_BYTES);
+    }
+
+    // --- HttpExchange ---
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+            out.close();
+        } catch (IOException ignored) {
+            keepAlive = false;
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return out;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (responseCode != -1) {
+            throw new IOException("Response headers already sent");
+        }
+        responseCode = rCode;
+
+        boolean head = "HEAD".equals(method);
+        boolean noBody = responseLength == -1 || head || rCode == 204 || rCode == 304 || rCode < 200;
+        if ("close".equalsIgnoreCase(responseHeaders.getFirst("Connection"))) {
+            keepAlive = false;
+        }
+        if (noBody) {
+            if (!head && rCode >= 200 && rCode != 204 && rCode != 304) {
+                responseHeaders.set("Content-Length", "0");
+            }
+            rawOut.remaining = 0;
+        } else if (responseLength > 0) {
+            responseHeaders.set("Content-Length", String.valueOf(responseLength));
+            rawOut.remaining = responseLength;
+        } else if ("HTTP/1.0".equals(protocol)) {
+            // No chunked coding for HTTP/1.0 clients: the body ends when the connection does
+            keepAlive = false;
+            rawOut.remaining = Long.MAX_VALUE;
+        } else {
+            responseHeaders.set("Transfer-Encoding", "chunked");
+            rawOut.chunked = true;
+        }
+        responseHeaders.set("Date", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)));
+        responseHeaders.set("Connection", keepAlive ? "keep-alive" : "close");
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("HTTP/1.1 ").append(rCode).append(' ').append(reasonPhrase(rCode)).append("\r\n");
+        for (Map.Entry<String, List<String>> e : responseHeaders.entrySet()) {
+            for (String value : e.getValue()) {
+                sb.append(e.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        sb.append("\r\n");
+        rawOut.begin(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (noBody) {
+            rawOut.close();
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.remote;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.local;
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            in = i;
+        }
+        if (o != null) {
+            out = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    private static void writeFully(NioServerEngine.Connection c, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            c.channel.write(buffer);
+        }
+        c.lastActive = System.currentTimeMillis();
+    }
+
+    private static String reasonPhrase(int code) {
+        switch (code) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 409: return "Conflict";
+            case 411: return "Length Required";
+            case 413: return "Content Too Large";
+            case 416: return "Range Not Satisfiable";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status";
+        }
+    }
+
+    /**
+     * Request body, either fixed-length or chunked. Never reads past the end of the
+     * body, so pipelined requests behind it stay in the connection buffer.
+     */
+    private static final class RequestBody extends InputStream {
+        private final NioServerEngine.Connection c;
+        private final boolean chunked;
+        private long remaining; // in the body, or in the current chunk
+        private boolean firstChunk = true;
+        private boolean eof;
+        boolean expectContinue;
+
+        RequestBody(NioServerEngine.Connection c, long length) {
+            this.c = c;
+            this.chunked = length < 0;
+            this.remaining = chunked ? 0 : length;
+            this.eof = length == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (expectContinue) {
+                expectContinue = false;
+                writeFully(c, ByteBuffer.wrap(CONTINUE));
+            }
+            if (remaining == 0 && !eof && chunked) {
+                nextChunk();
+            }
+            if (eof) {
+                return -1;
+            }
+            int n = (int) Math.min(len, remaining);
+            if (c.buffered() > 0) {
+                n = c.takeBuffered(b, off, n);
+            } else {
+                n = c.read(ByteBuffer.wrap(b, off, n));
+                if (n < 0) {
+                    throw new IOException("Connection closed before request body ended");
+                }
+            }
+            remaining -= n;
+            if (remaining == 0 && !chunked) {
+                eof = true;
+            }
+            return n;
+        }
+
+        private void nextChunk() throws IOException {
+            if (!firstChunk) {
+                c.readLine(); // CRLF after the previous chunk's data
+            }
+            firstChunk = false;
+            String line = c.readLine();
+            int semi = line.indexOf(';');
+            try {
+                remaining = Long.parseLong((semi >= 0 ? line.substring(0, semi) : line).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size: " + line);
+            }
+            if (remaining == 0) {
+                while (!c.readLine().isEmpty()) {
+                    // Skip trailers
+                }
+                eof = true;
+            }
+        }
+
+        /**
+         * Discards what the handler left unread.
+         *
+         * @return false if more than {@code limit} bytes remained or the body was broken.
+         */
+        boolean drain(long limit) {
+            if (eof) {
+                return true;
+            }
+            if (expectContinue) {
+                return false; // Client is still waiting for permission to send
+            }
+            byte[] skip = new byte[8192];
+            long drained = 0;
+            try {
+                int n;
+                while ((n = read(skip, 0, skip.length)) != -1) {
+                    drained += n;
+                    if (drained > limit) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            // Leftover body is drained when the exchange finishes
+        }
+    }
+
+    /**
+     * Response body. Headers and small writes share one buffer so a short response goes
+     * out in a single write; large writes and file transfers go to the socket directly.
+     */
+    private final class ResponseBody extends OutputStream implements FileTransfer.ChannelOutput {
+        private ByteBuffer buffer;
+        long remaining;
+        boolean chunked;
+        boolean complete;
+        private int headLength; // head bytes at the start of the buffer, not part of a chunk
+        private boolean closed;
+
+        void begin(byte[] head) throws IOException {
+            buffer = connection.outputBuffer();
+            buffer.clear();
+            if (head.length > buffer.capacity()) {
+                writeFully(connection, ByteBuffer.wrap(head));
+            } else {
+                buffer.put(head);
+                headLength = head.length;
+            }
+        }
+
+        private void ensureWritable() throws IOException {
+            if (buffer == null) {
+                throw new IOException("Response headers not sent");
+            }
+            if (closed) {
+                throw new IOException("Response body closed");
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureWritable();
+            if (len == 0) {
+                return;
+            }
+            if (!chunked) {
+                if (len > remaining) {
+                    throw new IOException("Too many bytes to write to response body");
+                }
+                remaining -= len;
+            }
+            if (len > buffer.remaining()) {
+                flushBuffer();
+                if (len >= buffer.capacity()) {
+                    writeDirect(ByteBuffer.wrap(b, off, len));
+                    return;
+                }
+            }
+            buffer.put(b, off, len);
+        }
+
+        private void writeDirect(ByteBuffer data) throws IOException {
+            if (chunked) {
+                ByteBuffer size = ByteBuffer.wrap((Long.toHexString(data.remaining()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                ByteBuffer[] parts = {size, data, ByteBuffer.wrap(CRLF)};
+                while (parts[2].hasRemaining()) {
+                    connection.channel.write(parts);
+                }
+                connection.lastActive = System.currentTimeMillis();
+            } else {
+                writeFully(connection, data);
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            if (chunked && buffer.limit() > headLength) {
+                ByteBuffer head = buffer.duplicate().limit(headLength);
+                writeFully(connection, head);
+                buffer.position(headLength);
+                writeDirect(buffer);
+            } else {
+                writeFully(connection, buffer);
+            }
+            buffer.clear();
+            headLength = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer != null && !closed) {
+                flushBuffer();
+            }
+        }
+
+        @Override
+        public WritableByteChannel channel() {
+            // Also asked before the headers go out, to pick the transfer mode
+            if (closed || chunked) {
+                return null;
+            }
+            return connection.channel;
+        }
+
+        @Override
+        public void channelWritten(long bytes) {
+            remaining -= bytes;
+            connection.lastActive = System.currentTimeMillis();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed || buffer == null) {
+                return;
+            }
+            flushBuffer();
+            closed = true;
+            if (chunked) {
+                writeFully(connection, ByteBuffer.wrap("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+                complete = true;
+            } else {
+                // A short fixed-length body leaves the client waiting; the connection must go
+                complete = remaining == 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package com.lancast.lancast.core.engine;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Selector-based HTTP/1.1 engine.
+ * <p>
+ * One selector thread accepts connections and waits on idle keep-alive connections.
+ * As soon as a complete request head has arrived the connection is handed to the
+ * executor, switched to blocking mode and served there; the handler's streams sit
+ * directly on the socket channel, so file bodies can go out with {@code transferTo}.
+ * Requests already buffered behind the current one (pipelining) are served on the
+ * same thread before the connection returns to the selector.
+ * <p>
+ * The idle timeout applies both to connections waiting between requests and to a
+ * worker blocked reading a request body: a client that stops sending mid-request is
+ * cut off rather than holding the connection and its worker.
+ */
+public class NioServerEngine implements ServerEngine {
+
+    static final int MAX_HEADER_BYTES = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final List<Context> contexts = new CopyOnWriteArrayList<>();
+    private final Queue<Connection> returning = new ConcurrentLinkedQueue<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private Executor executor;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    private int socketBufferSize = 1024 * 1024;
+    private boolean tcpNoDelay = true;
+    private long idleTimeoutMillis = 30_000;
+    private int maxRequestsPerConnection = 1000;
+
+    /**
+     * A handler bound to a path prefix.
+     */
+    static final class Context extends HttpContext {
+        private final String path;
+        private HttpHandler handler;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private final List<Filter> filters = new CopyOnWriteArrayList<>();
+        private Authenticator authenticator;
+
+        Context(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return null; // Not backed by a JDK HttpServer
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            Authenticator old = authenticator;
+            authenticator = auth;
+            return old;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+
+    /**
+     * A client connection. Owned either by the selector thread (idle, non-blocking)
+     * or by one worker (serving requests, blocking), never both.
+     */
+    static final class Connection {
+        final SocketChannel channel;
+        final InetSocketAddress remote;
+        final InetSocketAddress local;
+        // Bytes read but not consumed yet, kept in fill mode (data is [0, position))
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        ByteBuffer out;
+        volatile long lastActive = System.currentTimeMillis();
+        // When the current blocking read started, or 0 when not in one
+        volatile long readingSince;
+        int served;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remote = (InetSocketAddress) channel.getRemoteAddress();
+            this.local = (InetSocketAddress) channel.getLocalAddress();
+        }
+
+        /**
+         * @return The index just past the blank line ending a request head, or -1.
+         */
+        int headEnd() {
+            int limit = in.position();
+            for (int i = 3; i < limit; i++) {
+                if (in.get(i) == '\n' && in.get(i - 1) == '\r' && in.get(i - 2) == '\n' && in.get(i - 3) == '\r') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        int buffered() {
+            return in.position();
+        }
+
+        /** Drops the first {@code n} buffered bytes. */
+        void consume(int n) {
+            in.flip();
+            in.position(n);
+            in.compact();
+        }
+
+        /** Moves up to {@code len} buffered bytes into {@code b}. */
+        int takeBuffered(byte[] b, int off, int len) {
+            int n = Math.min(len, in.position());
+            in.flip();
+            in.get(b, off, n);
+            in.compact();
+            return n;
+        }
+
+        /**
+         * Reads more bytes from the channel into the buffer, growing it up to the header limit.
+         *
+         * @return The number of bytes read, or -1 at end of stream.
+         */
+        int fill() throws IOException {
+            if (!in.hasRemaining()) {
+                if (in.capacity() >= MAX_HEADER_BYTES) {
+                    throw new IOException("Request head too large");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_HEADER_BYTES));
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            return read(in);
+        }
+
+        /**
+         * Reads from the channel; in blocking mode the selector thread closes the
+         * connection if the read waits longer than the idle timeout.
+         */
+        int read(ByteBuffer dst) throws IOException {
+            readingSince = System.currentTimeMillis();
+            int n;
+            try {
+                n = channel.read(dst);
+            } finally {
+                readingSince = 0;
+            }
+            if (n > 0) {
+                lastActive = System.currentTimeMillis();
+            }
+            return n;
+        }
+
+        /**
+         * Reads a CRLF-terminated line (used for chunked request bodies), blocking as needed.
+         */
+        String readLine() throws IOException {
+            while (true) {
+                int limit = in.position();
+                for (int i = 1; i < limit; i++) {
+                    if (in.get(i) == '\n' && in.get(i - 1) == '\r') {
+                        byte[] line = new byte[i - 1];
+                        in.flip();
+                        in.get(line);
+                        in.position(i + 1);
+                        in.compact();
+                        return new String(line, StandardCharsets.ISO_8859_1);
+                    }
+                }
+                if (fill() < 0) {
+                    throw new IOException("Unexpected end of stream");
+                }
+            }
+        }
+
+        ByteBuffer outputBuffer() {
+            if (out == null) {
+                out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            }
+            return out;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public NioServerEngine(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+    }
+
+    // --- Tuning (call before start) ---
+
+    public void setSocketBufferSize(int bytes) {
+        this.socketBufferSize = bytes;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+
+    @Override
+    public void createContext(String path, HttpHandler handler) {
+        contexts.add(new Context(path, handler));
+        // Longest prefix first
+        List<Context> sorted = new ArrayList<>(contexts);
+        sorted.sort((a, b) -> b.path.length() - a.path.length());
+        contexts.clear();
+        contexts.addAll(sorted);
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void start() {
+        if (executor == null) {
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+        }
+        try {
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not start NIO engine", e);
+        }
+        running = true;
+        selectorThread = new Thread(this::selectLoop, "lancast-nio-selector");
+        selectorThread.start();
+    }
+
+    @Override
+    public void stop(int delaySeconds) {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        selector.wakeup();
+        if (selectorThread != null) {
+            try {
+                selectorThread.join(Math.max(1, delaySeconds) * 1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Connection c : connections) {
+            c.close();
+        }
+        connections.clear();
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NIO;
+    }
+
+    private Context findContext(String path) {
+        for (Context c : contexts) {
+            if (path.startsWith(c.path)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    private void selectLoop() {
+        long lastSweep = System.currentTimeMillis();
+        List<Connection> ready = new ArrayList<>();
+        try {
+            while (running) {
+                selector.select(1000);
+
+                Connection back;
+                while ((back = returning.poll()) != null) {
+                    try {
+                        back.channel.register(selector, SelectionKey.OP_READ, back);
+                    } catch (IOException e) {
+                        close(back);
+                    }
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            if (c.fill() < 0) {
+                                key.cancel();
+                                close(c);
+                            } else if (c.headEnd() >= 0) {
+                                key.cancel();
+                                ready.add(c);
+                            }
+                        } catch (IOException e) {
+                            key.cancel();
+                            close(c);
+                        }
+                    }
+                }
+
+                if (!ready.isEmpty()) {
+                    // Flush the cancelled keys so the channels can switch to blocking mode
+                    selector.selectNow();
+                    for (Connection c : ready) {
+                        executor.execute(() -> serve(c));
+                    }
+                    ready.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= 1000) {
+                    lastSweep = now;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof Connection) {
+                            Connection c = (Connection) key.attachment();
+                            if (now - c.lastActive > idleTimeoutMillis) {
+                                key.cancel();
+                                close(c);
+                            }
+                        }
+                    }
+                    // Workers stuck waiting for a request body that stopped arriving
+                    for (Connection c : connections) {
+                        long since = c.readingSince;
+                        if (since != 0 && now - since > idleTimeoutMillis) {
+                            close(c);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                System.err.println("NIO engine stopped: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBufferSize);
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBufferSize);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                Connection c = new Connection(channel);
+                connections.add(c);
+                channel.register(selector, SelectionKey.OP_READ, c);
+            } catch (IOException e) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Serves requests on a connection until it has to wait for more data or must close.
+     */
+    private void serve(Connection c) {
+        try {
+            c.channel.configureBlocking(true);
+            int end;
+            while ((end = c.headEnd()) >= 0) {
+                NioHttpExchange exchange = NioHttpExchange.parse(c, end);
+                if (exchange == null) {
+                    NioHttpExchange.writeBadRequest(c);
+                    close(c);
+                    return;
+                }
+                c.served++;
+                exchange.setKeepAlive(running && c.served < maxRequestsPerConnection);
+
+                Context context = findContext(exchange.getRequestURI().getPath());
+                try {
+                    if (context == null) {
+                        exchange.sendSimple(404, "Not Found");
+                    } else {
+                        exchange.setContext(context);
+                        context.getHandler().handle(exchange);
+                    }
+                } catch (Throwable e) {
+                    exchange.handlerFailed(e);
+                }
+                if (!exchange.finish()) {
+                    close(c);
+                    return;
+                }
+            }
+            if (!running) {
+                close(c);
+                return;
+            }
+            c.channel.configureBlocking(false);
+            c.lastActive = System.currentTimeMillis();
+            returning.add(c);
+            selector.wakeup();
+        } catch (IOException | RuntimeException e) {
+            close(c);
+        }
+    }
+
+    private void close(Connection c) {
+        connections.remove(c);
+        c.close();
+    }
+}
@@ -0,0 +1,57 @@
+package com.lancast.lancast.core.engine;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * An HTTP server implementation the LanCast handlers run on.
+ * Handlers are plain {@link HttpHandler}s, so they work unchanged on every engine.
+ */
+public interface ServerEngine {
+
+    /** The built-in {@code com.sun.net.httpserver} engine. */
+    String JDK = "jdk";
+    /** The selector-based engine with persistent connections and direct channel writes. */
+    String NIO = "nio";
+
+    /**
+     * Creates an engine bound to the given address.
+     *
+     * @param type    {@link #JDK} or {@link #NIO}; anything else falls back to {@link #JDK}.
+     * @param address The address to listen on.
+     */
+    static ServerEngine create(String type, InetSocketAddress address) throws IOException {
+        if (NIO.equalsIgnoreCase(type)) {
+            return new NioServerEngine(address);
+        }
+        return new JdkServerEngine(address);
+    }
+
+    /**
+     * Routes requests whose path starts with {@code path} to the handler.
+     * The longest matching prefix wins.
+     */
+    void createContext(String path, HttpHandler handler);
+
+    /**
+     * Sets the executor handlers run on. Must be called before {@link #start()}.
+     */
+    void setExecutor(Executor executor);
+
+    void start();
+
+    /**
+     * Stops accepting connections and closes the ones that are open.
+     *
+     * @param delaySeconds The longest time to wait for exchanges in progress.
+     */
+    void stop(int delaySeconds);
+
+    /**
+     * @return A short name for logs and the UI.
+     */
+    String getName();
+}
@@ -0,0 +1,157 @@
+package com.lancast.lancast.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The connections to lancast.db, shared by the transfer history and the metadata cache.
+ * <p>
+ * A few connections are opened once and lent out, rather than the database file being
+ * opened, checked and closed for every statement. The database runs in WAL mode, so
+ * readers do not wait for a writer and a commit appends to the log, with
+ * {@code synchronous=NORMAL}: commits are synced at checkpoints rather than one by one,
+ * so a power cut can lose the last few history rows but not corrupt the file. Each
+ * connection keeps the statements prepared on it for reuse.
+ */
+final class Database {
+
+    static final String URL = "jdbc:sqlite:lancast.db";
+
+    private static final int POOL_SIZE = 4;
+    private static final int BUSY_TIMEOUT_MILLIS = 5000;
+
+    private static final BlockingQueue<Lease> idle = new ArrayBlockingQueue<>(POOL_SIZE);
+    // One permit per connection that may be lent out; given back with the connection or when it is discarded
+    private static final Semaphore permits = new Semaphore(POOL_SIZE);
+    private static final List<Runnable> beforeClose = new CopyOnWriteArrayList<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(Database::shutdown, "lancast-db-close"));
+    }
+
+    /**
+     * A connection lent out of the pool; closing it gives it back.
+     */
+    static final class Lease implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private Lease(Connection connection) {
+            this.connection = connection;
+        }
+
+        Connection connection() {
+            return connection;
+        }
+
+        /**
+         * @return The statement for this SQL, prepared on first use. It must not be closed.
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback(); // Left open by a failed transaction
+                    connection.setAutoCommit(true);
+                }
+                for (PreparedStatement statement : statements.values()) {
+                    statement.clearParameters();
+                }
+            } catch (SQLException e) {
+                discard();
+                return;
+            }
+            idle.offer(this);
+            permits.release();
+        }
+
+        private void discard() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // Already broken
+            }
+            permits.release();
+        }
+    }
+
+    private Database() {
+    }
+
+    /**
+     * @return An idle connection, or a new one in place of one never opened or discarded.
+     *         Waits while all of them are lent out.
+     */
+    static Lease lease() throws SQLException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection");
+        }
+        Lease lease = idle.poll();
+        if (lease != null) {
+            return lease;
+        }
+        try {
+            return new Lease(open());
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private static Connection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(URL);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA synchronous=NORMAL");
+            stmt.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MILLIS);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Registers a task run at shutdown before the connections close, e.g. to write what is queued.
+     */
+    static void beforeClose(Runnable task) {
+        beforeClose.add(task);
+    }
+
+    private static void shutdown() {
+        for (Runnable task : beforeClose) {
+            task.run();
+        }
+        // Closing the last connection checkpoints the log into the database file
+        Lease lease;
+        while ((lease = idle.poll()) != null) {
+            try {
+                lease.connection.close();
+            } catch (SQLException e) {
+                // Already broken
+            }
+        }
+    }
+}
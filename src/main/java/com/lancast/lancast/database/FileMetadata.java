@@ -0,0 +1,82 @@
+package com.lancast.lancast.database;
+
+/**
+ * What is known about one version of a file, as stored in the metadata cache.
+ * A row only applies while the file still has the recorded size and modification time.
+ */
+public class FileMetadata {
+    public String path;
+    public long size;
+    public long modified;
+    // SHA-256 in hex, or null if not computed
+    public String sha256;
+    public int crc32c;
+    // CRC-32 as used in ZIP archives, or -1 if not computed
+    public long crc32 = -1;
+    public String mimeType;
+    public boolean incompressible;
+    // Image dimensions, or 0 if not an image or unreadable
+    public int width;
+    public int height;
+
+    public FileMetadata() {
+    }
+
+    public FileMetadata(String path, long size, long modified) {
+        this.path = path;
+        this.size = size;
+        this.modified = modified;
+    }
+
+    /**
+     * @return true if this row describes the file as it is now.
+     */
+    public boolean matches(long size, long modified) {
+        return this.size == size && this.modified == modified;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public int getCrc32c() {
+        return crc32c;
+    }
+
+    public long getCrc32() {
+        return crc32;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public boolean isIncompressible() {
+        return incompressible;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public String toString() {
+        return path + " | " + size + " | " + mimeType + " | " + sha256;
+    }
+}
@@ -0,0 +1,138 @@
+package com.lancast.lancast.database;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes history rows in one of the export formats as they are read, so an export holds
+ * one row at a time however long the history is. Text fields are escaped for the format:
+ * a file name may contain quotes, commas, line breaks or control characters.
+ */
+final class HistoryExporter {
+
+    private final Writer out;
+    private final HistoryManager.ExportFormat format;
+    private long rows;
+
+    HistoryExporter(Writer out, HistoryManager.ExportFormat format) throws IOException {
+        this.out = out;
+        this.format = format;
+        if (format == HistoryManager.ExportFormat.JSON) {
+            out.write("[\n");
+        } else if (format == HistoryManager.ExportFormat.CSV) {
+            out.write("id,client_ip,file_name,device_type,timestamp\r\n");
+        }
+    }
+
+    void write(int id, String clientIp, String fileName, String deviceType, String timestamp) throws IOException {
+        switch (format) {
+            case JSON:
+                out.write(rows == 0 ? "  " : ",\n  ");
+                writeObject(id, clientIp, fileName, deviceType, timestamp);
+                break;
+            case NDJSON:
+                writeObject(id, clientIp, fileName, deviceType, timestamp);
+                out.write('\n');
+                break;
+            case CSV:
+                out.write(Integer.toString(id));
+                for (String field : new String[] { clientIp, fileName, deviceType, timestamp }) {
+                    out.write(',');
+                    writeCsv(field);
+                }
+                out.write("\r\n");
+                break;
+            case TEXT:
+                out.write(new TransferLog(id, clientIp, fileName, deviceType, timestamp).toString());
+                out.write('\n');
+                break;
+        }
+        rows++;
+    }
+
+    /**
+     * Ends the document; the writer is left open.
+     */
+    void finish() throws IOException {
+        if (format == HistoryManager.ExportFormat.JSON) {
+            out.write(rows == 0 ? "]\n" : "\n]\n");
+        }
+        out.flush();
+    }
+
+    private void writeObject(int id, String clientIp, String fileName, String deviceType, String timestamp)
+            throws IOException {
+        out.write("{\"id\": ");
+        out.write(Integer.toString(id));
+        out.write(", \"client_ip\": ");
+        writeJson(clientIp);
+        out.write(", \"file_name\": ");
+        writeJson(fileName);
+        out.write(", \"device_type\": ");
+        writeJson(deviceType);
+        out.write(", \"timestamp\": ");
+        writeJson(timestamp);
+        out.write('}');
+    }
+
+    private void writeJson(String value) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        if (!needsEscaping(value)) {
+            out.write(value);
+            out.write('"');
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c == '\n') {
+                out.write("\\n");
+            } else if (c == '\r') {
+                out.write("\\r");
+            } else if (c == '\t') {
+                out.write("\\t");
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                // Also the separators older JavaScript does not allow in strings
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    private static boolean needsEscaping(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x20 || c == '"' || c == '\\' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Quoted only when needed, with quotes doubled (RFC 4180); null is an empty field
+    private void writeCsv(String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+}
@@ -0,0 +1,31 @@
+package com.lancast.lancast.database;
+
+import java.time.Instant;
+
+/**
+ * Which transfers a history query returns. Every part is optional; null matches all.
+ */
+public class HistoryFilter {
+    /** Transfers at or after this time. */
+    public final Instant from;
+    /** Transfers before this time. */
+    public final Instant to;
+    /** Transfers to this kind of device, e.g. "Android". */
+    public final String deviceType;
+    /** Transfers to this address. */
+    public final String clientIp;
+
+    public HistoryFilter(Instant from, Instant to, String deviceType, String clientIp) {
+        this.from = from;
+        this.to = to;
+        this.deviceType = deviceType;
+        this.clientIp = clientIp;
+    }
+
+    /**
+     * @return A filter matching every transfer.
+     */
+    public static HistoryFilter all() {
+        return new HistoryFilter(null, null, null, null);
+    }
+}
@@ -1,17 +1,108 @@
 package com.lancast.lancast.database;
 
 import java.sql.*;
-import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
-
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The transfer history in lancast.db. There is one instance, which sets up the table
+ * when it is first used; statements run on the pooled connections of {@link Database}.
+ * <p>
+ * Logging a transfer only queues the row, so a download never waits for the database:
+ * one writer thread inserts what has queued up in a single transaction, once a batch is
+ * full or shortly after the first row arrived. Reads flush the queue first, and so does
+ * shutdown. If rows arrive faster than they can be written, the overflow policy decides
+ * whether a request waits for room or its row is skipped.
+ * <p>
+ * File names, addresses and devices are also kept in a full-text index, which triggers
+ * update along with the table, so searching looks words up instead of scanning every row.
+ */
 public class HistoryManager {
 
-    private static final String DB_URL = "jdbc:sqlite:lancast.db";
+    /** What happens to a row logged while the queue is full. */
+    public enum OverflowPolicy {
+        /** The request waits until the writer has made room. */
+        BLOCK,
+        /** The row is skipped and counted. */
+        DROP
+    }
+
+    /** The file formats the history can be exported in. */
+    public enum ExportFormat {
+        /** A JSON array of objects. */
+        JSON,
+        /** One JSON object per line. */
+        NDJSON,
+        /** Comma-separated values with a header row. */
+        CSV,
+        /** The lines {@link #printAllLogs()} shows. */
+        TEXT
+    }
 
-    public HistoryManager() {
+    /** Told how far an export has got. */
+    public interface ExportProgress {
+        /**
+         * @param rows  The rows written so far.
+         * @param total The rows the export will write.
+         */
+        void update(long rows, long total);
+    }
+
+    private static final int QUEUE_LIMIT = 50_000;
+    private static final int BATCH_SIZE = 500;
+    private static final long BATCH_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // Search ranks at most this many of the newest matches, with file names counting most
+    private static final int RANKED_MATCHES = 2000;
+    private static final double FILE_NAME_WEIGHT = 4.0;
+    // Exports report progress, and check for cancellation, every this many rows
+    private static final int EXPORT_STEP = 1000;
+    // The format of CURRENT_TIMESTAMP, so queued rows keep the time they were logged
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final HistoryManager INSTANCE = new HistoryManager();
+
+    private final Queue<TransferLog> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    // Rows queued and rows written (or given up on) so far; flushing waits for one to reach the other
+    private final AtomicLong queued = new AtomicLong();
+    private volatile long written;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private final Thread writer;
+
+    private HistoryManager() {
         createTable();
+        writer = new Thread(this::runWriter, "lancast-history");
+        writer.setDaemon(true);
+        writer.start();
+        Database.beforeClose(this::flush);
+    }
+
+    public static HistoryManager getInstance() {
+        return INSTANCE;
     }
 
     // Create table if not exists
@@ -24,43 +115,165 @@ public class HistoryManager {
                 "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP" +
                 ");";
 
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-                Statement stmt = conn.createStatement()) {
+        try (Database.Lease db = Database.lease();
+                Statement stmt = db.connection().createStatement()) {
 
             stmt.execute(sql);
+            // For the paged queries; each index ends in the id, which pages are keyed on
+            stmt.execute("CREATE INDEX IF NOT EXISTS transfer_logs_time ON transfer_logs(timestamp)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS transfer_logs_device ON transfer_logs(device_type)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS transfer_logs_ip ON transfer_logs(client_ip)");
+            createSearchIndex(stmt);
 
         } catch (SQLException e) {
             System.out.println("Error creating table: " + e.getMessage());
         }
     }
 
-    // Insert a transfer record
+    private static final String SEARCH_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS transfer_logs_fts_delete AFTER DELETE ON transfer_logs BEGIN " +
+            "INSERT INTO transfer_logs_fts(transfer_logs_fts, rowid, file_name, client_ip, device_type) " +
+            "VALUES ('delete', old.id, old.file_name, old.client_ip, old.device_type); END";
+
+    // Full-text index over the table, filled from the existing rows when first created
+    private static void createSearchIndex(Statement stmt) throws SQLException {
+        boolean exists;
+        try (ResultSet rs = stmt.executeQuery(
+                "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'transfer_logs_fts'")) {
+            exists = rs.next();
+        }
+        // Words are split at punctuation too, so "IMG_2041.jpg" is "img 2041 jpg" and
+        // "192.168.1.10" is "192 168 1 10"; short prefixes get their own index
+        stmt.execute("CREATE VIRTUAL TABLE IF NOT EXISTS transfer_logs_fts USING fts5(" +
+                "file_name, client_ip, device_type, " +
+                "content='transfer_logs', content_rowid='id', " +
+                "tokenize='unicode61 remove_diacritics 2', prefix='1 2 3')");
+        stmt.execute("CREATE TRIGGER IF NOT EXISTS transfer_logs_fts_insert AFTER INSERT ON transfer_logs BEGIN " +
+                "INSERT INTO transfer_logs_fts(rowid, file_name, client_ip, device_type) " +
+                "VALUES (new.id, new.file_name, new.client_ip, new.device_type); END");
+        stmt.execute(SEARCH_DELETE_TRIGGER);
+        stmt.execute("CREATE TRIGGER IF NOT EXISTS transfer_logs_fts_update AFTER UPDATE ON transfer_logs BEGIN " +
+                "INSERT INTO transfer_logs_fts(transfer_logs_fts, rowid, file_name, client_ip, device_type) " +
+                "VALUES ('delete', old.id, old.file_name, old.client_ip, old.device_type); " +
+                "INSERT INTO transfer_logs_fts(rowid, file_name, client_ip, device_type) " +
+                "VALUES (new.id, new.file_name, new.client_ip, new.device_type); END");
+        if (!exists) {
+            stmt.execute("INSERT INTO transfer_logs_fts(transfer_logs_fts) VALUES ('rebuild')");
+        }
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return The number of rows skipped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    // Queue a transfer record; the writer thread inserts it
     public void logTransfer(String ip, String fileName, String deviceType) {
-        String sql = "INSERT INTO transfer_logs(client_ip, file_name, device_type) VALUES (?, ?, ?)";
+        String timestamp = LocalDateTime.now(ZoneOffset.UTC).format(TIMESTAMP);
+        while (pendingCount.get() >= QUEUE_LIMIT) {
+            if (overflowPolicy == OverflowPolicy.DROP) {
+                if (dropped.getAndIncrement() % 1000 == 0) {
+                    System.out.println("History is falling behind; skipped " + dropped.get() + " rows so far");
+                }
+                return;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        pending.add(new TransferLog(0, ip, fileName, deviceType, timestamp));
+        queued.incrementAndGet();
+        int count = pendingCount.incrementAndGet();
+        if (count == 1 || count == BATCH_SIZE) {
+            LockSupport.unpark(writer);
+        }
+    }
 
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    /**
+     * Waits until every row logged so far is in the database (or could not be written).
+     */
+    public void flush() {
+        long target = queued.get();
+        long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+        while (written < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
 
-            pstmt.setString(1, ip);
-            pstmt.setString(2, fileName);
-            pstmt.setString(3, deviceType);
-            pstmt.executeUpdate();
+    private void runWriter() {
+        while (true) {
+            if (pendingCount.get() == 0) {
+                LockSupport.park(this);
+                continue;
+            }
+            if (pendingCount.get() < BATCH_SIZE) {
+                // Give a burst the chance to finish, so it commits once
+                LockSupport.parkNanos(this, BATCH_DELAY_NANOS);
+            }
+            writeBatch();
+        }
+    }
+
+    // Insert up to a batch of queued records in one transaction
+    private void writeBatch() {
+        List<TransferLog> batch = new ArrayList<>(BATCH_SIZE);
+        TransferLog log;
+        while (batch.size() < BATCH_SIZE && (log = pending.poll()) != null) {
+            batch.add(log);
+        }
+        pendingCount.addAndGet(-batch.size());
+        String sql = "INSERT INTO transfer_logs(client_ip, file_name, device_type, timestamp) VALUES (?, ?, ?, ?)";
+
+        try (Database.Lease db = Database.lease()) {
+            Connection conn = db.connection();
+            conn.setAutoCommit(false);
+            try {
+                PreparedStatement pstmt = db.prepare(sql);
+                for (TransferLog row : batch) {
+                    pstmt.setString(1, row.clientIp);
+                    pstmt.setString(2, row.fileName);
+                    pstmt.setString(3, row.deviceType);
+                    pstmt.setString(4, row.timestamp);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
 
-            System.out.println("Logged transfer: " + ip);
+            System.out.println(batch.size() == 1
+                    ? "Logged transfer: " + batch.get(0).clientIp
+                    : "Logged " + batch.size() + " transfers");
 
         } catch (SQLException e) {
-            System.out.println("Error inserting log: " + e.getMessage());
+            System.out.println("Error inserting logs: " + e.getMessage());
+        } finally {
+            written += batch.size();
         }
     }
 
     // Read all logs
     public List<TransferLog> getAllLogs() {
+        flush();
         List<TransferLog> logs = new ArrayList<>();
         String sql = "SELECT * FROM transfer_logs ORDER BY id DESC";
 
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-                Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery(sql)) {
+        try (Database.Lease db = Database.lease();
+                ResultSet rs = db.prepare(sql).executeQuery()) {
 
             while (rs.next()) {
                 logs.add(new TransferLog(
@@ -78,6 +291,109 @@ public class HistoryManager {
         return logs;
     }
 
+    /**
+     * Reads one page of the history, newest first. Pages are found by seeking to the last
+     * row of the previous one in an index rather than skipped over with OFFSET, so each
+     * costs the same however deep into the history it is.
+     * <p>
+     * Rows are inserted in the order they were logged, so ids follow time; a time range is
+     * turned into a range of ids with one index lookup per bound, and every filter then
+     * seeks on the primary key or on an index ending in it.
+     *
+     * @param after The last row of the previous page, or null for the first page.
+     * @param limit The most rows to return.
+     */
+    public List<TransferLog> getLogs(HistoryFilter filter, TransferLog after, int limit) {
+        flush();
+        List<TransferLog> logs = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("SELECT * FROM transfer_logs WHERE id >= ? AND id < ?");
+        appendFilter(sql, "", filter);
+        sql.append(" ORDER BY id DESC LIMIT ?");
+
+        try (Database.Lease db = Database.lease()) {
+
+            long low = filter.from != null ? firstIdFrom(db, filter.from) : 0;
+            long high = filter.to != null ? firstIdFrom(db, filter.to) : Long.MAX_VALUE;
+            if (after != null) {
+                high = Math.min(high, after.id);
+            }
+
+            PreparedStatement pstmt = db.prepare(sql.toString());
+            pstmt.setLong(1, low);
+            pstmt.setLong(2, high);
+            int i = bindFilter(pstmt, 3, filter);
+            pstmt.setInt(i, limit);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    logs.add(new TransferLog(
+                            rs.getInt("id"),
+                            rs.getString("client_ip"),
+                            rs.getString("file_name"),
+                            rs.getString("device_type"),
+                            rs.getString("timestamp")));
+                }
+            }
+
+        } catch (SQLException e) {
+            System.out.println("Error reading logs: " + e.getMessage());
+        }
+        return logs;
+    }
+
+    // The device and address conditions of a filter, with columns of the given table alias
+    private static void appendFilter(StringBuilder sql, String alias, HistoryFilter filter) {
+        if (filter.deviceType != null) {
+            sql.append(" AND ").append(alias).append("device_type = ?");
+        }
+        if (filter.clientIp != null) {
+            sql.append(" AND ").append(alias).append("client_ip = ?");
+        }
+    }
+
+    // Binds what appendFilter added from the given index on; returns the next index
+    private static int bindFilter(PreparedStatement pstmt, int i, HistoryFilter filter) throws SQLException {
+        if (filter.deviceType != null) {
+            pstmt.setString(i++, filter.deviceType);
+        }
+        if (filter.clientIp != null) {
+            pstmt.setString(i++, filter.clientIp);
+        }
+        return i;
+    }
+
+    /**
+     * @return The id of the first row logged at or after the time, or {@link Long#MAX_VALUE} if none was.
+     */
+    private static long firstIdFrom(Database.Lease db, Instant time) throws SQLException {
+        PreparedStatement pstmt = db.prepare("SELECT id FROM transfer_logs WHERE timestamp >= ? ORDER BY timestamp LIMIT 1");
+        pstmt.setString(1, LocalDateTime.ofInstant(time, ZoneOffset.UTC).format(TIMESTAMP));
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @return The device types that appear in the history, for filtering by.
+     */
+    public List<String> getDeviceTypes() {
+        flush();
+        List<String> types = new ArrayList<>();
+        String sql = "SELECT DISTINCT device_type FROM transfer_logs WHERE device_type IS NOT NULL ORDER BY device_type";
+
+        try (Database.Lease db = Database.lease();
+                ResultSet rs = db.prepare(sql).executeQuery()) {
+
+            while (rs.next()) {
+                types.add(rs.getString(1));
+            }
+
+        } catch (SQLException e) {
+            System.out.println("Error reading logs: " + e.getMessage());
+        }
+        return types;
+    }
+
     // Print all logs to console
     public void printAllLogs() {
         getAllLogs().forEach(System.out::println);
@@ -85,11 +401,12 @@ public class HistoryManager {
 
     // Delete by ID
     public void deleteLog(int id) {
+        flush();
         String sql = "DELETE FROM transfer_logs WHERE id = ?";
 
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (Database.Lease db = Database.lease()) {
 
+            PreparedStatement pstmt = db.prepare(sql);
             pstmt.setInt(1, id);
             pstmt.executeUpdate();
 
@@ -102,12 +419,27 @@ public class HistoryManager {
 
     // Clear all logs
     public void clearLogs() {
-        String sql = "DELETE FROM transfer_logs";
-
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-                Statement stmt = conn.createStatement()) {
-
-            stmt.execute(sql);
+        flush();
+
+        try (Database.Lease db = Database.lease();
+                Statement stmt = db.connection().createStatement()) {
+
+            // Without the per-row trigger the table is truncated at once, and the search
+            // index is emptied in one go
+            Connection conn = db.connection();
+            conn.setAutoCommit(false);
+            try {
+                stmt.execute("DROP TRIGGER IF EXISTS transfer_logs_fts_delete");
+                stmt.execute("DELETE FROM transfer_logs");
+                stmt.execute("INSERT INTO transfer_logs_fts(transfer_logs_fts) VALUES ('delete-all')");
+                stmt.execute(SEARCH_DELETE_TRIGGER);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
             System.out.println("All logs cleared.");
 
         } catch (SQLException e) {
@@ -115,24 +447,69 @@ public class HistoryManager {
         }
     }
 
-    // Search logs by IP, filename, device
-    private List<TransferLog> search(String column, String value) {
-        List<TransferLog> results = new ArrayList<>();
-        String sql = "SELECT * FROM transfer_logs WHERE " + column + " LIKE ?";
-
-        try (Connection conn = DriverManager.getConnection(DB_URL);
-                PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    /**
+     * Finds transfers by the start of any word in their file name, address or device,
+     * best matches first. Every word of the query must match; "vac 192.168" finds
+     * vacation.zip sent to 192.168.1.10.
+     *
+     * @param filter Further limits which transfers are returned.
+     * @param limit  The most rows to return.
+     */
+    public List<TransferLog> search(String query, HistoryFilter filter, int limit) {
+        String match = matchExpression(null, query);
+        return match == null ? new ArrayList<>() : searchMatching(match, filter, limit);
+    }
 
-            pstmt.setString(1, "%" + value + "%");
+    /**
+     * Finds transfers matching every given field by word prefixes, best matches first.
+     * Null or blank fields match everything.
+     *
+     * @param limit The most rows to return.
+     */
+    public List<TransferLog> search(String fileName, String clientIp, String deviceType, int limit) {
+        List<String> parts = new ArrayList<>();
+        for (String[] field : new String[][] {
+                { "file_name", fileName }, { "client_ip", clientIp }, { "device_type", deviceType } }) {
+            String match = matchExpression(field[0], field[1]);
+            if (match != null) {
+                parts.add(match);
+            }
+        }
+        return parts.isEmpty() ? new ArrayList<>() : searchMatching(String.join(" AND ", parts), HistoryFilter.all(), limit);
+    }
 
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                results.add(new TransferLog(
-                        rs.getInt("id"),
-                        rs.getString("client_ip"),
-                        rs.getString("file_name"),
-                        rs.getString("device_type"),
-                        rs.getString("timestamp")));
+    private List<TransferLog> searchMatching(String match, HistoryFilter filter, int limit) {
+        flush();
+        List<TransferLog> results = new ArrayList<>();
+        // Scoring every match of a short prefix would cost as much as the scan the index
+        // replaces, so only the newest matches are ranked
+        StringBuilder sql = new StringBuilder("SELECT l.* FROM (" +
+                "SELECT f.rowid AS id, bm25(transfer_logs_fts, " + FILE_NAME_WEIGHT + ", 1.0, 1.0) AS score " +
+                "FROM transfer_logs_fts f JOIN transfer_logs l ON l.id = f.rowid " +
+                "WHERE transfer_logs_fts MATCH ? AND f.rowid >= ? AND f.rowid < ?");
+        appendFilter(sql, "l.", filter);
+        sql.append(" ORDER BY f.rowid DESC LIMIT ?) m " +
+                "JOIN transfer_logs l ON l.id = m.id ORDER BY m.score, m.id DESC LIMIT ?");
+
+        try (Database.Lease db = Database.lease()) {
+
+            PreparedStatement pstmt = db.prepare(sql.toString());
+            pstmt.setString(1, match);
+            pstmt.setLong(2, filter.from != null ? firstIdFrom(db, filter.from) : 0);
+            pstmt.setLong(3, filter.to != null ? firstIdFrom(db, filter.to) : Long.MAX_VALUE);
+            int i = bindFilter(pstmt, 4, filter);
+            pstmt.setInt(i++, Math.max(limit, RANKED_MATCHES));
+            pstmt.setInt(i, limit);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    results.add(new TransferLog(
+                            rs.getInt("id"),
+                            rs.getString("client_ip"),
+                            rs.getString("file_name"),
+                            rs.getString("device_type"),
+                            rs.getString("timestamp")));
+                }
             }
 
         } catch (SQLException e) {
@@ -141,24 +518,118 @@ public class HistoryManager {
         return results;
     }
 
+    /**
+     * Turns what the user typed into an FTS5 query: each word is quoted, so punctuation
+     * and operators are taken literally, and matched as a prefix.
+     *
+     * @param column The column to search in, or null for all of them.
+     * @return The query, or null if nothing was typed.
+     */
+    private static String matchExpression(String column, String text) {
+        if (text == null) {
+            return null;
+        }
+        List<String> terms = new ArrayList<>();
+        for (String word : text.trim().split("\\s+")) {
+            // Words of only punctuation have no tokens to look up
+            if (word.codePoints().anyMatch(Character::isLetterOrDigit)) {
+                terms.add("\"" + word.replace("\"", "\"\"") + "\"*");
+            }
+        }
+        if (terms.isEmpty()) {
+            return null;
+        }
+        String expression = String.join(" ", terms);
+        return column == null ? expression : column + " : (" + expression + ")";
+    }
+
     public List<TransferLog> searchByIP(String ip) {
-        return search("client_ip", ip);
+        return search(null, ip, null, Integer.MAX_VALUE);
     }
 
     public List<TransferLog> searchByFile(String file) {
-        return search("file_name", file);
+        return search(file, null, null, Integer.MAX_VALUE);
     }
 
     public List<TransferLog> searchByDevice(String device) {
-        return search("device_type", device);
+        return search(null, null, device, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes the transfers matching the filter to a file, oldest first, straight from a
+     * database cursor, so memory use does not grow with the history. The file only
+     * appears once it is complete; interrupting the thread cancels the export.
+     *
+     * @param gzip     Whether to gzip the file.
+     * @param progress Told how many rows are written, or null.
+     * @return The number of rows written.
+     */
+    public long export(File file, ExportFormat format, boolean gzip, HistoryFilter filter, ExportProgress progress)
+            throws IOException {
+        flush();
+        StringBuilder where = new StringBuilder(" FROM transfer_logs WHERE id >= ? AND id < ?");
+        appendFilter(where, "", filter);
+        File part = new File(file.getPath() + ".part");
+
+        try (Database.Lease db = Database.lease()) {
+
+            long low = filter.from != null ? firstIdFrom(db, filter.from) : 0;
+            long high = filter.to != null ? firstIdFrom(db, filter.to) : Long.MAX_VALUE;
+
+            long total = 0;
+            if (progress != null) {
+                PreparedStatement count = db.prepare("SELECT count(*)" + where);
+                count.setLong(1, low);
+                count.setLong(2, high);
+                bindFilter(count, 3, filter);
+                try (ResultSet rs = count.executeQuery()) {
+                    total = rs.next() ? rs.getLong(1) : 0;
+                }
+            }
+
+            PreparedStatement pstmt = db.prepare(
+                    "SELECT id, client_ip, file_name, device_type, timestamp" + where + " ORDER BY id");
+            pstmt.setLong(1, low);
+            pstmt.setLong(2, high);
+            bindFilter(pstmt, 3, filter);
+
+            long rows = 0;
+            try (OutputStream stream = new FileOutputStream(part);
+                    Writer out = new BufferedWriter(new OutputStreamWriter(
+                    gzip ? new GZIPOutputStream(stream, 64 * 1024) : stream, StandardCharsets.UTF_8), 64 * 1024);
+                    ResultSet rs = pstmt.executeQuery()) {
+                HistoryExporter exporter = new HistoryExporter(out, format);
+                while (rs.next()) {
+                    exporter.write(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5));
+                    if (++rows % EXPORT_STEP == 0) {
+                        if (Thread.interrupted()) {
+                            throw new InterruptedIOException("Export cancelled");
+                        }
+                        if (progress != null) {
+                            progress.update(rows, Math.max(rows, total));
+                        }
+                    }
+                }
+                exporter.finish();
+            }
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (progress != null) {
+                progress.update(rows, rows);
+            }
+            System.out.println("Exported " + rows + " transfers to " + file);
+            return rows;
+
+        } catch (SQLException e) {
+            throw new IOException("Could not read the history: " + e.getMessage(), e);
+        } finally {
+            part.delete();
+        }
     }
 
     // Export to text
     public void exportToText(String file) {
-        try (FileWriter fw = new FileWriter(file)) {
-            for (TransferLog log : getAllLogs())
-                fw.write(log + "\n");
-            System.out.println("Exported to " + file);
+        try {
+            export(new File(file), ExportFormat.TEXT, false, HistoryFilter.all(), null);
         } catch (IOException e) {
             System.out.println("Error exporting text: " + e.getMessage());
         }
@@ -166,22 +637,8 @@ public class HistoryManager {
 
     // Export to JSON
     public void exportToJSON(String file) {
-        try (FileWriter fw = new FileWriter(file)) {
-            fw.write("[\n");
-            List<TransferLog> logs = getAllLogs();
-            for (int i = 0; i < logs.size(); i++) {
-                TransferLog log = logs.get(i);
-                fw.write("  {\n");
-                fw.write("    \"id\": " + log.id + ",\n");
-                fw.write("    \"client_ip\": \"" + log.clientIp + "\",\n");
-                fw.write("    \"file_name\": \"" + log.fileName + "\",\n");
-                fw.write("    \"device_type\": \"" + log.deviceType + "\",\n");
-                fw.write("    \"timestamp\": \"" + log.timestamp + "\"\n");
-                fw.write("  }" + (i < logs.size() - 1 ? "," : "") + "\n");
-            }
-            fw.write("]");
-            System.out.println("Exported to " + file);
-
+        try {
+            export(new File(file), ExportFormat.JSON, false, HistoryFilter.all(), null);
         } catch (IOException e) {
             System.out.println("Error exporting JSON: " + e.getMessage());
         }
@@ -189,7 +646,7 @@ public class HistoryManager {
 
     // Test
     public static void main(String[] args) {
-        HistoryManager db = new HistoryManager();
+        HistoryManager db = HistoryManager.getInstance();
 
         db.logTransfer("192.168.1.10", "vacation.zip", "Android 13");
         db.logTransfer("192.168.1.55", "notes.pdf", "Windows 11");
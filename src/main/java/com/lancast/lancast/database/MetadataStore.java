@@ -0,0 +1,188 @@
+package com.lancast.lancast.database;
+
+import java.io.File;
+import java.sql.*;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persists file metadata (digests, type, image size) in lancast.db, next to the
+ * transfer history, so files shared again after a restart need not be read again.
+ * Rows are keyed by canonical path and carry the size and modification time they
+ * were computed for; a row for an older version of a file is simply replaced.
+ */
+public class MetadataStore {
+
+    public MetadataStore() {
+        createTable();
+    }
+
+    private void createTable() {
+        String sql = "CREATE TABLE IF NOT EXISTS file_metadata (" +
+                "path TEXT PRIMARY KEY, " +
+                "size INTEGER NOT NULL, " +
+                "modified INTEGER NOT NULL, " +
+                "sha256 TEXT, " +
+                "crc32c INTEGER, " +
+                "crc32 INTEGER, " +
+                "mime_type TEXT, " +
+                "incompressible INTEGER, " +
+                "width INTEGER, " +
+                "height INTEGER, " +
+                "indexed DATETIME DEFAULT CURRENT_TIMESTAMP" +
+                ");";
+
+        try (Database.Lease db = Database.lease();
+                Statement stmt = db.connection().createStatement()) {
+
+            stmt.execute(sql);
+
+        } catch (SQLException e) {
+            System.out.println("Error creating metadata table: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The stored rows for these paths, by path; paths without a row are absent.
+     */
+    public Map<String, FileMetadata> find(Collection<String> paths) {
+        Map<String, FileMetadata> rows = new HashMap<>();
+        String sql = "SELECT * FROM file_metadata WHERE path = ?";
+
+        try (Database.Lease db = Database.lease()) {
+
+            PreparedStatement pstmt = db.prepare(sql);
+            for (String path : paths) {
+                pstmt.setString(1, path);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        rows.put(path, read(rs));
+                    }
+                }
+            }
+
+        } catch (SQLException e) {
+            System.out.println("Error reading metadata: " + e.getMessage());
+        }
+        return rows;
+    }
+
+    /**
+     * @param folder A canonical folder path.
+     * @return The stored rows for everything below the folder, by path, in one query.
+     */
+    public Map<String, FileMetadata> findUnder(String folder) {
+        Map<String, FileMetadata> rows = new HashMap<>();
+        String prefix = folder.endsWith(File.separator) ? folder : folder + File.separator;
+        // Paths sort bytewise, so everything below the folder lies between "dir/" and "dir0"
+        String end = prefix.substring(0, prefix.length() - 1) + (char) (File.separatorChar + 1);
+        String sql = "SELECT * FROM file_metadata WHERE path >= ? AND path < ?";
+
+        try (Database.Lease db = Database.lease()) {
+
+            PreparedStatement pstmt = db.prepare(sql);
+            pstmt.setString(1, prefix);
+            pstmt.setString(2, end);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    FileMetadata row = read(rs);
+                    rows.put(row.path, row);
+                }
+            }
+
+        } catch (SQLException e) {
+            System.out.println("Error reading metadata: " + e.getMessage());
+        }
+        return rows;
+    }
+
+    /**
+     * Stores rows, replacing older ones for the same paths, in one transaction.
+     */
+    public void saveAll(Collection<FileMetadata> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        String sql = "INSERT OR REPLACE INTO file_metadata(path, size, modified, sha256, crc32c, crc32, " +
+                "mime_type, incompressible, width, height) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+        try (Database.Lease db = Database.lease()) {
+            Connection conn = db.connection();
+            conn.setAutoCommit(false);
+            try {
+                PreparedStatement pstmt = db.prepare(sql);
+                for (FileMetadata row : rows) {
+                    pstmt.setString(1, row.path);
+                    pstmt.setLong(2, row.size);
+                    pstmt.setLong(3, row.modified);
+                    pstmt.setString(4, row.sha256);
+                    pstmt.setInt(5, row.crc32c);
+                    pstmt.setLong(6, row.crc32);
+                    pstmt.setString(7, row.mimeType);
+                    pstmt.setInt(8, row.incompressible ? 1 : 0);
+                    pstmt.setInt(9, row.width);
+                    pstmt.setInt(10, row.height);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+
+        } catch (SQLException e) {
+            System.out.println("Error saving metadata: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forgets files that no longer exist.
+     */
+    public void deleteAll(Collection<String> paths) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        String sql = "DELETE FROM file_metadata WHERE path = ?";
+
+        try (Database.Lease db = Database.lease()) {
+            Connection conn = db.connection();
+            conn.setAutoCommit(false);
+            try {
+                PreparedStatement pstmt = db.prepare(sql);
+                for (String path : paths) {
+                    pstmt.setString(1, path);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+
+        } catch (SQLException e) {
+            System.out.println("Error deleting metadata: " + e.getMessage());
+        }
+    }
+
+    private static FileMetadata read(ResultSet rs) throws SQLException {
+        FileMetadata row = new FileMetadata(rs.getString("path"), rs.getLong("size"), rs.getLong("modified"));
+        row.sha256 = rs.getString("sha256");
+        row.crc32c = rs.getInt("crc32c");
+        row.crc32 = rs.getLong("crc32");
+        if (rs.wasNull()) {
+            row.crc32 = -1;
+        }
+        row.mimeType = rs.getString("mime_type");
+        row.incompressible = rs.getInt("incompressible") != 0;
+        row.width = rs.getInt("width");
+        row.height = rs.getInt("height");
+        return row;
+    }
+}
@@ -0,0 +1,101 @@
+package com.lancast.lancast.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DigestsTest {
+
+    // Digests of "hello"
+    private static final String SHA256_HEX = "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+    private static final String SHA256_B64 = "LPJNul+wow4m6DsqxbninhsWHlwfp0JecwQzYpOLmCQ=";
+    private static final String CRC32C_B64 = "mnG7TA==";
+
+    private static Digests hello() {
+        Digests.Digester digester = new Digests.Digester();
+        byte[] data = "hello".getBytes(StandardCharsets.US_ASCII);
+        digester.update(data, 0, data.length);
+        return digester.finish();
+    }
+
+    /**
+     * Runs {@code verify}, returning {@code ok} or the start of the rejection message.
+     */
+    private static String verify(String expected) {
+        try {
+            hello().verify(expected);
+            return "ok";
+        } catch (IllegalArgumentException e) {
+            String message = e.getMessage();
+            int colon = message.indexOf(':');
+            int paren = message.indexOf(" (");
+            int end = colon >= 0 ? colon : paren >= 0 ? paren : message.length();
+            return message.substring(0, end);
+        }
+    }
+
+    @Test
+    void computesKnownValues() {
+        Digests digests = hello();
+        assertEquals(SHA256_HEX, digests.getSha256());
+        assertEquals("9a71bb4c", digests.getCrc32c());
+        assertEquals("sha-256=:" + SHA256_B64 + ":, crc32c=:" + CRC32C_B64 + ":", digests.toHeader());
+        assertEquals("SHA-256=" + SHA256_B64, digests.toLegacyHeader());
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', nullValues = "null", value = {
+            // Nothing expected
+            "null                                                                              | ok",
+            "''                                                                                | ok",
+            "'   '                                                                             | ok",
+            // Bare hex shorthand
+            "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824                  | ok",
+            "2CF24DBA5FB0A30E26E83B2AC5B9E29E1B161E5C1FA7425E73043362938B9824                  | ok",
+            "' 2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824 '              | ok",
+            "0000000000000000000000000000000000000000000000000000000000000000                  | Digest mismatch",
+            "zzf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824                  | Malformed SHA-256",
+            // Single members
+            "sha-256=:LPJNul+wow4m6DsqxbninhsWHlwfp0JecwQzYpOLmCQ=:                            | ok",
+            "SHA-256=:LPJNul+wow4m6DsqxbninhsWHlwfp0JecwQzYpOLmCQ=:                            | ok",
+            "crc32c=:mnG7TA==:                                                                 | ok",
+            "CRC32C=:mnG7TA==:                                                                 | ok",
+            "crc32c=:AAAAAA==:                                                                 | Digest mismatch",
+            "sha-256=:AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=:                            | Digest mismatch",
+            // Both members, in either order and with whitespace
+            "'sha-256=:LPJNul+wow4m6DsqxbninhsWHlwfp0JecwQzYpOLmCQ=:, crc32c=:mnG7TA==:'       | ok",
+            "'crc32c=:mnG7TA==:,sha-256=:LPJNul+wow4m6DsqxbninhsWHlwfp0JecwQzYpOLmCQ=:'        | ok",
+            "'sha-256=:LPJNul+wow4m6DsqxbninhsWHlwfp0JecwQzYpOLmCQ=:, crc32c=:AAAAAA==:'       | Digest mismatch",
+            // Parameters are ignored
+            "sha-256=:LPJNul+wow4m6DsqxbninhsWHlwfp0JecwQzYpOLmCQ=:;q=1                        | ok",
+            "'crc32c=:mnG7TA==: ; a=b ; c'                                                     | ok",
+            // Unknown algorithms are skipped, but something must be checked
+            "'md5=:XUFAKrxLKna5cZ2REBfFkg==:, crc32c=:mnG7TA==:'                               | ok",
+            "md5=:XUFAKrxLKna5cZ2REBfFkg==:                                                    | No supported digest algorithm",
+            "'unixsum=:AAA=:, sha-512=:AAA=:'                                                  | No supported digest algorithm",
+            "garbage                                                                           | No supported digest algorithm",
+            // Byte sequences must be wrapped in colons and valid base64
+            "sha-256=LPJNul+wow4m6DsqxbninhsWHlwfp0JecwQzYpOLmCQ=                              | Malformed digest",
+            "crc32c=:mnG7TA==                                                                  | Malformed digest",
+            "crc32c=:                                                                          | Malformed digest",
+            "crc32c=                                                                           | Malformed digest",
+            "crc32c=:m*G7TA==:                                                                 | Malformed digest",
+    })
+    void verify(String expected, String result) {
+        assertEquals(result, verify(expected));
+    }
+
+    @Test
+    void roundTripsOwnHeader() {
+        Digests digests = hello();
+        digests.verify(digests.toHeader());
+        digests.verify(digests.getSha256());
+        Digests other = Digests.of(digests.getSha256(), 0);
+        assertThrows(IllegalArgumentException.class, () -> other.verify(digests.toHeader()));
+    }
+}
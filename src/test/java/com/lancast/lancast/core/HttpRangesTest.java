@@ -0,0 +1,125 @@
+package com.lancast.lancast.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.util.List;
+import java.util.StringJoiner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpRangesTest {
+
+    private static final String ETAG = "\"1a-3e8-5f\"";
+    // Sun, 06 Nov 1994 08:49:37 GMT
+    private static final long MODIFIED = 784111777000L;
+
+    /**
+     * Ranges as {@code start-end;...}, {@code 416} for an empty list and {@code full} for null.
+     */
+    private static String describe(List<HttpRanges.Range> ranges) {
+        if (ranges == null) {
+            return "full";
+        }
+        if (ranges.isEmpty()) {
+            return "416";
+        }
+        StringJoiner joiner = new StringJoiner(";");
+        for (HttpRanges.Range r : ranges) {
+            joiner.add(r.start + "-" + r.end);
+        }
+        return joiner.toString();
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            // Single ranges
+            "bytes=0-99           | 1000 | 0-99",
+            "bytes=0-             | 1000 | 0-999",
+            "bytes=990-2000       | 1000 | 990-999",
+            "BYTES=5-5            | 1000 | 5-5",
+            "bytes= 10 - 20       | 1000 | 10-20",
+            // Suffix ranges
+            "bytes=-100           | 1000 | 900-999",
+            "bytes=-5000          | 1000 | 0-999",
+            "bytes=-0             | 1000 | 416",
+            "bytes=-10            | 0    | 416",
+            // Unsatisfiable
+            "bytes=1000-          | 1000 | 416",
+            "bytes=2000-3000      | 1000 | 416",
+            "bytes=0-0            | 0    | 416",
+            // Overlapping and adjacent ranges are merged and sorted
+            "'bytes=0-10,5-20'    | 1000 | 0-20",
+            "'bytes=0-9,10-19'    | 1000 | 0-19",
+            "'bytes=500-,0-9'     | 1000 | 0-9;500-999",
+            "'bytes=-100,0-0'     | 1000 | 0-0;900-999",
+            "'bytes=0-0,2-2,4-4'  | 1000 | 0-0;2-2;4-4",
+            "'bytes=0-9,-995'     | 1000 | 0-999",
+            "'bytes=2000-,0-9'    | 1000 | 0-9",
+            // Empty elements are allowed around real ones, but not on their own
+            "'bytes=,0-9,'        | 1000 | 0-9",
+            "'bytes=,'            | 1000 | full",
+            "bytes=               | 1000 | full",
+            // Malformed or other units: ignored, the full body is sent
+            "items=0-9            | 1000 | full",
+            "bytes=9-0            | 1000 | full",
+            "bytes=abc            | 1000 | full",
+            "bytes=5              | 1000 | full",
+            "bytes=--5            | 1000 | full",
+            "bytes=0-99999999999999999999 | 1000 | full",
+    })
+    void parse(String header, long length, String expected) {
+        assertEquals(expected, describe(HttpRanges.parse(header, length)));
+    }
+
+    @Test
+    void parseWithoutHeader() {
+        assertNull(HttpRanges.parse(null, 1000));
+    }
+
+    @Test
+    void parseTooManyRanges() {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i < 32; i++) {
+            header.append(',').append(i * 2).append('-').append(i * 2);
+        }
+        assertEquals(32, HttpRanges.parse(header.toString(), 1000).size());
+        header.append(",100-100");
+        assertNull(HttpRanges.parse(header.toString(), 1000));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "'\"1a-3e8-5f\"'                    | true",
+            "' \"1a-3e8-5f\" '                  | true",
+            "'\"1a-3e8-60\"'                    | false",
+            // Weak validators never match
+            "'W/\"1a-3e8-5f\"'                  | false",
+            "Sun, 06 Nov 1994 08:49:37 GMT      | true",
+            "Sun, 06 Nov 1994 08:49:38 GMT      | false",
+            "Sunday, 06-Nov-94 08:49:37 GMT     | false",
+            "yesterday                          | false",
+    })
+    void ifRangeMatches(String ifRange, boolean expected) {
+        assertEquals(expected, HttpRanges.ifRangeMatches(ifRange, ETAG, MODIFIED));
+    }
+
+    @Test
+    void ifRangeAbsent() {
+        assertTrue(HttpRanges.ifRangeMatches(null, ETAG, MODIFIED));
+        // Dates only count to the second
+        assertTrue(HttpRanges.ifRangeMatches("Sun, 06 Nov 1994 08:49:37 GMT", ETAG, MODIFIED + 999));
+        assertFalse(HttpRanges.ifRangeMatches("Sun, 06 Nov 1994 08:49:37 GMT", ETAG, MODIFIED + 1000));
+    }
+
+    @Test
+    void contentRange() {
+        HttpRanges.Range range = new HttpRanges.Range(0, 99);
+        assertEquals(100, range.length());
+        assertEquals("bytes 0-99/1000", range.contentRange(1000));
+    }
+}
@@ -0,0 +1,194 @@
+package com.lancast.lancast.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MultipartParserTest {
+
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    /**
+     * Hands out the body a few bytes per read, as a slow connection would.
+     */
+    private static final class TrickleInputStream extends InputStream {
+        private final byte[] data;
+        private final int step;
+        private int pos;
+
+        TrickleInputStream(byte[] data, int step) {
+            this.data = data;
+            this.step = step;
+        }
+
+        @Override
+        public int read() {
+            return pos < data.length ? data[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= data.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, step), data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    private static byte[] body(byte[] fileContent) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(("preamble\r\n--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"note\"\r\n\r\n"
+                + "hello\r\n--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.writeBytes(fileContent);
+        out.writeBytes(("\r\n--" + BOUNDARY + "--\r\nepilogue").getBytes(StandardCharsets.ISO_8859_1));
+        return out.toByteArray();
+    }
+
+    private static void assertParts(InputStream in, byte[] fileContent) throws IOException {
+        MultipartParser parser = new MultipartParser(in, BOUNDARY);
+
+        MultipartParser.Part note = parser.nextPart();
+        assertEquals("note", note.getName());
+        assertNull(note.getFilename());
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        assertEquals(5, parser.transferBody(text));
+        assertEquals("hello", text.toString(StandardCharsets.ISO_8859_1));
+
+        MultipartParser.Part file = parser.nextPart();
+        assertEquals("file", file.getName());
+        assertEquals("data.bin", file.getFilename());
+        assertEquals("application/octet-stream", file.getContentType());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        assertEquals(fileContent.length, parser.transferBody(content));
+        assertArrayEquals(fileContent, content.toByteArray());
+
+        assertNull(parser.nextPart());
+        assertNull(parser.nextPart());
+    }
+
+    /**
+     * Content full of near misses: CRLF, dashes and boundary prefixes that stop one byte short.
+     */
+    private static byte[] trickyContent(int length, long seed) {
+        byte[] near = ("\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "X").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        for (int i = 0; i + near.length <= length; i += 997) {
+            System.arraycopy(near, 0, content, i, near.length);
+        }
+        return content;
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 1, 2, 3, 7, 41, 42, 43, 1000, 65536, Integer.MAX_VALUE })
+    void readsPartsWhateverTheReadSizes(int step) throws IOException {
+        byte[] content = trickyContent(20_000, step);
+        assertParts(new TrickleInputStream(body(content), step), content);
+    }
+
+    @Test
+    void findsDelimitersSplitAcrossBufferRefills() throws IOException {
+        // The parser buffers 256 KB; sliding the file length moves the closing delimiter
+        // across the end of the first buffer one byte at a time
+        for (int length = 262_000; length < 262_200; length++) {
+            byte[] content = trickyContent(length, length);
+            assertParts(new ByteArrayInputStream(body(content)), content);
+        }
+    }
+
+    @Test
+    void emptyFile() throws IOException {
+        assertParts(new ByteArrayInputStream(body(new byte[0])), new byte[0]);
+    }
+
+    @Test
+    void skipsUnreadParts() throws IOException {
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body(trickyContent(5000, 1))), BOUNDARY);
+        assertEquals("note", parser.nextPart().getName());
+        assertEquals("file", parser.nextPart().getName());
+        assertNull(parser.nextPart());
+    }
+
+    @Test
+    void truncatedBodyFails() {
+        byte[] full = body(trickyContent(5000, 2));
+        byte[] truncated = Arrays.copyOf(full, full.length - 20);
+        MultipartParser parser = new MultipartParser(new ByteArrayInputStream(truncated), BOUNDARY);
+        assertThrows(IOException.class, () -> {
+            while (parser.nextPart() != null) {
+                parser.transferBody(null);
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "form-data; name=\"file\"; filename=\"a.txt\"                          | a.txt",
+            "form-data; name=file; filename=a.txt                                  | a.txt",
+            "form-data; name=\"file\"; filename=\"semi;colon.txt\"                 | semi;colon.txt",
+            "form-data; name=\"file\"; filename=\"q\\\"uote.txt\"                  | q\"uote.txt",
+            "form-data; name=\"file\"; filename*=UTF-8''na%C3%AFve.txt             | naïve.txt",
+            "form-data; name=\"file\"; filename=\"fallback.txt\"; filename*=UTF-8''%E2%82%AC.txt | €.txt",
+            "form-data; name=\"file\"; filename*=utf-8'en'%E6%97%A5%E6%9C%AC.txt   | 日本.txt",
+            "form-data; name=\"file\"; filename*=ISO-8859-1''caf%E9.txt            | café.txt",
+            // Malformed extended values fall back to the plain parameter
+            "form-data; name=\"file\"; filename=\"plain.txt\"; filename*=UTF-8''bad%G1 | plain.txt",
+            "form-data; name=\"file\"; filename=\"plain.txt\"; filename*=no-quotes     | plain.txt",
+            "form-data; name=\"file\"; filename=\"plain.txt\"; filename*=x-unknown''a  | plain.txt",
+            "form-data; name=\"file\"; filename=\"plain.txt\"; filename*=UTF-8''cut%4  | plain.txt",
+    })
+    void filenames(String disposition, String expected) throws IOException {
+        String body = "--" + BOUNDARY + "\r\nContent-Disposition: " + disposition + "\r\n\r\nx\r\n--" + BOUNDARY + "--";
+        MultipartParser parser = new MultipartParser(
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), BOUNDARY);
+        assertEquals(expected, parser.nextPart().getFilename());
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', nullValues = "null", value = {
+            "multipart/form-data; boundary=abc                | abc",
+            "multipart/form-data; boundary=\"a b;c\"          | a b;c",
+            "multipart/form-data; charset=utf-8; BOUNDARY=xyz | xyz",
+            "multipart/form-data; boundary=\"\"               | null",
+            "multipart/form-data                              | null",
+            "null                                             | null",
+    })
+    void boundaryOf(String contentType, String expected) {
+        assertEquals(expected, MultipartParser.boundaryOf(contentType));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', nullValues = "null", value = {
+            "photo.jpg                  | photo.jpg",
+            "C:\\fakepath\\photo.jpg    | photo.jpg",
+            "../../etc/passwd           | passwd",
+            "'a:b*c?d\"e<f>g|h.txt'     | abcdefgh.txt",
+            "'  spaced.txt  '           | spaced.txt",
+            "..                         | null",
+            "dir/                       | null",
+            "null                       | null",
+    })
+    void sanitizeFilename(String given, String expected) {
+        assertEquals(expected, MultipartParser.sanitizeFilename(given));
+    }
+}
@@ -0,0 +1,46 @@
+package com.lancast.lancast.core;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StaticAssetsTest {
+
+    private static StaticAssets.Asset asset() throws IOException {
+        byte[] content = "body { margin: 0; }\n".repeat(200).getBytes(StandardCharsets.US_ASCII);
+        return new StaticAssets.Asset(new File("app.css"), content, "text/css");
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', nullValues = "null", value = {
+            "null                      | null",
+            "''                        | null",
+            "identity                  | null",
+            "gzip                      | gzip",
+            "'gzip, deflate, br'       | gzip",
+            "x-gzip                    | gzip",
+            "GZIP                      | gzip",
+            "deflate                   | deflate",
+            "'deflate, gzip;q=0'       | deflate",
+            "gzip;q=0.5                | gzip",
+            "gzip;Q=0                  | null",
+            "gzip;q=0.000              | null",
+            "gzip;q=x                  | null",
+            // The wildcard covers codings the header does not name
+            "*                         | gzip",
+            "'*;q=0'                   | null",
+            "'gzip;q=0, *'             | deflate",
+            "'*, gzip;q=0'             | deflate",
+            "'gzip;q=0, deflate;q=0, *' | null",
+            "'*;q=0, deflate'          | deflate",
+            "'*;q=0, gzip;q=1'         | gzip",
+    })
+    void negotiatesEncoding(String acceptEncoding, String encoding) throws IOException {
+        assertEquals(encoding, StaticAssets.negotiate(acceptEncoding, asset()));
+    }
+}
@@ -0,0 +1,120 @@
+package com.lancast.lancast.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ZipArchiveTest {
+
+    @TempDir
+    Path dir;
+
+    private File share() throws IOException {
+        Path folder = Files.createDirectories(dir.resolve("shared/sub"));
+        byte[] random = new byte[300_000];
+        new Random(7).nextBytes(random);
+        Files.write(folder.resolve("b.bin"), random);
+        Files.writeString(folder.resolve("c.txt"), "zz");
+        Files.writeString(dir.resolve("shared/a.txt"), "hello");
+        Files.write(dir.resolve("shared/empty"), new byte[0]);
+        return dir.resolve("shared").toFile();
+    }
+
+    private static byte[] write(ZipArchive archive, long start, long count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archive.write(out, start, count);
+        return out.toByteArray();
+    }
+
+    private static void assertReadable(byte[] zip, Path dir) throws IOException {
+        Path file = Files.write(dir.resolve("out-" + System.nanoTime() + ".zip"), zip);
+        try (ZipFile zipFile = new ZipFile(file.toFile())) {
+            assertEquals(4, zipFile.size());
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    assertEquals(entry.getSize(), in.readAllBytes().length);
+                }
+            }
+        }
+    }
+
+    @Test
+    void rangesMatchTheWholeArchive() throws IOException {
+        ZipArchive archive = ZipArchive.of(List.of(share()));
+        byte[] whole = write(archive, 0, archive.length());
+        assertEquals(archive.length(), whole.length);
+        assertReadable(whole, dir);
+
+        ByteArrayOutputStream pieces = new ByteArrayOutputStream();
+        long step = 7919;
+        for (long p = 0; p < archive.length(); p += step) {
+            pieces.write(write(archive, p, Math.min(step, archive.length() - p)));
+        }
+        assertArrayEquals(whole, pieces.toByteArray());
+    }
+
+    @Test
+    void knownChecksumsGivePlainEntries() throws IOException {
+        File shared = share();
+        ZipArchive first = ZipArchive.of(List.of(shared));
+        // Sending it once computes every CRC
+        write(first, 0, first.length());
+
+        ZipArchive second = ZipArchive.of(List.of(shared));
+        assertNotEquals(first.getEtag(), second.getEtag());
+        byte[] zip = write(second, 0, second.length());
+        assertEquals(second.length(), zip.length);
+        assertReadable(zip, dir);
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            int entries = 0;
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                assertEquals(entry.getSize(), in.readAllBytes().length);
+                entries++;
+            }
+            assertEquals(4, entries);
+        }
+    }
+
+    @Test
+    void fileChangedAfterTheLayoutFails() throws IOException {
+        File shared = share();
+        ZipArchive archive = ZipArchive.of(List.of(shared));
+        byte[] before = write(archive, 0, 100);
+
+        Path changed = dir.resolve("shared/a.txt");
+        Files.writeString(changed, "hello, longer");
+        assertThrows(IOException.class, () -> write(archive, 0, archive.length()));
+        // Bytes before the changed file are still valid
+        assertArrayEquals(before, write(archive, 0, 100));
+    }
+
+    @Test
+    void emptyArchive() throws IOException {
+        ZipArchive archive = ZipArchive.of(List.of(Files.createDirectories(dir.resolve("nothing")).toFile()));
+        assertEquals(0, archive.getEntryCount());
+        byte[] zip = write(archive, 0, archive.length());
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            assertNull(in.getNextEntry());
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.lancast.lancast.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ZipWriterTest {
+
+    private static final long LIMIT_32 = 0xFFFFFFFFL;
+    private static final long MODIFIED = 1_700_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Skips runs of zeros instead of writing them, so an archive with a file of several
+     * gigabytes only takes up its headers on disk.
+     */
+    private static final class SparseOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private long position;
+
+        SparseOutputStream(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            boolean zeros = true;
+            for (int i = off; i < off + len && zeros; i++) {
+                zeros = b[i] == 0;
+            }
+            if (!zeros) {
+                channel.write(ByteBuffer.wrap(b, off, len), position);
+            }
+            position += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel.size() < position) {
+                channel.write(ByteBuffer.allocate(1), position - 1);
+            }
+            channel.close();
+        }
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] read(ZipFile zip, String name) throws IOException {
+        try (InputStream in = zip.getInputStream(zip.getEntry(name))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static boolean contains(byte[] data, int signature) {
+        ByteBuffer b = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i + 4 <= data.length; i++) {
+            if (b.getInt(i) == signature) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    void entriesWithAndWithoutDataDescriptors() throws IOException {
+        byte[] text = "hello, hello, hello, hello".repeat(100).getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = deflate(text);
+        byte[] small = "plain".getBytes(StandardCharsets.UTF_8);
+        Path file = dir.resolve("mixed.zip");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            ZipWriter zip = new ZipWriter(out);
+            zip.beginEntry("stored.txt", ZipWriter.STORED, MODIFIED);
+            zip.writeData(text, 0, text.length);
+            zip.endEntry(crc(text), text.length, text.length);
+            zip.beginEntry("deflated.txt", ZipWriter.DEFLATED, MODIFIED);
+            zip.writeData(deflated, 0, deflated.length);
+            zip.endEntry(crc(text), deflated.length, text.length);
+            zip.beginStoredEntry("folder/naïve.txt", MODIFIED, crc(small), small.length);
+            zip.writeData(small, 0, small.length);
+            zip.endEntry(crc(small), small.length, small.length);
+            zip.finish();
+        }
+
+        byte[] bytes = Files.readAllBytes(file);
+        assertFalse(contains(bytes, 0x06064b50), "small archives have no ZIP64 end record");
+        try (ZipFile zip = new ZipFile(file.toFile())) {
+            assertEquals(3, zip.size());
+            ZipEntry stored = zip.getEntry("stored.txt");
+            assertEquals(ZipEntry.STORED, stored.getMethod());
+            assertEquals(text.length, stored.getSize());
+            assertEquals(crc(text), stored.getCrc());
+            assertArrayEquals(text, read(zip, "stored.txt"));
+
+            ZipEntry compressed = zip.getEntry("deflated.txt");
+            assertEquals(ZipEntry.DEFLATED, compressed.getMethod());
+            assertEquals(deflated.length, compressed.getCompressedSize());
+            assertEquals(text.length, compressed.getSize());
+            assertArrayEquals(text, read(zip, "deflated.txt"));
+
+            assertArrayEquals(small, read(zip, "folder/naïve.txt"));
+            assertEquals(MODIFIED / 2000, zip.getEntry("folder/naïve.txt").getTime() / 2000);
+        }
+    }
+
+    @Test
+    void streamingReadersAcceptEntriesWithKnownCrc() throws IOException {
+        byte[] text = "streamed".repeat(50).getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = deflate(text);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipWriter zip = new ZipWriter(out);
+        zip.beginStoredEntry("stored.txt", MODIFIED, crc(text), text.length);
+        zip.writeData(text, 0, text.length);
+        zip.endEntry(crc(text), text.length, text.length);
+        zip.beginEntry("deflated.txt", ZipWriter.DEFLATED, MODIFIED);
+        zip.writeData(deflated, 0, deflated.length);
+        zip.endEntry(crc(text), deflated.length, text.length);
+        zip.finish();
+
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            assertEquals("stored.txt", in.getNextEntry().getName());
+            assertArrayEquals(text, in.readAllBytes());
+            assertEquals("deflated.txt", in.getNextEntry().getName());
+            assertArrayEquals(text, in.readAllBytes());
+            assertNull(in.getNextEntry());
+        }
+    }
+
+    @Test
+    void storedEntryThatDoesNotMatchItsHeaderFails() throws IOException {
+        byte[] data = "12345".getBytes(StandardCharsets.UTF_8);
+        ZipWriter zip = new ZipWriter(new ByteArrayOutputStream());
+        zip.beginStoredEntry("grew.txt", MODIFIED, crc(data), 4);
+        zip.writeData(data, 0, data.length);
+        assertThrows(IOException.class, () -> zip.endEntry(crc(data), data.length, data.length));
+    }
+
+    @Test
+    void entryNotEnded() throws IOException {
+        ZipWriter zip = new ZipWriter(new ByteArrayOutputStream());
+        zip.beginEntry("open.txt", ZipWriter.STORED, MODIFIED);
+        assertThrows(IllegalStateException.class, () -> zip.beginEntry("next.txt", ZipWriter.STORED, MODIFIED));
+        assertThrows(IllegalStateException.class, zip::finish);
+    }
+
+    @Test
+    void moreEntriesThanTheClassicCountHolds() throws IOException {
+        int count = 70_000;
+        Path file = dir.resolve("many.zip");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            ZipWriter zip = new ZipWriter(out);
+            for (int i = 0; i < count; i++) {
+                zip.beginStoredEntry("f" + i, MODIFIED, 0, 0);
+                zip.endEntry(0, 0, 0);
+            }
+            zip.finish();
+        }
+        try (ZipFile zip = new ZipFile(file.toFile())) {
+            assertEquals(count, zip.size());
+            assertEquals(0, zip.getEntry("f69999").getSize());
+        }
+    }
+
+    @Test
+    void entryLargerThan4GiB() throws IOException {
+        long size = LIMIT_32 + 16;
+        byte[] zeros = new byte[1 << 20];
+        CRC32 crc = new CRC32();
+        Path file = dir.resolve("large.zip");
+        byte[] tail = "after the large entry".getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = new SparseOutputStream(file)) {
+            ZipWriter zip = new ZipWriter(out);
+            zip.beginEntry("large.bin", ZipWriter.STORED, MODIFIED);
+            for (long left = size; left > 0; left -= zeros.length) {
+                int n = (int) Math.min(zeros.length, left);
+                zip.writeData(zeros, 0, n);
+                crc.update(zeros, 0, n);
+            }
+            zip.endEntry(crc.getValue(), size, size);
+            // Starts past 4 GiB, so its offset goes in the ZIP64 extra field
+            zip.beginStoredEntry("tail.txt", MODIFIED, crc(tail), tail.length);
+            zip.writeData(tail, 0, tail.length);
+            zip.endEntry(crc(tail), tail.length, tail.length);
+            zip.finish();
+        }
+        try (ZipFile zip = new ZipFile(file.toFile())) {
+            ZipEntry large = zip.getEntry("large.bin");
+            assertEquals(size, large.getSize());
+            assertEquals(size, large.getCompressedSize());
+            assertEquals(crc.getValue(), large.getCrc());
+            assertArrayEquals(tail, read(zip, "tail.txt"));
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "0, 0, 0",
+            "4294967294, 4294967294, 4294967294",
+            "4294967295, 100, 0",
+            "100, 4294967295, 0",
+            "100, 100, 4294967295",
+            "5000000000, 5000000000, 5000000000",
+    })
+    void encodedLengthsMatchTheirRecords(long compressedSize, long size, long offset) {
+        byte[] name = "entry.bin".getBytes(StandardCharsets.UTF_8);
+        ZipWriter.Entry entry = new ZipWriter.Entry(name, ZipWriter.STORED, ZipWriter.FLAG_DATA_DESCRIPTOR, 0, offset);
+        entry.compressedSize = compressedSize;
+        entry.size = size;
+        boolean zip64 = compressedSize >= LIMIT_32 || size >= LIMIT_32;
+
+        byte[] local = ZipWriter.localHeader(entry, 0, compressedSize, size);
+        assertEquals(ZipWriter.localHeaderLength(name, compressedSize, size), local.length);
+        ByteBuffer b = ByteBuffer.wrap(local).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(zip64 ? 45 : 20, b.getShort(4));
+        assertEquals(zip64 ? -1 : (int) size, b.getInt(22));
+        if (zip64) {
+            assertEquals(size, b.getLong(30 + name.length + 4));
+            assertEquals(compressedSize, b.getLong(30 + name.length + 12));
+        }
+
+        byte[] descriptor = ZipWriter.dataDescriptor(0x12345678L, compressedSize, size);
+        assertEquals(ZipWriter.dataDescriptorLength(compressedSize, size), descriptor.length);
+        b = ByteBuffer.wrap(descriptor).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x08074b50, b.getInt(0));
+        assertEquals(0x12345678, b.getInt(4));
+        assertEquals(compressedSize, zip64 ? b.getLong(8) : Integer.toUnsignedLong(b.getInt(8)));
+        assertEquals(size, zip64 ? b.getLong(16) : Integer.toUnsignedLong(b.getInt(12)));
+
+        byte[] central = ZipWriter.centralHeader(entry);
+        assertEquals(ZipWriter.centralHeaderLength(name, compressedSize, size, offset), central.length);
+        b = ByteBuffer.wrap(central).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(Math.min(offset, LIMIT_32), Integer.toUnsignedLong(b.getInt(42)));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "1, 0, 0, false",
+            "65534, 4294967294, 4294967294, false",
+            "65535, 0, 0, true",
+            "1, 4294967295, 0, true",
+            "1, 0, 4294967295, true",
+    })
+    void endRecords(long count, long directoryOffset, long directorySize, boolean zip64) {
+        byte[] end = ZipWriter.endOfCentralDirectory(count, directoryOffset, directorySize);
+        assertEquals(ZipWriter.endOfCentralDirectoryLength(count, directoryOffset, directorySize), end.length);
+        assertEquals(zip64, contains(end, 0x06064b50));
+        ByteBuffer b = ByteBuffer.wrap(end).order(ByteOrder.LITTLE_ENDIAN);
+        int classic = end.length - 22;
+        assertEquals(0x06054b50, b.getInt(classic));
+        assertEquals((int) Math.min(count, 0xFFFF), Short.toUnsignedInt(b.getShort(classic + 10)));
+        if (zip64) {
+            assertEquals(count, b.getLong(32));
+            assertEquals(directorySize, b.getLong(40));
+            assertEquals(directoryOffset, b.getLong(48));
+            assertTrue(contains(end, 0x07064b50));
+        }
+    }
+}
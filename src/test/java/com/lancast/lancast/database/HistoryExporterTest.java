@@ -0,0 +1,152 @@
+package com.lancast.lancast.database;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HistoryExporterTest {
+
+    private static final String TIMESTAMP = "2024-05-01 12:00:00";
+
+    /**
+     * Turns the escapes used in the tables ({@code \n}, {@code \r}, {@code \t}, {@code \\uXXXX},
+     * {@code \\}) into the characters they stand for.
+     */
+    private static String unescape(String s) {
+        if (s == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                sb.append(c);
+                continue;
+            }
+            char next = s.charAt(++i);
+            switch (next) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default:
+                    sb.append(next);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String export(HistoryManager.ExportFormat format, String fileName) throws IOException {
+        StringWriter out = new StringWriter();
+        HistoryExporter exporter = new HistoryExporter(out, format);
+        exporter.write(7, "192.168.1.20", fileName, "Phone", TIMESTAMP);
+        exporter.finish();
+        return out.toString();
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', nullValues = "null", value = {
+            "plain.txt               | \"plain.txt\"",
+            "'a, b.txt'              | \"a, b.txt\"",
+            "say \"hi\".txt          | \"say \\\\\"hi\\\\\".txt\"",
+            "back\\\\slash           | \"back\\\\\\\\slash\"",
+            "two\\nlines\\r.txt      | \"two\\\\nlines\\\\r.txt\"",
+            "tab\\there              | \"tab\\\\there\"",
+            "bell\\u0007             | \"bell\\\\u0007\"",
+            "sep\\u2028par\\u2029.txt | \"sep\\\\u2028par\\\\u2029.txt\"",
+            "caf\\u00e9 \\u6587.txt  | \"caf\\u00e9 \\u6587.txt\"",
+            "null                    | null",
+    })
+    void escapesJson(String fileName, String json) throws IOException {
+        String object = "{\"id\": 7, \"client_ip\": \"192.168.1.20\", \"file_name\": " + unescape(json)
+                + ", \"device_type\": \"Phone\", \"timestamp\": \"" + TIMESTAMP + "\"}";
+        assertEquals("[\n  " + object + "\n]\n", export(HistoryManager.ExportFormat.JSON, unescape(fileName)));
+        assertEquals(object + "\n", export(HistoryManager.ExportFormat.NDJSON, unescape(fileName)));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', nullValues = "null", value = {
+            "plain.txt               | plain.txt",
+            "'a, b.txt'              | '\"a, b.txt\"'",
+            "say \"hi\".txt          | \"say \"\"hi\"\".txt\"",
+            "\"                      | \"\"\"\"",
+            "two\\nlines.txt         | \"two\\nlines.txt\"",
+            "cr\\r.txt               | \"cr\\r.txt\"",
+            "tab\\there              | tab\\there",
+            "sep\\u2028.txt          | sep\\u2028.txt",
+            "'  padded  '            | '  padded  '",
+            "null                    | ''",
+    })
+    void escapesCsv(String fileName, String field) throws IOException {
+        String expected = "id,client_ip,file_name,device_type,timestamp\r\n"
+                + "7,192.168.1.20," + unescape(field) + ",Phone," + TIMESTAMP + "\r\n";
+        assertEquals(expected, export(HistoryManager.ExportFormat.CSV, unescape(fileName)));
+    }
+
+    @Test
+    void writesText() throws IOException {
+        assertEquals("[7] 192.168.1.20 | a, \"b\".txt | Phone | " + TIMESTAMP + "\n",
+                export(HistoryManager.ExportFormat.TEXT, "a, \"b\".txt"));
+    }
+
+    @Test
+    void separatesRows() throws IOException {
+        for (HistoryManager.ExportFormat format : HistoryManager.ExportFormat.values()) {
+            StringWriter out = new StringWriter();
+            HistoryExporter exporter = new HistoryExporter(out, format);
+            exporter.write(1, "10.0.0.1", "a\nb", null, TIMESTAMP);
+            exporter.write(2, "10.0.0.2", "c", "Laptop", TIMESTAMP);
+            exporter.finish();
+            String text = out.toString();
+            switch (format) {
+                case JSON:
+                    assertEquals("[\n"
+                            + "  {\"id\": 1, \"client_ip\": \"10.0.0.1\", \"file_name\": \"a\\nb\", \"device_type\": null, "
+                            + "\"timestamp\": \"" + TIMESTAMP + "\"},\n"
+                            + "  {\"id\": 2, \"client_ip\": \"10.0.0.2\", \"file_name\": \"c\", \"device_type\": \"Laptop\", "
+                            + "\"timestamp\": \"" + TIMESTAMP + "\"}\n"
+                            + "]\n", text);
+                    break;
+                case NDJSON:
+                    // One object per line even though a name holds a line break
+                    assertEquals(2, text.split("\n").length);
+                    break;
+                case CSV:
+                    assertEquals("id,client_ip,file_name,device_type,timestamp\r\n"
+                            + "1,10.0.0.1,\"a\nb\",," + TIMESTAMP + "\r\n"
+                            + "2,10.0.0.2,c,Laptop," + TIMESTAMP + "\r\n", text);
+                    break;
+                case TEXT:
+                    assertEquals("[1] 10.0.0.1 | a\nb | null | " + TIMESTAMP + "\n"
+                            + "[2] 10.0.0.2 | c | Laptop | " + TIMESTAMP + "\n", text);
+                    break;
+            }
+        }
+    }
+
+    @Test
+    void writesEmptyDocuments() throws IOException {
+        StringWriter json = new StringWriter();
+        new HistoryExporter(json, HistoryManager.ExportFormat.JSON).finish();
+        assertEquals("[\n]\n", json.toString());
+
+        StringWriter csv = new StringWriter();
+        new HistoryExporter(csv, HistoryManager.ExportFormat.CSV).finish();
+        assertEquals("id,client_ip,file_name,device_type,timestamp\r\n", csv.toString());
+    }
+}